@@ -0,0 +1,14 @@
+package android.app;
+
+public class AlarmManager {
+    public static final int RTC_WAKEUP = 0;
+    public static final int ELAPSED_REALTIME_WAKEUP = 2;
+
+    public void set(int type, long triggerAt, PendingIntent operation) {}
+    public void setExact(int type, long triggerAt, PendingIntent operation) {}
+    public void setAndAllowWhileIdle(int type, long triggerAt, PendingIntent operation) {}
+    public void setExactAndAllowWhileIdle(int type, long triggerAt, PendingIntent operation) {}
+    public void setRepeating(int type, long triggerAt, long interval, PendingIntent operation) {}
+    public boolean canScheduleExactAlarms() { return true; }
+    public void cancel(PendingIntent operation) {}
+}
@@ -0,0 +1,9 @@
+package android.app;
+
+import android.content.Context;
+
+public class Application extends Context {
+    public static String getProcessName() {
+        return null;
+    }
+}
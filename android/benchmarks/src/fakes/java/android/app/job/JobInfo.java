@@ -0,0 +1,109 @@
+package android.app.job;
+
+import android.content.ComponentName;
+import android.net.NetworkRequest;
+import android.os.PersistableBundle;
+
+/**
+ * Holds what was set on the Builder.
+ */
+public class JobInfo {
+    public static final int NETWORK_TYPE_NONE = 0;
+    public static final int NETWORK_TYPE_ANY = 1;
+    public static final int NETWORK_TYPE_UNMETERED = 2;
+    public static final int NETWORK_TYPE_NOT_ROAMING = 3;
+    public static final int NETWORK_TYPE_CELLULAR = 4;
+
+    public static final int PRIORITY_MIN = 100;
+    public static final int PRIORITY_LOW = 200;
+    public static final int PRIORITY_DEFAULT = 300;
+    public static final int PRIORITY_HIGH = 400;
+    public static final int PRIORITY_MAX = 500;
+
+    public static final int BACKOFF_POLICY_LINEAR = 0;
+    public static final int BACKOFF_POLICY_EXPONENTIAL = 1;
+    public static final long MIN_BACKOFF_MILLIS = 10000L;
+    public static final long NETWORK_BYTES_UNKNOWN = -1;
+
+    private final int mId;
+    private final ComponentName mService;
+    private PersistableBundle mExtras = new PersistableBundle();
+    private boolean mPeriodic;
+    private long mInterval;
+    private long mMinLatency;
+    private boolean mPersisted;
+    private boolean mExpedited;
+    private int mPriority = PRIORITY_DEFAULT;
+    private int mNetworkType = NETWORK_TYPE_NONE;
+    private NetworkRequest mNetworkRequest;
+    private boolean mRequiresCharging;
+    private boolean mRequiresDeviceIdle;
+    private boolean mPrefetch;
+    private long mDownloadBytes = NETWORK_BYTES_UNKNOWN;
+    private long mUploadBytes = NETWORK_BYTES_UNKNOWN;
+    private long mInitialBackoff = 30000L;
+    private int mBackoffPolicy = BACKOFF_POLICY_EXPONENTIAL;
+
+    private JobInfo(int id, ComponentName service) {
+        mId = id;
+        mService = service;
+    }
+
+    public int getId() { return mId; }
+    public ComponentName getService() { return mService; }
+    public PersistableBundle getExtras() { return mExtras; }
+    public boolean isPeriodic() { return mPeriodic; }
+    public long getIntervalMillis() { return mInterval; }
+    public long getMinLatencyMillis() { return mMinLatency; }
+    public boolean isPersisted() { return mPersisted; }
+    public boolean isExpedited() { return mExpedited; }
+    public int getPriority() { return mPriority; }
+    public int getNetworkType() { return mNetworkType; }
+    public NetworkRequest getRequiredNetwork() { return mNetworkRequest; }
+    public boolean isRequireCharging() { return mRequiresCharging; }
+    public boolean isRequireDeviceIdle() { return mRequiresDeviceIdle; }
+    public boolean isPrefetch() { return mPrefetch; }
+    public long getEstimatedNetworkDownloadBytes() { return mDownloadBytes; }
+    public long getEstimatedNetworkUploadBytes() { return mUploadBytes; }
+    public long getInitialBackoffMillis() { return mInitialBackoff; }
+    public int getBackoffPolicy() { return mBackoffPolicy; }
+
+    public static class Builder {
+        private final JobInfo mJob;
+
+        public Builder(int id, ComponentName service) {
+            mJob = new JobInfo(id, service);
+        }
+
+        public Builder setExtras(PersistableBundle extras) { mJob.mExtras = extras; return this; }
+        public Builder setPeriodic(long interval) { mJob.mPeriodic = true; mJob.mInterval = interval; return this; }
+        public Builder setPeriodic(long interval, long flex) { return setPeriodic(interval); }
+        public Builder setMinimumLatency(long latency) { mJob.mMinLatency = latency; return this; }
+        public Builder setOverrideDeadline(long deadline) { return this; }
+        public Builder setPersisted(boolean persisted) { mJob.mPersisted = persisted; return this; }
+        public Builder setExpedited(boolean expedited) { mJob.mExpedited = expedited; return this; }
+        public Builder setPriority(int priority) { mJob.mPriority = priority; return this; }
+        public Builder setImportantWhileForeground(boolean important) { return this; }
+        public Builder setRequiredNetworkType(int type) { mJob.mNetworkType = type; return this; }
+        public Builder setRequiredNetwork(NetworkRequest request) { mJob.mNetworkRequest = request; return this; }
+        public Builder setRequiresCharging(boolean charging) { mJob.mRequiresCharging = charging; return this; }
+        public Builder setRequiresDeviceIdle(boolean idle) { mJob.mRequiresDeviceIdle = idle; return this; }
+        public Builder setRequiresBatteryNotLow(boolean batteryNotLow) { return this; }
+        public Builder setRequiresStorageNotLow(boolean storageNotLow) { return this; }
+        public Builder setPrefetch(boolean prefetch) { mJob.mPrefetch = prefetch; return this; }
+        public Builder setEstimatedNetworkBytes(long download, long upload) {
+            mJob.mDownloadBytes = download;
+            mJob.mUploadBytes = upload;
+            return this;
+        }
+        public Builder setBackoffCriteria(long initialBackoff, int policy) {
+            mJob.mInitialBackoff = initialBackoff;
+            mJob.mBackoffPolicy = policy;
+            return this;
+        }
+
+        public JobInfo build() {
+            return mJob;
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package android.app.job;
+
+import android.os.PersistableBundle;
+
+public class JobParameters {
+    public static final int STOP_REASON_UNDEFINED = 0;
+    public static final int STOP_REASON_CANCELLED_BY_APP = 1;
+    public static final int STOP_REASON_TIMEOUT = 3;
+
+    private final int mJobId;
+    private final PersistableBundle mExtras;
+
+    public JobParameters(int jobId, PersistableBundle extras) {
+        mJobId = jobId;
+        mExtras = extras;
+    }
+
+    public int getJobId() { return mJobId; }
+    public PersistableBundle getExtras() { return mExtras; }
+    public int getStopReason() { return STOP_REASON_UNDEFINED; }
+    public boolean isExpeditedJob() { return false; }
+}
@@ -0,0 +1,33 @@
+package android.app.job;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps scheduled jobs in memory.  Nothing ever runs them.
+ */
+public class JobScheduler {
+    public static final int RESULT_FAILURE = 0;
+    public static final int RESULT_SUCCESS = 1;
+
+    private final Map<Integer, JobInfo> mJobs = new LinkedHashMap<>();
+
+    public synchronized int schedule(JobInfo job) {
+        mJobs.put(job.getId(), job);
+        return RESULT_SUCCESS;
+    }
+
+    public synchronized void cancel(int jobId) {
+        mJobs.remove(jobId);
+    }
+
+    public synchronized JobInfo getPendingJob(int jobId) {
+        return mJobs.get(jobId);
+    }
+
+    public synchronized List<JobInfo> getAllPendingJobs() {
+        return new ArrayList<>(mJobs.values());
+    }
+}
@@ -0,0 +1,17 @@
+package android.content;
+
+public class ComponentName {
+    private final String mClassName;
+
+    public ComponentName(Context context, Class<?> cls) {
+        mClassName = cls.getName();
+    }
+
+    public ComponentName(String pkg, String cls) {
+        mClassName = cls;
+    }
+
+    public String getClassName() {
+        return mClassName;
+    }
+}
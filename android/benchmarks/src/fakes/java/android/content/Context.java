@@ -0,0 +1,80 @@
+package android.content;
+
+import android.app.AlarmManager;
+import android.app.job.JobScheduler;
+import android.content.pm.ApplicationInfo;
+import android.os.PowerManager;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An app whose files live in a temporary directory and whose SharedPreferences are held in memory.
+ */
+public class Context {
+    public static final String ALARM_SERVICE = "alarm";
+    public static final String JOB_SCHEDULER_SERVICE = "jobscheduler";
+    public static final String POWER_SERVICE = "power";
+    public static final int MODE_PRIVATE = 0;
+
+    private static final JobScheduler sJobScheduler = new JobScheduler();
+    private static final AlarmManager sAlarmManager = new AlarmManager();
+    private static final PowerManager sPowerManager = new PowerManager();
+    private static final Map<String, SharedPreferences> sPreferences = new HashMap<>();
+    private static File sFilesDir;
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public String getPackageName() {
+        return "com.transistorsoft.tsbackgroundfetch.benchmarks";
+    }
+
+    public ApplicationInfo getApplicationInfo() {
+        return new ApplicationInfo();
+    }
+
+    public Object getSystemService(String name) {
+        switch (name) {
+            case JOB_SCHEDULER_SERVICE: return sJobScheduler;
+            case ALARM_SERVICE: return sAlarmManager;
+            case POWER_SERVICE: return sPowerManager;
+            default: return null;
+        }
+    }
+
+    public File getFilesDir() {
+        synchronized (Context.class) {
+            if (sFilesDir == null) {
+                try {
+                    sFilesDir = Files.createTempDirectory("tsbackgroundfetch").toFile();
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+                sFilesDir.deleteOnExit();
+            }
+            return sFilesDir;
+        }
+    }
+
+    public SharedPreferences getSharedPreferences(String name, int mode) {
+        synchronized (sPreferences) {
+            SharedPreferences preferences = sPreferences.get(name);
+            if (preferences == null) {
+                preferences = new MemorySharedPreferences();
+                sPreferences.put(name, preferences);
+            }
+            return preferences;
+        }
+    }
+
+    public boolean deleteSharedPreferences(String name) {
+        synchronized (sPreferences) {
+            return sPreferences.remove(name) != null;
+        }
+    }
+}
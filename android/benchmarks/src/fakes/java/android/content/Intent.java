@@ -0,0 +1,39 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class Intent {
+    private String mAction;
+    private final Map<String, Object> mExtras = new HashMap<>();
+
+    public Intent() {}
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public Intent(Context context, Class<?> cls) {}
+
+    public Intent setAction(String action) { mAction = action; return this; }
+    public String getAction() { return mAction; }
+    public boolean hasExtra(String name) { return mExtras.containsKey(name); }
+
+    public Intent putExtra(String name, String value) { mExtras.put(name, value); return this; }
+    public Intent putExtra(String name, boolean value) { mExtras.put(name, value); return this; }
+    public Intent putExtra(String name, int value) { mExtras.put(name, value); return this; }
+    public Intent putExtra(String name, long value) { mExtras.put(name, value); return this; }
+    public Intent putExtra(String name, float value) { mExtras.put(name, value); return this; }
+
+    public String getStringExtra(String name) { return (String) mExtras.get(name); }
+    public boolean getBooleanExtra(String name, boolean defValue) { return get(name, defValue); }
+    public int getIntExtra(String name, int defValue) { return get(name, defValue); }
+    public long getLongExtra(String name, long defValue) { return get(name, defValue); }
+    public float getFloatExtra(String name, float defValue) { return get(name, defValue); }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(String name, T defValue) {
+        Object value = mExtras.get(name);
+        return ((value != null) && (value.getClass() == defValue.getClass())) ? (T) value : defValue;
+    }
+}
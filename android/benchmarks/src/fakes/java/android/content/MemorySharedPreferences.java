@@ -0,0 +1,66 @@
+package android.content;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+class MemorySharedPreferences implements SharedPreferences {
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    @Override public synchronized boolean contains(String key) { return mValues.containsKey(key); }
+    @Override public synchronized Map<String, ?> getAll() { return new HashMap<>(mValues); }
+    @Override public String getString(String key, String defValue) { return get(key, defValue); }
+    @Override public boolean getBoolean(String key, boolean defValue) { return get(key, defValue); }
+    @Override public int getInt(String key, int defValue) { return get(key, defValue); }
+    @Override public long getLong(String key, long defValue) { return get(key, defValue); }
+    @Override public float getFloat(String key, float defValue) { return get(key, defValue); }
+    @Override public Set<String> getStringSet(String key, Set<String> defValues) { return get(key, defValues); }
+
+    @SuppressWarnings("unchecked")
+    private synchronized <T> T get(String key, T defValue) {
+        return mValues.containsKey(key) ? (T) mValues.get(key) : defValue;
+    }
+
+    @Override
+    public Editor edit() {
+        return new Editor() {
+            private final Map<String, Object> mChanges = new HashMap<>();
+            private boolean mClear = false;
+
+            @Override public Editor putString(String key, String value) { mChanges.put(key, value); return this; }
+            @Override public Editor putBoolean(String key, boolean value) { mChanges.put(key, value); return this; }
+            @Override public Editor putInt(String key, int value) { mChanges.put(key, value); return this; }
+            @Override public Editor putLong(String key, long value) { mChanges.put(key, value); return this; }
+            @Override public Editor putFloat(String key, float value) { mChanges.put(key, value); return this; }
+            @Override public Editor putStringSet(String key, Set<String> values) {
+                mChanges.put(key, (values != null) ? new HashSet<>(values) : null);
+                return this;
+            }
+            @Override public Editor remove(String key) { mChanges.put(key, null); return this; }
+            @Override public Editor clear() { mClear = true; return this; }
+
+            @Override
+            public boolean commit() {
+                synchronized (MemorySharedPreferences.this) {
+                    if (mClear) {
+                        mValues.clear();
+                    }
+                    for (Map.Entry<String, Object> change : mChanges.entrySet()) {
+                        if (change.getValue() == null) {
+                            mValues.remove(change.getKey());
+                        } else {
+                            mValues.put(change.getKey(), change.getValue());
+                        }
+                    }
+                }
+                return true;
+            }
+
+            @Override
+            public void apply() {
+                commit();
+            }
+        };
+    }
+}
@@ -0,0 +1,29 @@
+package android.content;
+
+import java.util.Map;
+import java.util.Set;
+
+public interface SharedPreferences {
+    boolean contains(String key);
+    Map<String, ?> getAll();
+    String getString(String key, String defValue);
+    boolean getBoolean(String key, boolean defValue);
+    int getInt(String key, int defValue);
+    long getLong(String key, long defValue);
+    float getFloat(String key, float defValue);
+    Set<String> getStringSet(String key, Set<String> defValues);
+    Editor edit();
+
+    interface Editor {
+        Editor putString(String key, String value);
+        Editor putBoolean(String key, boolean value);
+        Editor putInt(String key, int value);
+        Editor putLong(String key, long value);
+        Editor putFloat(String key, float value);
+        Editor putStringSet(String key, Set<String> values);
+        Editor remove(String key);
+        Editor clear();
+        boolean commit();
+        void apply();
+    }
+}
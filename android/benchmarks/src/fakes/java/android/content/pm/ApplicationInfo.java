@@ -0,0 +1,8 @@
+package android.content.pm;
+
+public class ApplicationInfo {
+    public static final int FLAG_DEBUGGABLE = 1 << 1;
+
+    // A release build, so Logger defaults to INFO as it would in production.
+    public int flags = 0;
+}
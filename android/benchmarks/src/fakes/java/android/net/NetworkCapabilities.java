@@ -0,0 +1,12 @@
+package android.net;
+
+public class NetworkCapabilities {
+    public static final int NET_CAPABILITY_NOT_METERED = 11;
+    public static final int NET_CAPABILITY_INTERNET = 12;
+    public static final int NET_CAPABILITY_NOT_RESTRICTED = 13;
+    public static final int NET_CAPABILITY_NOT_VPN = 15;
+    public static final int NET_CAPABILITY_VALIDATED = 16;
+    public static final int NET_CAPABILITY_NOT_ROAMING = 18;
+    public static final int NET_CAPABILITY_NOT_CONGESTED = 20;
+    public static final int TRANSPORT_CELLULAR = 0;
+}
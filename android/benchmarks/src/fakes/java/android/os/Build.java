@@ -0,0 +1,23 @@
+package android.os;
+
+public class Build {
+    public static class VERSION {
+        // The library's targetSdkVersion, so the newest code paths are measured.
+        public static final int SDK_INT = VERSION_CODES.UPSIDE_DOWN_CAKE;
+    }
+
+    public static class VERSION_CODES {
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int LOLLIPOP_MR1 = 22;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+        public static final int P = 28;
+        public static final int Q = 29;
+        public static final int R = 30;
+        public static final int S = 31;
+        public static final int TIRAMISU = 33;
+        public static final int UPSIDE_DOWN_CAKE = 34;
+    }
+}
@@ -0,0 +1,19 @@
+package android.os;
+
+/**
+ * Never reports events.
+ */
+public abstract class FileObserver {
+    public static final int MODIFY = 0x00000002;
+    public static final int CLOSE_WRITE = 0x00000008;
+    public static final int MOVED_TO = 0x00000080;
+    public static final int CREATE = 0x00000100;
+
+    public FileObserver(String path, int mask) {}
+
+    public void startWatching() {}
+
+    public void stopWatching() {}
+
+    public abstract void onEvent(int event, String path);
+}
@@ -0,0 +1,29 @@
+package android.os;
+
+/**
+ * Runs posted work on a single daemon thread.
+ */
+public class Handler {
+    private static final java.util.concurrent.ScheduledExecutorService sExecutor =
+            java.util.concurrent.Executors.newSingleThreadScheduledExecutor(new java.util.concurrent.ThreadFactory() {
+                @Override public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "main");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    public Handler(Looper looper) {}
+
+    public boolean post(Runnable runnable) {
+        sExecutor.execute(runnable);
+        return true;
+    }
+
+    public boolean postDelayed(Runnable runnable, long delayMillis) {
+        sExecutor.schedule(runnable, delayMillis, java.util.concurrent.TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    public void removeCallbacks(Runnable runnable) {}
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+public class Looper {
+    private static final Looper sMainLooper = new Looper();
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    // No thread of ours is a Looper thread.
+    public static Looper myLooper() {
+        return null;
+    }
+}
@@ -0,0 +1,28 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Map;
+
+public class PersistableBundle {
+    private final Map<String, Object> mValues = new HashMap<>();
+
+    public boolean containsKey(String key) { return mValues.containsKey(key); }
+
+    public void putString(String key, String value) { mValues.put(key, value); }
+    public void putInt(String key, int value) { mValues.put(key, value); }
+    public void putLong(String key, long value) { mValues.put(key, value); }
+    public void putDouble(String key, double value) { mValues.put(key, value); }
+
+    public String getString(String key) { return (String) mValues.get(key); }
+    public int getInt(String key) { return getInt(key, 0); }
+    public int getInt(String key, int defValue) { return get(key, defValue); }
+    public long getLong(String key) { return getLong(key, 0L); }
+    public long getLong(String key, long defValue) { return get(key, defValue); }
+    public double getDouble(String key, double defValue) { return get(key, defValue); }
+
+    @SuppressWarnings("unchecked")
+    private <T> T get(String key, T defValue) {
+        Object value = mValues.get(key);
+        return ((value != null) && (value.getClass() == defValue.getClass())) ? (T) value : defValue;
+    }
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+public class PowerManager {
+    public static final int PARTIAL_WAKE_LOCK = 1;
+
+    public WakeLock newWakeLock(int levelAndFlags, String tag) {
+        return new WakeLock();
+    }
+
+    public static class WakeLock {
+        private boolean mHeld;
+
+        public synchronized void acquire(long timeout) { mHeld = true; }
+        public synchronized boolean isHeld() { return mHeld; }
+        public synchronized void release() { mHeld = false; }
+    }
+}
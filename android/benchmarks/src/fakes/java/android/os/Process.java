@@ -0,0 +1,17 @@
+package android.os;
+
+public class Process {
+    public static final int THREAD_PRIORITY_FOREGROUND = -2;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static int myPid() {
+        return 1;
+    }
+
+    @SuppressWarnings("deprecation")
+    public static int myTid() {
+        return (int) Thread.currentThread().getId();
+    }
+
+    public static void setThreadPriority(int priority) {}
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+public class Trace {
+    public static boolean isEnabled() { return false; }
+    public static void beginSection(String sectionName) {}
+    public static void endSection() {}
+    public static void beginAsyncSection(String methodName, int cookie) {}
+    public static void endAsyncSection(String methodName, int cookie) {}
+}
@@ -0,0 +1,27 @@
+package android.util;
+
+/**
+ * Discards everything, so benchmarks measure the library rather than console output.
+ */
+public class Log {
+    public static final int VERBOSE = 2;
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+    public static final int ASSERT = 7;
+
+    public static int println(int priority, String tag, String msg) {
+        return 0;
+    }
+
+    public static int e(String tag, String msg) {
+        return 0;
+    }
+
+    public static String getStackTraceString(Throwable tr) {
+        java.io.StringWriter writer = new java.io.StringWriter();
+        tr.printStackTrace(new java.io.PrintWriter(writer));
+        return writer.toString();
+    }
+}
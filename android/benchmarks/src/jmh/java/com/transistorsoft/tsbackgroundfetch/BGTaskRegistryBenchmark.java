@@ -0,0 +1,114 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BGTask's static task registry, read on every event / finish() and written when a job starts or finishes,
+ * from the main thread, the executor and the timer at once.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BGTaskRegistryBenchmark {
+    // A power of 2, see Cursor.
+    private static final int TASK_COUNT = 64;
+
+    private BGTask[] mTasks;
+    private String[] mTaskIds;
+    private String[] mMixedCaseTaskIds;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        // Threads start at different tasks.
+        private int mIndex = ThreadLocalRandom.current().nextInt(TASK_COUNT);
+
+        int next() {
+            mIndex = (mIndex + 1) & (TASK_COUNT - 1);
+            return mIndex;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        Context context = new Context();
+        mTasks = new BGTask[TASK_COUNT];
+        mTaskIds = new String[TASK_COUNT];
+        mMixedCaseTaskIds = new String[TASK_COUNT];
+        for (int i = 0; i < TASK_COUNT; i++) {
+            mTaskIds[i] = "com.transistorsoft.task." + i;
+            mMixedCaseTaskIds[i] = mTaskIds[i].toUpperCase(Locale.US);
+            mTasks[i] = new BGTask(context, mTaskIds[i], new FetchJobService.CompletionHandler() {
+                @Override public void finish() {}
+            }, i + 1, TimeUnit.HOURS.toMillis(1), 0);
+            BGTask.addTask(mTasks[i]);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (BGTask task : mTasks) {
+            task.finish();
+        }
+        BGTask.clear();
+    }
+
+    @Benchmark
+    @Threads(4)
+    public BGTask lookup(Cursor cursor) {
+        return BGTask.getTask(mTaskIds[cursor.next()]);
+    }
+
+    // taskIds which have to be case-folded first.
+    @Benchmark
+    @Threads(4)
+    public BGTask lookupMixedCase(Cursor cursor) {
+        return BGTask.getTask(mMixedCaseTaskIds[cursor.next()]);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void addRemove(Cursor cursor) {
+        BGTask task = mTasks[cursor.next()];
+        BGTask.removeTask(task.getTaskId());
+        BGTask.addTask(task);
+    }
+
+    // Readers racing a writer, the usual shape:  events look tasks up while a job starts or finishes.
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public BGTask mixedLookup(Cursor cursor) {
+        return BGTask.getTask(mTaskIds[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedAddRemove(Cursor cursor) {
+        BGTask task = mTasks[cursor.next()];
+        BGTask.removeTask(task.getTaskId());
+        BGTask.addTask(task);
+    }
+}
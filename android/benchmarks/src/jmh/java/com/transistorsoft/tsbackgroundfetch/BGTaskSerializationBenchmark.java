@@ -0,0 +1,60 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.content.Context;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The event payloads handed to the plugins' callbacks and headless tasks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BGTaskSerializationBenchmark {
+    private BGTask mTask;
+
+    @Setup
+    public void setUp() {
+        mTask = new BGTask(new Context(), "com.transistorsoft.fetch", new FetchJobService.CompletionHandler() {
+            @Override public void finish() {}
+        }, 999, TimeUnit.HOURS.toMillis(1), 0);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mTask.finish();
+    }
+
+    @Benchmark
+    public Map<String, Object> toMap() {
+        return mTask.toMap();
+    }
+
+    @Benchmark
+    public JSONObject toJson() {
+        return mTask.toJson();
+    }
+
+    // As sent across the bridge.
+    @Benchmark
+    public String toJsonString() {
+        return mTask.toJson().toString();
+    }
+}
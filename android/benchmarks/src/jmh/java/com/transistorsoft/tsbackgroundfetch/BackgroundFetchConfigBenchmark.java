@@ -0,0 +1,77 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.app.job.JobInfo;
+import android.content.Context;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building, printing and persisting a task config, as done on every configure / scheduleTask and on every
+ * cold-launch fetch.  Persistence goes through a {@link FakeConfigStore}.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BackgroundFetchConfigBenchmark {
+    private static final String TASK_ID = "com.transistorsoft.fetch";
+
+    private Context mContext;
+    private BackgroundFetchConfig mConfig;
+
+    @Setup
+    public void setUp() {
+        mContext = new Context();
+        BackgroundFetch.setConfigStore(new FakeConfigStore());
+        mConfig = build();
+        mConfig.save(mContext);
+    }
+
+    @TearDown
+    public void tearDown() {
+        BackgroundFetch.setConfigStore(null);
+    }
+
+    // A typical fetch task, as configured by the Cordova / React Native / Flutter plugins.
+    @Benchmark
+    public BackgroundFetchConfig build() {
+        return new BackgroundFetchConfig.Builder()
+                .setTaskId(TASK_ID)
+                .setIsFetchTask(true)
+                .setMinimumFetchInterval(15)
+                .setStopOnTerminate(false)
+                .setStartOnBoot(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY)
+                .setJobService("com.transistorsoft.rnbackgroundfetch.HeadlessTask")
+                .build();
+    }
+
+    @Benchmark
+    public String toStringConfig() {
+        return mConfig.toString();
+    }
+
+    @Benchmark
+    public void save() {
+        mConfig.save(mContext);
+    }
+
+    @Benchmark
+    public BackgroundFetchConfig load() {
+        return BackgroundFetch.getConfigStore(mContext).load(TASK_ID);
+    }
+}
@@ -0,0 +1,83 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The checks FetchJobService makes on every onStartJob before any task is created.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DuplicateJobFilterBenchmark {
+    // More tasks than the filter tracks, so eviction is part of the accepted path.
+    private static final int TASK_COUNT = 128;
+
+    @State(Scope.Benchmark)
+    public static class Filter {
+        /**
+         * 0:  every start is accepted (and recorded).  3600000:  after the first round, every start is
+         * suppressed as a duplicate.
+         */
+        @Param({"0", "3600000"})
+        public long window;
+
+        private DuplicateJobFilter mFilter;
+        private String[] mTaskIds;
+        private int mIndex;
+
+        @Setup
+        public void setUp() {
+            mFilter = new DuplicateJobFilter();
+            mFilter.setWindow(window);
+            mTaskIds = new String[TASK_COUNT];
+            for (int i = 0; i < TASK_COUNT; i++) {
+                mTaskIds[i] = "com.transistorsoft.task." + i;
+            }
+        }
+
+        String nextTaskId() {
+            mIndex = (mIndex + 1) % TASK_COUNT;
+            return mTaskIds[mIndex];
+        }
+    }
+
+    private DuplicateJobFilter mFilter;
+    private PersistableBundle mExtras;
+
+    @Setup
+    public void setUp() {
+        mFilter = new DuplicateJobFilter();
+        mExtras = new PersistableBundle();
+        mExtras.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT, System.currentTimeMillis());
+        // Scheduled long ago:  not an initial fire, which is the common case.
+        mExtras.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, SystemClock.elapsedRealtime() - 60000L);
+    }
+
+    @Benchmark
+    public boolean isDuplicate(Filter filter) {
+        return filter.mFilter.isDuplicate(filter.nextTaskId());
+    }
+
+    @Benchmark
+    public boolean isInitialFire() {
+        return mFilter.isInitialFire(mExtras);
+    }
+}
@@ -0,0 +1,43 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory {@link ConfigStore}.  Like the real stores, it keeps {@link BackgroundFetchConfig#toFields()} and
+ * rebuilds configs from them, so save / load measure the config's own serialization without any I/O.
+ */
+class FakeConfigStore implements ConfigStore {
+    private final Map<String, Map<String, Object>> mFields = new ConcurrentHashMap<>();
+
+    @Override
+    public List<BackgroundFetchConfig> loadAll() {
+        List<BackgroundFetchConfig> result = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> entry : mFields.entrySet()) {
+            result.add(toConfig(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    @Override
+    public BackgroundFetchConfig load(String taskId) {
+        Map<String, Object> fields = mFields.get(taskId);
+        return (fields != null) ? toConfig(taskId, fields) : null;
+    }
+
+    @Override
+    public void save(BackgroundFetchConfig config) {
+        mFields.put(config.getTaskId(), config.toFields());
+    }
+
+    @Override
+    public void remove(String taskId) {
+        mFields.remove(taskId);
+    }
+
+    private static BackgroundFetchConfig toConfig(String taskId, Map<String, Object> fields) {
+        return new BackgroundFetchConfig.Builder().setTaskId(taskId).setFields(fields).build();
+    }
+}
@@ -1,6 +1,7 @@
 package com.transistorsoft.tsbackgroundfetch;
 
 import android.annotation.SuppressLint;
+import android.annotation.TargetApi;
 import android.app.AlarmManager;
 import android.app.PendingIntent;
 import android.app.job.JobInfo;
@@ -8,9 +9,12 @@ import android.app.job.JobScheduler;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
 import android.os.Build;
+import android.os.Looper;
 import android.os.PersistableBundle;
-import android.util.Log;
+import android.os.SystemClock;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -23,74 +27,164 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class BGTask {
     static int MAX_TIME = 60000;
+    // Once timed-out, how long the plugin has to call finish before we complete the job ourselves.
+    // Matches the wake-lock buffer in FetchAlarmReceiver.
+    static int TIMEOUT_GRACE = 4000;
+
+    // Scheduling details carried in JobInfo / alarm Intent extras, for TaskMetrics.
+    static final String EXTRA_INTERVAL = "interval";
+    static final String EXTRA_PERIODIC = "periodic";
+    // The task's time budget, so that it's known before its config has loaded.
+    static final String EXTRA_TIMEOUT = "timeout";
+    static final String EXTRA_SOFT_DEADLINE_FRACTION = "softDeadlineFraction";
+
+    /**
+     * Notified when a task reaches its soft deadline (see BackgroundFetchConfig.Builder#setSoftDeadlineFraction),
+     * on the main thread.  For headless tasks, which don't receive Callback.onDeadlineWarning.
+     */
+    public interface DeadlineListener {
+        void onDeadlineWarning(BGTask task, long remainingTime);
+    }
 
-    private static final List<BGTask> mTasks = new ArrayList<>();
+    private static final TaskRegistry<BGTask> mTasks = new TaskRegistry<>();
 
     static BGTask getTask(String taskId) {
-        synchronized (mTasks) {
-            for (BGTask task : mTasks) {
-                if (task.hasTaskId(taskId)) return task;
-            }
-        }
-        return null;
+        return mTasks.get(taskId);
     }
 
     static void addTask(BGTask task) {
-        synchronized (mTasks) {
-            mTasks.add(task);
+        if (task.getTaskId() == null) {
+            // Eg: a job without extras.  It could never be looked up.
+            Logger.w("[BGTask] not registering a task without taskId (jobId: {})", task.getJobId());
+            return;
         }
+        mTasks.put(task.getTaskId(), task);
     }
 
     static void removeTask(String taskId) {
-        synchronized (mTasks) {
-            BGTask found = null;
-            for (BGTask task : mTasks) {
-                if (task.hasTaskId(taskId)) {
-                    found = task;
-                    break;
-                }
-            }
-            if (found != null) {
-                mTasks.remove(found);
-            }
-        }
+        mTasks.remove(taskId);
     }
 
     static void clear() {
-        synchronized (mTasks) {
-            mTasks.clear();
-        }
+        mTasks.clear();
     }
 
     private final List<FetchJobService.CompletionHandler> mCompletionHandlers = new ArrayList<>();
+    private final Context mContext;
     private String mTaskId;
     private int mJobId;
-    private Runnable mTimeoutTask;
-    private boolean mTimedout = false;
-    private boolean mFinished = false;
+    private volatile HashedWheelTimer.Timeout mTimeout;
+    private volatile boolean mTimedout = false;
+    private final AtomicBoolean mFinished = new AtomicBoolean(false);
+    // Tasks dispatched alongside this one in the same job (see JobBatcher).
+    private final List<BGTask> mBatch = new ArrayList<>();
+    private volatile long mDispatchedAt = 0;
+    private final long mStartedAt;
+    private final long mTimeoutMs;
+    private volatile HashedWheelTimer.Timeout mWarning;
+    private volatile boolean mDeadlineWarned = false;
+    private volatile DeadlineListener mDeadlineListener;
+    private volatile int mAttempt = 1;
+    private final CancellationToken mCancellationToken = new CancellationToken();
+    private volatile Runnable mOnFinished;
+    // Handed to a BackgroundFetch.Worker, whose timeout signal is the CancellationToken.
+    private volatile boolean mRunByWorker = false;
+    // Run once the completion handlers have reported this task done;  null once they have.  Guarded by
+    // mCompletionHandlers.
+    private List<Runnable> mAfterFinished = new ArrayList<>();
+    private volatile TaskLease mLease;
 
     BGTask(final Context context, String taskId, FetchJobService.CompletionHandler handler, int jobId) {
+        this(context, taskId, handler, jobId, MAX_TIME, 0);
+    }
+
+    /**
+     * @param timeout execution time budget in ms.
+     * @param softDeadlineFraction fraction of timeout after which to warn of the deadline, or 0 for none.
+     */
+    BGTask(final Context context, String taskId, FetchJobService.CompletionHandler handler, int jobId, long timeout, float softDeadlineFraction) {
+        mContext = context.getApplicationContext();
         mTaskId = taskId;
         mCompletionHandlers.add(handler);
         mJobId = jobId;
+        mStartedAt = SystemClock.elapsedRealtime();
+        mTimeoutMs = (timeout > 0) ? timeout : MAX_TIME;
+        Tracer.asyncBegin("BGTask", System.identityHashCode(this), taskId);
+
+        if ((softDeadlineFraction > 0) && (softDeadlineFraction < 1)) {
+            mWarning = BackgroundFetch.getTimer().schedule(new Runnable() {
+                @Override public void run() {
+                    onDeadlineWarning(context);
+                }
+            }, (long) (mTimeoutMs * softDeadlineFraction));
+        }
 
-        mTimeoutTask = new Runnable() {
+        // Timeouts run on the timer thread so they're not delayed by a busy main thread.
+        mTimeout = BackgroundFetch.getTimer().schedule(new Runnable() {
             @Override public void run() {
                 onTimeout(context);
+                if (!mFinished.get()) {
+                    mTimeout = BackgroundFetch.getTimer().schedule(new Runnable() {
+                        @Override public void run() {
+                            onExpired();
+                        }
+                    }, TIMEOUT_GRACE);
+                }
             }
-        };
-        BackgroundFetch.getUiHandler().postDelayed(mTimeoutTask, MAX_TIME);
+        }, mTimeoutMs);
     }
 
     public boolean getTimedOut() {
         return mTimedout;
     }
 
+    boolean isFinished() {
+        return mFinished.get();
+    }
+
     public String getTaskId() { return mTaskId; }
 
+    /**
+     * @return this run's cancellation signal:  cancelled when the OS stops the job, on timeout, and on stop().
+     */
+    public CancellationToken getCancellationToken() { return mCancellationToken; }
+
+    /**
+     * @return which attempt this run is:  1, or 1 + the retry number when retrying a failed run.
+     */
+    public int getAttempt() { return mAttempt; }
+
+    void setAttempt(int attempt) { mAttempt = Math.max(1, attempt); }
+
+    /**
+     * @return this run's execution time budget in ms.
+     */
+    public long getTimeout() { return mTimeoutMs; }
+
+    /**
+     * @return ms remaining until this task times out, or 0 once it has (or has finished).
+     */
+    public long getRemainingTime() {
+        if (mFinished.get() || mTimedout) return 0;
+        return Math.max(0, mTimeoutMs - (SystemClock.elapsedRealtime() - mStartedAt));
+    }
+
+    /**
+     * Listen for this task's soft-deadline warning.  If the warning has already fired, the listener is
+     * notified immediately.
+     */
+    public void setDeadlineListener(DeadlineListener listener) {
+        mDeadlineListener = listener;
+        if ((listener != null) && mDeadlineWarned && !mFinished.get()) {
+            listener.onDeadlineWarning(this, getRemainingTime());
+        }
+    }
+
     int getJobId() { return mJobId; }
 
     boolean hasTaskId(String taskId) {
@@ -103,21 +197,172 @@ public class BGTask {
         }
     }
 
+    /**
+     * Move the completion handlers into handlers and make join the only one, so that join may defer them.  Atomic
+     * with finish():  either finish() calls the original handlers, or it calls join.
+     *
+     * @return false, changing nothing, if finish() has already called the handlers.
+     */
+    boolean joinCompletionHandlers(FetchJobService.CompletionHandler join, List<FetchJobService.CompletionHandler> handlers) {
+        synchronized (mCompletionHandlers) {
+            if (mAfterFinished == null) {
+                return false;
+            }
+            handlers.addAll(mCompletionHandlers);
+            mCompletionHandlers.clear();
+            mCompletionHandlers.add(join);
+            return true;
+        }
+    }
+
+    void addBatchMember(BGTask task) {
+        synchronized (mBatch) {
+            mBatch.add(task);
+        }
+    }
+
+    List<BGTask> getBatch() {
+        synchronized (mBatch) {
+            return new ArrayList<>(mBatch);
+        }
+    }
+
+    /**
+     * Run once this task finishes (see TaskLimiter).
+     */
+    void setOnFinished(Runnable onFinished) {
+        mOnFinished = onFinished;
+    }
+
+    /**
+     * Run action once every completion handler has reported this task's job done (see
+     * {@link FetchJobService.CompletionHandler#finish(boolean, Runnable)}), eg: to schedule the job anew.
+     * Runs now if that has already happened.
+     */
+    void runAfterFinished(Runnable action) {
+        synchronized (mCompletionHandlers) {
+            if (mAfterFinished != null) {
+                mAfterFinished.add(action);
+                return;
+            }
+        }
+        action.run();
+    }
+
+    /**
+     * @return a Runnable which runs actions on its count'th invocation, or null if count is 0, in which case
+     * they've been run already.
+     */
+    static Runnable afterAll(int count, final List<Runnable> actions) {
+        if (count <= 0) {
+            for (Runnable action : actions) {
+                action.run();
+            }
+            return null;
+        }
+        final AtomicInteger remaining = new AtomicInteger(count);
+        return new Runnable() {
+            @Override public void run() {
+                if (remaining.decrementAndGet() == 0) {
+                    for (Runnable action : actions) {
+                        action.run();
+                    }
+                }
+            }
+        };
+    }
+
+    /**
+     * Held until this task finishes, keeping other processes from running the same taskId meanwhile.
+     */
+    void setLease(TaskLease lease) {
+        mLease = lease;
+    }
+
+    void setRunByWorker() {
+        mRunByWorker = true;
+    }
+
+    /**
+     * The event has been handed to the app (callback or headless task).  Handler duration runs from here.
+     */
+    void onDispatched() {
+        mDispatchedAt = SystemClock.elapsedRealtime();
+    }
+
     void finish() {
-        if (mFinished) return;
-        mFinished = true;
+        finish(false);
+    }
+
+    /**
+     * Finish, asking the OS to re-run the job under its backoff criteria (see FetchJobService).
+     *
+     * @return false if that's not possible (alarm-backed, batched, or already finished):  the caller
+     * must schedule the retry itself.  The task is finished either way.
+     */
+    boolean finishAndRetry() {
+        return finish(true);
+    }
+
+    private boolean finish(boolean retry) {
+        if (!mFinished.compareAndSet(false, true)) return false;
+        Tracer.begin("BGTask.finish", mTaskId);
+
+        long dispatchedAt = mDispatchedAt;
+        long duration = (dispatchedAt > 0) ? (SystemClock.elapsedRealtime() - dispatchedAt) : -1;
+        if (duration >= 0) {
+            TaskMetrics.forTask(mTaskId).onFinish(duration);
+        }
+        BackgroundFetch.getJournal(mContext).record(ExecutionJournal.EVENT_FINISHED, mTaskId, mJobId, duration);
+        long cancelledAt = mCancellationToken.getCancelledAt();
+        if ((cancelledAt > 0) && (mCancellationToken.getReason() != CancellationToken.REASON_STOPPED)) {
+            // How long the handler kept running after being cancelled.  (stop() finishes synchronously.)
+            TaskMetrics.forTask(mTaskId).onCancelledFinish(SystemClock.elapsedRealtime() - cancelledAt);
+        }
 
-        if (mTimeoutTask != null) {
-            BackgroundFetch.getUiHandler().removeCallbacks(mTimeoutTask);
-            mTimeoutTask = null;
+        HashedWheelTimer.Timeout timeout = mTimeout;
+        if (timeout != null) {
+            timeout.cancel();
+            mTimeout = null;
+        }
+        HashedWheelTimer.Timeout warning = mWarning;
+        if (warning != null) {
+            warning.cancel();
+            mWarning = null;
         }
+        boolean retried = retry;
         synchronized (mCompletionHandlers) {
+            List<Runnable> after = mAfterFinished;
+            mAfterFinished = null;
+            Runnable next = after.isEmpty() ? null : afterAll(mCompletionHandlers.size(), after);
             for (FetchJobService.CompletionHandler handler : mCompletionHandlers) {
-                handler.finish();
+                retried &= handler.finish(retry, next);
             }
+            retried &= !mCompletionHandlers.isEmpty();
             mCompletionHandlers.clear();
         }
-        removeTask(mTaskId);
+        // Only remove our own entry:  a newer task for the same taskId may already have replaced us.
+        mTasks.remove(mTaskId, this);
+        TaskLease lease = mLease;
+        if (lease != null) {
+            mLease = null;
+            lease.release();
+        }
+        Runnable onFinished = mOnFinished;
+        if (onFinished != null) {
+            onFinished.run();
+        }
+        Tracer.end("BGTask.finish");
+        Tracer.asyncEnd("BGTask", System.identityHashCode(this));
+        return retried;
+    }
+
+    // The task has timed-out and the plugin still hasn't called finish:  complete the job ourselves
+    // rather than let the OS stop it.
+    private void onExpired() {
+        if (mFinished.get()) return;
+        Logger.w("[BGTask] {} was not finished {}ms after timeout.  Forcing finish.", mTaskId, TIMEOUT_GRACE);
+        finish();
     }
 
     static void reschedule(Context context, BackgroundFetchConfig existing, BackgroundFetchConfig config) {
@@ -131,33 +376,64 @@ public class BGTask {
     }
 
     static void schedule(Context context, BackgroundFetchConfig config) {
-        Log.d(BackgroundFetch.TAG, config.toString());
+        Logger.d("- schedule: {}", config);
+
+        long interval = (config.isFetchTask()) ? (TimeUnit.MINUTES.toMillis(config.getEffectiveFetchInterval())) : config.getDelay();
+        schedule(context, config, interval, config.getPeriodic());
+    }
 
-        long interval = (config.isFetchTask()) ? (TimeUnit.MINUTES.toMillis(config.getMinimumFetchInterval())) : config.getDelay();
+    /**
+     * Schedule a one-shot retry of config after delay ms, replacing its regular job / alarm until the
+     * task is next scheduled.  For runs the OS can't retry itself (see {@link #finishAndRetry()}).
+     */
+    static void scheduleRetry(Context context, BackgroundFetchConfig config, long delay) {
+        Logger.d("- scheduleRetry: {} in {}ms", config.getTaskId(), delay);
+        schedule(context, config, delay, false);
+    }
 
+    private static void schedule(Context context, BackgroundFetchConfig config, long interval, boolean periodic) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && !config.getForceAlarmManager()) {
             // API 21+ uses new JobScheduler API
 
             JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
             @SuppressLint("WrongConstant")
             JobInfo.Builder builder = new JobInfo.Builder(config.getJobId(), new ComponentName(context, FetchJobService.class))
-                    .setRequiredNetworkType(config.getRequiredNetworkType())
+                    .setRequiredNetworkType(config.getEffectiveNetworkType())
                     .setRequiresDeviceIdle(config.getRequiresDeviceIdle())
                     .setRequiresCharging(config.getRequiresCharging())
                     .setPersisted(config.getStartOnBoot() && !config.getStopOnTerminate());
 
-            if (config.getPeriodic()) {
+            if ((config.getMaxRetries() > 0) && !config.getRequiresDeviceIdle()) {
+                // Idle jobs can't have backoff criteria:  JobScheduler retries them in the next idle window instead.
+                builder.setBackoffCriteria(config.getRetryDelay(), config.getRetryPolicy());
+            }
+
+            boolean expedited = (config.getPriority() == BackgroundFetchConfig.PRIORITY_EXPEDITED)
+                    && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S)
+                    && canExpedite(config, interval, periodic);
+            if (periodic) {
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
                     builder.setPeriodic(interval, interval);
                 } else {
                     builder.setPeriodic(interval);
                 }
-            } else {
+            } else if (!expedited && ((interval > 0) || (Build.VERSION.SDK_INT < Build.VERSION_CODES.O))) {
+                // No delay is no constraint, which JobInfo accepts from O.
                 builder.setMinimumLatency(interval);
             }
+            if (expedited) {
+                builder.setExpedited(true);
+            } else {
+                applyPriority(builder, config, interval, periodic);
+            }
             PersistableBundle extras = new PersistableBundle();
             extras.putString(BackgroundFetchConfig.FIELD_TASK_ID, config.getTaskId());
-            extras.putLong("scheduled_at", System.currentTimeMillis());
+            extras.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT, System.currentTimeMillis());
+            extras.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, SystemClock.elapsedRealtime());
+            extras.putLong(EXTRA_INTERVAL, interval);
+            extras.putInt(EXTRA_PERIODIC, periodic ? 1 : 0);
+            extras.putLong(EXTRA_TIMEOUT, config.getTimeout());
+            extras.putDouble(EXTRA_SOFT_DEADLINE_FRACTION, config.getSoftDeadlineFraction());
 
             builder.setExtras(extras);
 
@@ -165,6 +441,16 @@ public class BGTask {
                 builder.setRequiresStorageNotLow(config.getRequiresStorageNotLow());
                 builder.setRequiresBatteryNotLow(config.getRequiresBatteryNotLow());
             }
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+                if (config.hasNetworkRequest()) {
+                    builder.setRequiredNetwork(buildNetworkRequest(config));
+                }
+                if (config.getEffectiveNetworkType() != JobInfo.NETWORK_TYPE_NONE) {
+                    // JobInfo rejects estimates on a job which doesn't require a network.
+                    builder.setEstimatedNetworkBytes(config.getEstimatedDownloadBytes(), config.getEstimatedUploadBytes());
+                }
+                builder.setPrefetch(config.getPrefetch());
+            }
             if (jobScheduler != null) {
                 jobScheduler.schedule(builder.build());
             }
@@ -172,9 +458,15 @@ public class BGTask {
             // Everyone else get AlarmManager
             AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
             if (alarmManager != null) {
-                PendingIntent pi = getAlarmPI(context, config.getTaskId());
+                Intent intent = getAlarmIntent(context, config.getTaskId());
+                intent.putExtra(DuplicateJobFilter.EXTRA_SCHEDULED_AT, System.currentTimeMillis());
+                intent.putExtra(EXTRA_INTERVAL, interval);
+                intent.putExtra(EXTRA_PERIODIC, periodic);
+                intent.putExtra(EXTRA_TIMEOUT, config.getTimeout());
+                intent.putExtra(EXTRA_SOFT_DEADLINE_FRACTION, config.getSoftDeadlineFraction());
+                PendingIntent pi = PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT|PendingIntent.FLAG_IMMUTABLE);
                 long delay = System.currentTimeMillis() + interval;
-                if (config.getPeriodic()) {
+                if (periodic) {
                     alarmManager.setRepeating(AlarmManager.RTC_WAKEUP, delay, interval, pi);
                 } else {
                     if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
@@ -197,10 +489,130 @@ public class BGTask {
         }
     }
 
-    void onTimeout(Context context) {
-        if (mFinished) return;
+    /**
+     * Expedited jobs run immediately and may only be constrained on network / storage.
+     */
+    private static boolean canExpedite(BackgroundFetchConfig config, long interval, boolean periodic) {
+        return !periodic && (interval <= 0)
+                && !config.getRequiresDeviceIdle()
+                && !config.getRequiresCharging()
+                && !config.getRequiresBatteryNotLow()
+                && !config.getPrefetch();
+    }
+
+    /**
+     * requiredNetworkType plus setRequiredNetwork's unmetered / not-congested requirements, on the capabilities
+     * JobInfo's own network types start from.
+     */
+    @TargetApi(28)
+    private static NetworkRequest buildNetworkRequest(BackgroundFetchConfig config) {
+        NetworkRequest.Builder request = new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED)
+                .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_VPN)
+                .removeCapability(NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED);
+        switch (config.getRequiredNetworkType()) {
+            case JobInfo.NETWORK_TYPE_UNMETERED:
+                request.addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+                break;
+            case JobInfo.NETWORK_TYPE_NOT_ROAMING:
+                request.addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_ROAMING);
+                break;
+            case JobInfo.NETWORK_TYPE_CELLULAR:
+                request.addTransportType(NetworkCapabilities.TRANSPORT_CELLULAR);
+                break;
+        }
+        if (config.getRequiresUnmetered()) {
+            request.addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_METERED);
+        }
+        if (config.getRequiresNotCongested()) {
+            request.addCapability(NetworkCapabilities.NET_CAPABILITY_NOT_CONGESTED);
+        }
+        return request.build();
+    }
+
+    /**
+     * Map a non-expedited priority onto what the platform offers:  JobInfo priorities on API 33+,
+     * importantWhileForeground for high priority on API 28 - 30, nothing before that.  JobInfo.Builder#build()
+     * rejects high priority periodic / prefetch jobs, and important-while-foreground jobs with a delay:  those keep
+     * the default priority.
+     */
+    @SuppressWarnings("deprecation")
+    private static void applyPriority(JobInfo.Builder builder, BackgroundFetchConfig config, long interval, boolean periodic) {
+        int priority = config.getPriority();
+        if (priority == BackgroundFetchConfig.PRIORITY_DEFAULT) {
+            return;
+        }
+        boolean high = priority > BackgroundFetchConfig.PRIORITY_DEFAULT;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
+            if (high && (periodic || config.getPrefetch())) {
+                Logger.w("[BGTask] {}: periodic and prefetch jobs can't be high priority:  using the default", config.getTaskId());
+                return;
+            }
+            builder.setPriority(high ? JobInfo.PRIORITY_HIGH : JobInfo.PRIORITY_LOW);
+        } else if (high && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) && (Build.VERSION.SDK_INT < Build.VERSION_CODES.S)) {
+            if (periodic || (interval > 0)) {
+                Logger.w("[BGTask] {}: delayed jobs can't be important while foreground:  using the default", config.getTaskId());
+                return;
+            }
+            builder.setImportantWhileForeground(true);
+        }
+    }
+
+    private void onDeadlineWarning(final Context context) {
+        mWarning = null;
+        if (mFinished.get() || mTimedout) return;
+        mDeadlineWarned = true;
+        Logger.d("[BGTask] deadline warning: {} ({}ms remaining)", mTaskId, getRemainingTime());
+
+        BackgroundFetch.getUiHandler().post(new Runnable() {
+            @Override public void run() {
+                if (mFinished.get() || mTimedout) return;
+                long remaining = getRemainingTime();
+                DeadlineListener listener = mDeadlineListener;
+                if (listener != null) {
+                    listener.onDeadlineWarning(BGTask.this, remaining);
+                }
+                if (!LifecycleManager.getInstance().isHeadless()) {
+                    BackgroundFetch.Callback callback = BackgroundFetch.getInstance(context).getFetchCallback();
+                    if (callback != null) {
+                        callback.onDeadlineWarning(mTaskId, remaining);
+                    }
+                }
+            }
+        });
+    }
+
+    void onTimeout(final Context context) {
+        if (mFinished.get()) return;
+        mCancellationToken.cancel(CancellationToken.REASON_TIMEOUT, 0);
+        // The OS stopping the job also ends up here, but it's counted as a stop (see FetchJobService#onStopJob).
+        if (!mTimedout && (mCancellationToken.getReason() == CancellationToken.REASON_TIMEOUT)) {
+            TaskMetrics.forTask(mTaskId).onTimeout();
+            BackgroundFetch.getJournal(context).record(ExecutionJournal.EVENT_TIMEOUT, mTaskId, mJobId, -1);
+        }
         mTimedout = true;
-        Log.d(BackgroundFetch.TAG, "[BGTask] timeout: " + mTaskId);
+        Logger.d("[BGTask] timeout: {}", mTaskId);
+        Tracer.instant("BGTask.onTimeout", mTaskId);
+
+        // Plugin callbacks and headless tasks expect the main thread.
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            notifyTimeout(context);
+        } else {
+            BackgroundFetch.getUiHandler().post(new Runnable() {
+                @Override public void run() {
+                    notifyTimeout(context);
+                }
+            });
+        }
+    }
+
+    private void notifyTimeout(Context context) {
+        if (mFinished.get()) return;
+        if (mRunByWorker) {
+            // The worker has already seen its token cancelled;  there's no Callback / headless task to notify.
+            return;
+        }
 
         BackgroundFetch adapter = BackgroundFetch.getInstance(context);
 
@@ -216,13 +628,13 @@ public class BGTask {
                     try {
                         fireHeadlessEvent(context, config);
                     } catch (BGTask.Error error) {
-                        Log.e(BackgroundFetch.TAG, "Headless task error: " + error.getMessage());
+                        Logger.e("Headless task error: {}", error.getMessage());
                     }
                 } else {
                     adapter.finish(mTaskId);
                 }
             } else {
-                Log.e(BackgroundFetch.TAG, "[BGTask] failed to load config for taskId: " + mTaskId);
+                Logger.e("[BGTask] failed to load config for taskId: {}", mTaskId);
                 adapter.finish(mTaskId);
             }
         }
@@ -265,7 +677,7 @@ public class BGTask {
     }
 
     static void cancel(Context context, String taskId, int jobId) {
-        Log.i(BackgroundFetch.TAG, "- cancel taskId=" + taskId + ", jobId=" + jobId);
+        Logger.i("- cancel taskId={}, jobId={}", taskId, jobId);
         if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && (jobId != 0)) {
             JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
             if (jobScheduler != null) {
@@ -280,9 +692,13 @@ public class BGTask {
     }
 
     static PendingIntent getAlarmPI(Context context, String taskId) {
+        return PendingIntent.getBroadcast(context, 0, getAlarmIntent(context, taskId), PendingIntent.FLAG_UPDATE_CURRENT|PendingIntent.FLAG_IMMUTABLE);
+    }
+
+    private static Intent getAlarmIntent(Context context, String taskId) {
         Intent intent = new Intent(context, FetchAlarmReceiver.class);
         intent.setAction(taskId);
-        return PendingIntent.getBroadcast(context, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT|PendingIntent.FLAG_IMMUTABLE);
+        return intent;
     }
 
     public String toString() {
@@ -293,6 +709,7 @@ public class BGTask {
         Map<String, Object> map = new HashMap<>();
         map.put("taskId", mTaskId);
         map.put("timeout", mTimedout);
+        map.put("attempt", mAttempt);
         return map;
     }
 
@@ -301,6 +718,7 @@ public class BGTask {
         try {
             json.put("taskId", mTaskId);
             json.put("timeout", mTimedout);
+            json.put("attempt", mAttempt);
         } catch (JSONException e) {
             e.printStackTrace();
         }
@@ -6,14 +6,26 @@ import android.content.Context;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Looper;
+import android.os.SystemClock;
 
-import android.util.Log;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Created by chris on 2018-01-11.
@@ -33,12 +45,25 @@ public class BackgroundFetch {
 
     public static final int STATUS_AVAILABLE = 2;
 
+    // Fetch results for finish(taskId, result).  Values match iOS UIBackgroundFetchResult.
+    public static final int FETCH_RESULT_NEW_DATA = 0;
+    public static final int FETCH_RESULT_NO_DATA  = 1;
+    public static final int FETCH_RESULT_FAILED   = 2;
+
     private static volatile BackgroundFetch mInstance = null;
 
-    private static ExecutorService sThreadPool;
+    private static volatile ExecutorService sThreadPool;
+
+    private static volatile Executor sExecutor;
 
     private static Handler uiHandler;
 
+    private static volatile ConfigStore sConfigStore;
+
+    private static volatile HashedWheelTimer sTimer;
+
+    private static volatile ExecutionJournal sJournal;
+
     @SuppressWarnings({"WeakerAccess"})
     public static Handler getUiHandler() {
         if (uiHandler == null) {
@@ -47,14 +72,137 @@ public class BackgroundFetch {
         return uiHandler;
     }
 
+    /**
+     * The plugin's default thread-pool, a bounded {@link BackgroundFetchExecutor}.  If the host app has
+     * installed an ExecutorService with {@link #setExecutor(Executor)}, that is returned instead.
+     */
     @SuppressWarnings({"WeakerAccess"})
     public static ExecutorService getThreadPool() {
+        Executor executor = sExecutor;
+        if (executor instanceof ExecutorService) {
+            return (ExecutorService) executor;
+        }
         if (sThreadPool == null) {
-            sThreadPool = Executors.newCachedThreadPool();
+            synchronized (BackgroundFetch.class) {
+                if (sThreadPool == null) {
+                    sThreadPool = new BackgroundFetchExecutor.Builder().build();
+                }
+            }
         }
         return sThreadPool;
     }
 
+    /**
+     * The Executor used for the plugin's background work:  the host-supplied Executor if any, otherwise
+     * {@link #getThreadPool()}.
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public static Executor getExecutor() {
+        Executor executor = sExecutor;
+        return (executor != null) ? executor : getThreadPool();
+    }
+
+    /**
+     * Run the plugin's background work on a host-supplied Executor, eg: a shared app-wide pool or a
+     * {@link BackgroundFetchExecutor} built with custom sizes.  Pass null to restore the default.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setExecutor(Executor executor) {
+        sExecutor = executor;
+    }
+
+    /**
+     * Timer used for task timeouts.  Runs on its own thread, independent of main-thread load.
+     */
+    static HashedWheelTimer getTimer() {
+        if (sTimer == null) {
+            synchronized (BackgroundFetch.class) {
+                if (sTimer == null) {
+                    sTimer = new HashedWheelTimer(TAG + "-timer");
+                }
+            }
+        }
+        return sTimer;
+    }
+
+    /**
+     * Filter applied to JobScheduler job starts, eg: to adjust its suppression window or read its counters.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static DuplicateJobFilter getDuplicateJobFilter() {
+        return FetchJobService.getDuplicateJobFilter();
+    }
+
+    /**
+     * The {@link ConfigStore} used to persist task configs.  Defaults to a {@link LogConfigStore} behind a
+     * {@link WriteBehindConfigStore}, which defers only the per-run bookkeeping saved by {@link #finish(String, int)}.
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public static ConfigStore getConfigStore(Context context) {
+        if (sConfigStore == null) {
+            synchronized (BackgroundFetch.class) {
+                if (sConfigStore == null) {
+                    sConfigStore = new WriteBehindConfigStore(new LogConfigStore(context.getApplicationContext()));
+                }
+            }
+        }
+        return sConfigStore;
+    }
+
+    /**
+     * Write any pending config changes (see {@link WriteBehindConfigStore}) on the background executor, then
+     * run next.  Used before reporting a job / alarm finished, after which the process may be frozen or killed.
+     */
+    static void flushConfigStore(final Runnable next) {
+        final ConfigStore store = sConfigStore;
+        if (!(store instanceof WriteBehindConfigStore) || !((WriteBehindConfigStore) store).hasPendingWrites()) {
+            next.run();
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                try {
+                    ((WriteBehindConfigStore) store).flush();
+                } finally {
+                    next.run();
+                }
+            }
+        });
+    }
+
+    /**
+     * Install a custom {@link ConfigStore}.  Must be called before the first configure / scheduleTask,
+     * typically from Application#onCreate, so that headless launches use the same store.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setConfigStore(ConfigStore store) {
+        sConfigStore = store;
+    }
+
+    /**
+     * Journal of task lifecycle events, persisted across launches.  Defaults to a 64KB ring.
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public static ExecutionJournal getJournal(Context context) {
+        if (sJournal == null) {
+            synchronized (BackgroundFetch.class) {
+                if (sJournal == null) {
+                    sJournal = new ExecutionJournal(context.getApplicationContext());
+                }
+            }
+        }
+        return sJournal;
+    }
+
+    /**
+     * Install a journal with a custom size cap, eg: new ExecutionJournal(context, 256 * 1024).  Like
+     * {@link #setConfigStore}, call from Application#onCreate.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public static void setJournal(ExecutionJournal journal) {
+        sJournal = journal;
+    }
+
     @SuppressWarnings({"WeakerAccess"})
     public static BackgroundFetch getInstance(Context context) {
         if (mInstance == null) {
@@ -69,68 +217,290 @@ public class BackgroundFetch {
     }
 
     private Context mContext;
-    private BackgroundFetch.Callback mFetchCallback;
+    private volatile BackgroundFetch.Callback mFetchCallback;
+
+    // Serializes the *Async API, in call order, on a thread of its own.
+    private final SerialExecutor mSerialExecutor = new SerialExecutor(TAG + "-serial");
 
     private final Map<String, BackgroundFetchConfig> mConfig = new HashMap<>();
 
+    private volatile JobReconciler.Result mLastReconcileResult;
+
+    private volatile long mLastBootRestoreDuration = -1;
+    // Set once onBoot() has started:  it reconciles what survives the boot, so the launch reconcile is skipped.
+    // Guarded by mReconcileLock, which also keeps the launch reconcile from overlapping onBoot().
+    private final Object mReconcileLock = new Object();
+    private boolean mBootRestoring = false;
+
+    // Group / global concurrency limits.  Tasks which had to wait are dispatched on the main thread, like
+    // the rest.
+    private final TaskLimiter mLimiter = new TaskLimiter(new Executor() {
+        @Override public void execute(Runnable command) {
+            if (Looper.myLooper() == Looper.getMainLooper()) {
+                command.run();
+            } else {
+                getUiHandler().post(command);
+            }
+        }
+    });
+
+    // taskId -> registered Worker.
+    private final Map<String, WorkerRegistration> mWorkers = new ConcurrentHashMap<>();
+
     private BackgroundFetch(Context context) {
         mContext = context;
+        Logger.init(context);
         // Start Lifecycle Observer to be notified when app enters background.
         getUiHandler().post(LifecycleManager.getInstance());
+        // Cancel orphaned jobs / re-register vanished ones left over from previous launches.
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                synchronized (mReconcileLock) {
+                    if (!mBootRestoring) {
+                        reconcile(getConfigStore(mContext).loadAll());
+                    }
+                }
+            }
+        });
+        // Other processes of the app may configure / stop tasks too.
+        getConfigStore(mContext).setChangeListener(new ConfigStore.ChangeListener() {
+            @Override public void onChanged(Collection<String> taskIds) {
+                onConfigsChanged(taskIds);
+            }
+        });
+    }
+
+    /**
+     * Another process changed these tasks' stored configs:  adopt its versions.
+     */
+    void onConfigsChanged(Collection<String> taskIds) {
+        ConfigStore store = getConfigStore(mContext);
+        for (String taskId : taskIds) {
+            BackgroundFetchConfig config = store.load(taskId);
+            synchronized (mConfig) {
+                if (config != null) {
+                    mConfig.put(taskId, config);
+                } else {
+                    mConfig.remove(taskId);
+                }
+            }
+        }
     }
 
     @SuppressWarnings({"unused"})
     public void configure(BackgroundFetchConfig config, BackgroundFetch.Callback callback) {
-        Log.d(TAG, "- " + ACTION_CONFIGURE);
+        Logger.d("- " + ACTION_CONFIGURE);
         mFetchCallback = callback;
 
+        final String taskId = config.getTaskId();
         synchronized (mConfig) {
-            if (mConfig.containsKey(config.getTaskId())) {
+            if (mConfig.containsKey(taskId)) {
                 // Developer called `.configure` again.  Re-configure the plugin by re-scheduling the fetch task.
-                BackgroundFetchConfig existing = mConfig.get(config.getTaskId());
-                Log.d(TAG, "Re-configured existing task");
+                BackgroundFetchConfig existing = mConfig.get(taskId);
+                Logger.d("Re-configured existing task");
+                config.inheritAdaptiveState(existing);
                 BGTask.reschedule(mContext, existing, config);
                 config.save(mContext);
-                mConfig.put(config.getTaskId(), config);
+                mConfig.put(taskId, config);
                 return;
             } else {
-                mConfig.put(config.getTaskId(), config);
+                mConfig.put(taskId, config);
             }
         }
-        start(config.getTaskId());
-    }
-
-    void onBoot() {
-        BackgroundFetchConfig.load(mContext, new BackgroundFetchConfig.OnLoadCallback() {
-            @Override public void onLoad(List<BackgroundFetchConfig> result) {
-                for (BackgroundFetchConfig config : result) {
-                    if (!config.getStartOnBoot() || config.getStopOnTerminate()) {
-                        config.destroy(mContext);
-                        continue;
-                    }
-                    synchronized (mConfig) {
-                        mConfig.put(config.getTaskId(), config);
+        if (!config.getAdaptiveFetchInterval()) {
+            start(taskId);
+            return;
+        }
+        // Configured on every launch:  don't let that reset the interval adapted in earlier launches.  Restoring
+        // it reads the store, so off the main thread it goes, along with the scheduling which depends on it.
+        Runnable restore = new Runnable() {
+            @Override public void run() {
+                BackgroundFetchConfig stored = getConfigStore(mContext).load(taskId);
+                synchronized (mConfig) {
+                    // Unless stopped or re-configured meanwhile.
+                    if (mConfig.get(taskId) != config) {
+                        return;
                     }
-                    if ((android.os.Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) || config.getForceAlarmManager()) {
-                        if (config.isFetchTask()) {
-                            start(config.getTaskId());
-                        } else {
-                            scheduleTask(config);
-                        }
+                    if (stored != null) {
+                        config.inheritAdaptiveState(stored);
                     }
                 }
+                start(taskId);
+            }
+        };
+        if (Looper.myLooper() == Looper.getMainLooper()) {
+            getExecutor().execute(restore);
+        } else {
+            restore.run();
+        }
+    }
+
+    /**
+     * Asynchronous {@link #configure}:  persisting the config and scheduling the job happen on a background
+     * thread.  The *Async methods run one at a time, in call order, so eg: a stopAsync following a
+     * configureAsync of the same task always sees it configured.  They are not ordered with respect to the
+     * synchronous methods.
+     *
+     * @param completion optional;  invoked on the main thread once done.
+     */
+    @SuppressWarnings({"unused"})
+    public Future<Void> configureAsync(final BackgroundFetchConfig config, final BackgroundFetch.Callback callback, CompletionCallback completion) {
+        // Route events arriving in the meantime to the new callback.
+        mFetchCallback = callback;
+        return submit(new Runnable() {
+            @Override public void run() {
+                configure(config, callback);
+            }
+        }, completion);
+    }
+
+    /**
+     * Asynchronous {@link #scheduleTask}.  See {@link #configureAsync}.
+     */
+    @SuppressWarnings({"unused"})
+    public Future<Void> scheduleTaskAsync(final BackgroundFetchConfig config, CompletionCallback completion) {
+        return submit(new Runnable() {
+            @Override public void run() {
+                scheduleTask(config);
+            }
+        }, completion);
+    }
+
+    /**
+     * Asynchronous {@link #stop}.  See {@link #configureAsync}.
+     */
+    @SuppressWarnings({"unused"})
+    public Future<Void> stopAsync(final String taskId, CompletionCallback completion) {
+        return submit(new Runnable() {
+            @Override public void run() {
+                stop(taskId);
+            }
+        }, completion);
+    }
+
+    private Future<Void> submit(Runnable work, final CompletionCallback completion) {
+        FutureTask<Void> future = new FutureTask<Void>(work, null) {
+            @Override protected void done() {
+                if ((completion == null) || isCancelled()) {
+                    return;
+                }
+                Exception error = null;
+                try {
+                    get();
+                } catch (ExecutionException e) {
+                    error = (e.getCause() instanceof Exception) ? (Exception) e.getCause() : e;
+                } catch (InterruptedException e) {
+                    error = e;
+                }
+                if (error != null) {
+                    Logger.e("Async operation failed: {}", error.getMessage(), error);
+                }
+                final Exception result = error;
+                getUiHandler().post(new Runnable() {
+                    @Override public void run() {
+                        completion.onComplete(result);
+                    }
+                });
+            }
+        };
+        mSerialExecutor.execute(future);
+        return future;
+    }
+
+    /**
+     * Restore tasks after boot in a single pass:  load the persisted configs once, delete those which
+     * shouldn't survive a reboot in one store commit, re-arm the alarm-backed ones (alarms don't survive boot)
+     * while JobScheduler's persisted jobs are reconciled on the executor.  Runs on the calling thread and
+     * returns once restore is complete (BootReceiver holds its PendingResult until then).
+     */
+    void onBoot() {
+        long startedAt = SystemClock.elapsedRealtime();
+        // Waits out a launch reconcile already under way, which may have seen configs we're about to destroy:
+        // ours below cancels whatever it rescheduled for them.
+        synchronized (mReconcileLock) {
+            mBootRestoring = true;
+        }
+        ConfigStore store = getConfigStore(mContext);
+
+        final List<BackgroundFetchConfig> keep = new ArrayList<>();
+        List<String> destroy = new ArrayList<>();
+        for (BackgroundFetchConfig config : store.loadAll()) {
+            if (!config.getStartOnBoot() || config.getStopOnTerminate()) {
+                destroy.add(config.getTaskId());
+            } else {
+                keep.add(config);
+            }
+        }
+        if (!destroy.isEmpty()) {
+            store.removeAll(destroy);
+        }
+        synchronized (mConfig) {
+            for (BackgroundFetchConfig config : keep) {
+                mConfig.put(config.getTaskId(), config);
+            }
+        }
+
+        FutureTask<JobReconciler.Result> reconcile = new FutureTask<>(new Callable<JobReconciler.Result>() {
+            @Override public JobReconciler.Result call() {
+                return reconcile(keep);
             }
         });
+        getExecutor().execute(reconcile);
+
+        int rescheduled = 0;
+        for (BackgroundFetchConfig config : keep) {
+            if ((android.os.Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP_MR1) || config.getForceAlarmManager()) {
+                // Already persisted:  only the alarm needs re-arming.
+                BGTask.schedule(mContext, config);
+                rescheduled++;
+            }
+        }
+
+        // If the executor hasn't reached it yet (eg: we're running on its only free thread), run it here.
+        reconcile.run();
+        try {
+            reconcile.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Logger.e("[onBoot] reconcile failed: {}", e.getCause());
+        }
+
+        mLastBootRestoreDuration = SystemClock.elapsedRealtime() - startedAt;
+        Logger.i("- Boot restore: {} restored, {} destroyed, {} alarms re-armed in {}ms", keep.size(), destroy.size(), rescheduled, mLastBootRestoreDuration);
+    }
+
+    /**
+     * @return how long the most recent boot restore took in ms, or -1 if none has run.
+     */
+    long getLastBootRestoreDuration() {
+        return mLastBootRestoreDuration;
+    }
+
+    /**
+     * Reconcile JobScheduler's pending jobs against the given persisted configs.
+     */
+    JobReconciler.Result reconcile(List<BackgroundFetchConfig> configs) {
+        JobReconciler.Result result = JobReconciler.reconcile(mContext, configs);
+        mLastReconcileResult = result;
+        return result;
+    }
+
+    /**
+     * @return the outcome of the most recent reconciliation pass, or null if none has completed.
+     */
+    JobReconciler.Result getLastReconcileResult() {
+        return mLastReconcileResult;
     }
 
     @SuppressWarnings({"WeakerAccess"})
     @TargetApi(21)
     public void start(String fetchTaskId) {
-        Log.d(TAG, "- " + ACTION_START);
+        Logger.d("- " + ACTION_START);
 
         BGTask task = BGTask.getTask(fetchTaskId);
         if (task != null) {
-            Log.e(TAG, "[" + TAG + " start] Task " + fetchTaskId + " already registered");
+            Logger.e("[" + TAG + " start] Task {} already registered", fetchTaskId);
             return;
         }
         registerTask(fetchTaskId);
@@ -138,11 +508,11 @@ public class BackgroundFetch {
 
     @SuppressWarnings({"WeakerAccess"})
     public void stop(String taskId) {
-        String msg = "- " + ACTION_STOP;
         if (taskId != null) {
-            msg += ": " + taskId;
+            Logger.d("- " + ACTION_STOP + ": {}", taskId);
+        } else {
+            Logger.d("- " + ACTION_STOP);
         }
-        Log.d(TAG, msg);
 
         if (taskId == null) {
             mFetchCallback = null;
@@ -150,6 +520,7 @@ public class BackgroundFetch {
                 for (BackgroundFetchConfig config : mConfig.values()) {
                     BGTask task = BGTask.getTask(config.getTaskId());
                     if (task != null) {
+                        task.getCancellationToken().cancel(CancellationToken.REASON_STOPPED, 0);
                         task.finish();
                     }
                     BGTask.cancel(mContext, config.getTaskId(), config.getJobId());
@@ -161,6 +532,7 @@ public class BackgroundFetch {
         } else {
             BGTask task = BGTask.getTask(taskId);
             if (task != null) {
+                task.getCancellationToken().cancel(CancellationToken.REASON_STOPPED, 0);
                 task.finish();
             }
             BackgroundFetchConfig config = getConfig(taskId);
@@ -191,9 +563,17 @@ public class BackgroundFetch {
         registerTask(config.getTaskId());
     }
 
+    /**
+     * @return ms remaining in the running task's time budget, or -1 if taskId isn't running.
+     */
+    public long getRemainingTime(String taskId) {
+        BGTask task = BGTask.getTask(taskId);
+        return (task != null) ? task.getRemainingTime() : -1;
+    }
+
     @SuppressWarnings({"WeakerAccess"})
     public void finish(String taskId) {
-        Log.d(TAG, "- " + ACTION_FINISH + ": " + taskId);
+        Logger.d("- " + ACTION_FINISH + ": {}", taskId);
 
         BGTask task = BGTask.getTask(taskId);
         if (task != null) {
@@ -210,98 +590,520 @@ public class BackgroundFetch {
         }
     }
 
+    /**
+     * Finish with the fetch's outcome, one of FETCH_RESULT_NEW_DATA, FETCH_RESULT_NO_DATA or FETCH_RESULT_FAILED.
+     *  - For fetch tasks configured with setAdaptiveFetchInterval, the result drives the interval:  repeated
+     *    NO_DATA stretches it and NEW_DATA tightens it back toward minimumFetchInterval.
+     *  - For tasks configured with setMaxRetries, FAILED retries the task after its retry delay.
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public void finish(String taskId, int result) {
+        final BackgroundFetchConfig config = getConfig(taskId);
+        if (config == null) {
+            finish(taskId);
+            return;
+        }
+        boolean changed = false;
+        boolean retry = false;
+        boolean resume = false;
+        boolean adaptive = config.isFetchTask() && config.getAdaptiveFetchInterval();
+        synchronized (mConfig) {
+            if (adaptive) {
+                changed = config.onFetchResult(result);
+            }
+            if (config.getMaxRetries() > 0) {
+                boolean retrying = config.getRetryCount() > 0;
+                if (result == FETCH_RESULT_FAILED) {
+                    retry = config.onFailure();
+                } else {
+                    config.onSuccess();
+                }
+                // A retried periodic task may be on a one-shot retry schedule:  restore its regular one.
+                resume = retrying && !retry && config.getPeriodic();
+            }
+        }
+        if (adaptive || (config.getMaxRetries() > 0)) {
+            config.saveState(mContext);
+        }
+        if (changed) {
+            Logger.i("- Adaptive fetch interval ({}): {} minutes", taskId, config.getEffectiveFetchInterval());
+        }
+        if (changed || resume) {
+            Runnable reschedule = new Runnable() {
+                @Override public void run() {
+                    getExecutor().execute(new Runnable() {
+                        @Override public void run() {
+                            // Unless stopped or re-configured meanwhile.
+                            if (getConfig(config.getTaskId()) == config) {
+                                BGTask.schedule(mContext, config);
+                            }
+                        }
+                    });
+                }
+            };
+            // Scheduling replaces the running job:  wait until it's been reported finished, else the OS stops it.
+            BGTask task = BGTask.getTask(taskId);
+            if (task != null) {
+                task.runAfterFinished(reschedule);
+            } else {
+                reschedule.run();
+            }
+        }
+
+        if (retry) {
+            retry(config);
+        } else {
+            finish(taskId);
+        }
+    }
+
+    private void retry(final BackgroundFetchConfig config) {
+        int retryCount = config.getRetryCount();
+        Logger.d("- " + ACTION_FINISH + ": {} (FAILED:  retry {}/{})", config.getTaskId(), retryCount, config.getMaxRetries());
+
+        BGTask task = BGTask.getTask(config.getTaskId());
+        if ((task != null) && task.finishAndRetry()) {
+            // JobScheduler re-runs the job under its backoff criteria.
+            return;
+        }
+        // Alarm-backed, batched, or not running:  schedule it ourselves, with the delay JobScheduler would use.
+        final long delay = config.getRetryDelay(retryCount);
+        getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                if (getConfig(config.getTaskId()) == config) {
+                    BGTask.scheduleRetry(mContext, config, delay);
+                }
+            }
+        });
+    }
+
+    /**
+     * Cap how many tasks are dispatched at once, across all groups (see BackgroundFetchConfig.Builder#setGroup).
+     * The rest wait in line, holding their jobs;  their timeouts keep running meanwhile.  0 (default) for no cap.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void setMaxConcurrentTasks(int max) {
+        mLimiter.setMaxConcurrent(max);
+    }
+
+    /**
+     * Run taskId's events on a {@link Worker} on the plugin's background executor, rather than delivering
+     * them to Callback.onFetch / the headless jobService.  The task is finished with the worker's result.
+     * Register in Application#onCreate so that headless launches find the worker too.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void registerWorker(String taskId, Worker worker) {
+        registerWorker(taskId, worker, null);
+    }
+
+    /**
+     * @param executor runs the worker;  null for the plugin's background executor.
+     */
+    @SuppressWarnings({"WeakerAccess"})
+    public void registerWorker(String taskId, Worker worker, Executor executor) {
+        mWorkers.put(taskId, new WorkerRegistration(worker, executor));
+    }
+
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public void unregisterWorker(String taskId) {
+        mWorkers.remove(taskId);
+    }
+
+    /**
+     * @return the running task's attempt (1, or 1 + its retry number when retrying), or 0 if taskId isn't running.
+     */
+    public int getAttempt(String taskId) {
+        BGTask task = BGTask.getTask(taskId);
+        return (task != null) ? task.getAttempt() : 0;
+    }
+
     // Android has no single API equivalent to iOS UIBackgroundRefreshStatus.
     // JobScheduler/AlarmManager availability is implicit — always return available.
     public int status() {
         return STATUS_AVAILABLE;
     }
 
+    /**
+     * @return scheduling-delay / duration histograms and timeout / stop counts for taskId, or null if the
+     * task hasn't run since the process started.
+     */
+    @SuppressWarnings({"WeakerAccess", "unused"})
+    public TaskMetrics getMetrics(String taskId) {
+        return TaskMetrics.get(taskId);
+    }
+
     BackgroundFetch.Callback getFetchCallback() {
         return mFetchCallback;
     }
 
     void onFetch(final BGTask task) {
-        BGTask.addTask(task);
-        Log.d(TAG, "- Background Fetch event received: " + task.getTaskId());
-        synchronized (mConfig) {
-            if (mConfig.isEmpty()) {
-                BackgroundFetchConfig.load(mContext, new BackgroundFetchConfig.OnLoadCallback() {
-                    @Override
-                    public void onLoad(List<BackgroundFetchConfig> result) {
-                        synchronized (mConfig) {
-                            for (BackgroundFetchConfig config : result) {
-                                mConfig.put(config.getTaskId(), config);
-                            }
+        Tracer.begin("BackgroundFetch.onFetch", task.getTaskId());
+        try {
+            BGTask.addTask(task);
+            Logger.d("- Background Fetch event received: {}", task.getTaskId());
+            boolean loaded;
+            synchronized (mConfig) {
+                loaded = !mConfig.isEmpty();
+            }
+            if (getConfig(task.getTaskId()) == null) {
+                // Typically a cold (headless) launch:  resolve the firing task straight from storage and dispatch
+                // it now, rather than waiting on loadConfigs().  The store keeps what it read, so loadConfigs()
+                // doesn't read the file again.
+                Tracer.begin("ConfigStore.load", task.getTaskId());
+                BackgroundFetchConfig config;
+                try {
+                    config = getConfigStore(mContext).tryLoad(task.getTaskId());
+                } catch (TimeoutException e) {
+                    // Don't hold up the main thread:  loadConfigs() dispatches the task once it has read the store.
+                    Logger.w("- {}: {}:  loading in the background", task.getTaskId(), e.getMessage());
+                    loadConfigs(task, true);
+                    return;
+                } finally {
+                    Tracer.end("ConfigStore.load");
+                }
+                if (config != null) {
+                    synchronized (mConfig) {
+                        if (!mConfig.containsKey(config.getTaskId())) {
+                            mConfig.put(config.getTaskId(), config);
                         }
-                        doFetch(task);
                     }
-                });
+                }
+            }
+            doFetch(task);
 
-                return;
+            if (!loaded) {
+                loadConfigs(task, false);
             }
+        } finally {
+            Tracer.end("BackgroundFetch.onFetch");
         }
-        doFetch(task);
+    }
+
+    /**
+     * Load the remaining configs in the background.  Anything configured in the meantime wins.  Then dispatch
+     * task, if it hasn't been yet.  Otherwise, since batch members couldn't be known when task was dispatched, look
+     * for them again if it's still running.
+     */
+    private void loadConfigs(final BGTask task, final boolean dispatch) {
+        BackgroundFetchConfig.load(mContext, new BackgroundFetchConfig.OnLoadCallback() {
+            @Override
+            public void onLoad(List<BackgroundFetchConfig> result) {
+                synchronized (mConfig) {
+                    for (BackgroundFetchConfig config : result) {
+                        if (!mConfig.containsKey(config.getTaskId())) {
+                            mConfig.put(config.getTaskId(), config);
+                        }
+                    }
+                }
+                if (dispatch) {
+                    if (!task.isFinished()) {
+                        doFetch(task);
+                    }
+                    return;
+                }
+                BackgroundFetchConfig config = getConfig(task.getTaskId());
+                if ((config != null) && (task.getJobId() != 0) && !task.isFinished()) {
+                    dispatchBatch(createBatch(task, config));
+                }
+            }
+        });
     }
 
     private void registerTask(String taskId) {
         BackgroundFetchConfig config = getConfig(taskId);
 
         if (config == null) {
-            Log.e(TAG, "- registerTask failed to find BackgroundFetchConfig for taskId " + taskId);
+            Logger.e("- registerTask failed to find BackgroundFetchConfig for taskId {}", taskId);
             return;
         }
         config.save(mContext);
 
-        String msg = "- registerTask: " + taskId;
-        if (!config.getForceAlarmManager()) {
-            msg += " (jobId: " + config.getJobId() + ")";
+        if (config.getForceAlarmManager()) {
+            Logger.d("- registerTask: {}", taskId);
+        } else {
+            Logger.d("- registerTask: {} (jobId: {})", taskId, config.getJobId());
         }
-        Log.d(TAG, msg);
 
         BGTask.schedule(mContext, config);
     }
 
     private void doFetch(BGTask task) {
-        BackgroundFetchConfig config = getConfig(task.getTaskId());
+        Tracer.begin("BackgroundFetch.doFetch", task.getTaskId());
+        try {
+            BackgroundFetchConfig config = getConfig(task.getTaskId());
 
-        if (config == null) {
-            BGTask.cancel(mContext, task.getTaskId(), task.getJobId());
+            if (config == null) {
+                BGTask.cancel(mContext, task.getTaskId(), task.getJobId());
+                return;
+            }
+
+            List<BGTask> batch = (task.getJobId() != 0) ? createBatch(task, config) : null;
+            dispatch(task, config);
+            dispatchBatch(batch);
+        } finally {
+            Tracer.end("BackgroundFetch.doFetch");
+        }
+    }
+
+    private void dispatchBatch(List<BGTask> batch) {
+        if (batch == null) {
+            return;
+        }
+        for (BGTask member : batch) {
+            BackgroundFetchConfig memberConfig = getConfig(member.getTaskId());
+            if (memberConfig != null) {
+                dispatch(member, memberConfig);
+            } else {
+                member.finish();
+            }
+        }
+    }
+
+    /**
+     * Collect opted-in tasks which are due soon and can run under the constraints of the job which just
+     * fired.  The host's completion is deferred until every member has finished, so the job stays open
+     * for all of them.  Members' own jobs are pushed back (or cancelled for one-shot tasks) so they don't
+     * wake the device again.
+     */
+    private List<BGTask> createBatch(BGTask host, BackgroundFetchConfig hostConfig) {
+        List<BackgroundFetchConfig> candidates;
+        synchronized (mConfig) {
+            candidates = new ArrayList<>(mConfig.values());
+        }
+        List<BackgroundFetchConfig> members = new ArrayList<>(JobBatcher.collect(mContext, hostConfig, candidates));
+        if (members.isEmpty()) {
+            return null;
+        }
+        // Highest priority first (stable), so they're dispatched first.
+        Collections.sort(members, new Comparator<BackgroundFetchConfig>() {
+            @Override public int compare(BackgroundFetchConfig a, BackgroundFetchConfig b) {
+                return b.getPriority() - a.getPriority();
+            }
+        });
+        final List<FetchJobService.CompletionHandler> handlers = new ArrayList<>();
+        final AtomicInteger remaining = new AtomicInteger(members.size() + 1);
+        // What each finisher wants run after the host's job is done.
+        final List<Runnable> after = Collections.synchronizedList(new ArrayList<Runnable>());
+        FetchJobService.CompletionHandler join = new FetchJobService.CompletionHandler() {
+            @Override public void finish() {
+                finish(false, null);
+            }
+            @Override public boolean finish(boolean retry, Runnable next) {
+                if (next != null) {
+                    after.add(next);
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    Runnable done = after.isEmpty() ? null : BGTask.afterAll(handlers.size(), new ArrayList<>(after));
+                    for (FetchJobService.CompletionHandler handler : handlers) {
+                        handler.finish(false, done);
+                    }
+                }
+                return false;
+            }
+        };
+        if (!host.joinCompletionHandlers(join, handlers)) {
+            // The host finished meanwhile:  its job is done.
+            return null;
+        }
+
+        List<BGTask> batch = new ArrayList<>();
+        StringBuilder ids = new StringBuilder();
+        for (BackgroundFetchConfig member : members) {
+            BGTask task = new BGTask(mContext, member.getTaskId(), join, member.getJobId(),
+                    member.getTimeout(), member.getSoftDeadlineFraction());
+            BGTask.addTask(task);
+            host.addBatchMember(task);
+            batch.add(task);
+            if (member.getPeriodic()) {
+                BGTask.schedule(mContext, member);
+            } else {
+                BGTask.cancel(mContext, member.getTaskId(), member.getJobId());
+            }
+            ids.append((ids.length() == 0) ? "" : ", ").append(member.getTaskId());
+        }
+        Logger.d("- Batching {} task(s) with {}: [{}]", batch.size(), host.getTaskId(), ids);
+        return batch;
+    }
+
+    private void dispatch(final BGTask task, final BackgroundFetchConfig config) {
+        TaskLease lease;
+        try {
+            lease = TaskLease.acquire(mContext, task.getTaskId());
+        } catch (TimeoutException e) {
+            // Another process is holding the lease directory:  wait for it in the background, then carry on here.
+            Logger.w("- {}: {}:  leasing in the background", task.getTaskId(), e.getMessage());
+            getExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    final TaskLease acquired = acquireLease(task.getTaskId());
+                    getUiHandler().post(new Runnable() {
+                        @Override public void run() {
+                            dispatch(task, config, acquired);
+                        }
+                    });
+                }
+            });
             return;
         }
+        dispatch(task, config, lease);
+    }
 
-        if (!LifecycleManager.getInstance().isHeadless()) {
+    // @return the lease, or null if it's held elsewhere or (should the executor run this on the main thread) busy.
+    private TaskLease acquireLease(String taskId) {
+        try {
+            return TaskLease.acquire(mContext, taskId);
+        } catch (TimeoutException e) {
+            Logger.w("- {}: {}", taskId, e.getMessage());
+            return null;
+        }
+    }
+
+    private void dispatch(final BGTask task, final BackgroundFetchConfig config, TaskLease lease) {
+        if (task.isFinished()) {
+            // Finished (eg: stopped) while it waited for the lease.
+            if (lease != null) {
+                lease.release();
+            }
+            return;
+        }
+        if (lease == null) {
+            Logger.d("- {} is running in another process: [IGNORED]", task.getTaskId());
+            Tracer.instant("leased elsewhere", task.getTaskId());
+            task.finish();
+            return;
+        }
+        task.setLease(lease);
+        task.setOnFinished(new Runnable() {
+            @Override public void run() {
+                mLimiter.release(task);
+            }
+        });
+        mLimiter.submit(task, config.getGroup(), config.getGroupConcurrency(), config.getPriority(), new Runnable() {
+            @Override public void run() {
+                deliver(task, config);
+            }
+        });
+    }
+
+    private void deliver(BGTask task, BackgroundFetchConfig config) {
+        if (task.isFinished()) {
+            // Finished (eg: stopped) while it waited.
+            return;
+        }
+        task.setAttempt(config.getRetryCount() + 1);
+        task.onDispatched();
+        getJournal(mContext).record(ExecutionJournal.EVENT_DISPATCHED, task.getTaskId(), task.getJobId(), -1);
+        WorkerRegistration worker = mWorkers.get(task.getTaskId());
+        boolean headless = LifecycleManager.getInstance().isHeadless();
+        Tracer.instant(headless ? "headless" : "foreground", task.getTaskId());
+        if ((worker != null) && !(headless && config.getStopOnTerminate())) {
+            runWorker(task, worker);
+        } else if (!headless) {
             if (mFetchCallback != null) {
-                mFetchCallback.onFetch(task.getTaskId());
+                Tracer.begin("Callback.onFetch", task.getTaskId());
+                try {
+                    mFetchCallback.onFetch(task.getTaskId());
+                } finally {
+                    Tracer.end("Callback.onFetch");
+                }
             }
         } else if (config.getStopOnTerminate()) {
-            Log.d(TAG, "- Stopping on terminate");
+            Logger.d("- Stopping on terminate");
             stop(task.getTaskId());
         } else if (config.getJobService() != null) {
+            Tracer.begin("BGTask.fireHeadlessEvent", task.getTaskId());
             try {
                 task.fireHeadlessEvent(mContext, config);
             } catch (BGTask.Error e) {
-                Log.e(TAG, "Headless task error: " + e.getMessage());
-                e.printStackTrace();
+                Logger.e("Headless task error: {}", e.getMessage(), e);
+            } finally {
+                Tracer.end("BGTask.fireHeadlessEvent");
             }
         } else {
             // {stopOnTerminate: false, forceReload: false} with no Headless JobService??  Don't know what else to do here but stop
-            Log.w(TAG, "- BackgroundFetch event has occurred while app is terminated but there's no jobService configured to handle the event.  BackgroundFetch will terminate.");
+            Logger.w("- BackgroundFetch event has occurred while app is terminated but there's no jobService configured to handle the event.  BackgroundFetch will terminate.");
             finish(task.getTaskId());
             stop(task.getTaskId());
         }
     }
 
+    private void runWorker(final BGTask task, final WorkerRegistration registration) {
+        final String taskId = task.getTaskId();
+        task.setRunByWorker();
+        Executor executor = (registration.executor != null) ? registration.executor : getExecutor();
+        Runnable work = new Runnable() {
+            @Override public void run() {
+                int result;
+                try {
+                    result = registration.worker.doWork(task);
+                } catch (Exception e) {
+                    Logger.e("[Worker] {} failed", taskId, e);
+                    result = FETCH_RESULT_FAILED;
+                }
+                // Unless it was stopped, or timed-out and force-finished, while the worker ran.
+                if (!task.isFinished() && (BGTask.getTask(taskId) == task)) {
+                    finish(taskId, result);
+                }
+            }
+        };
+        try {
+            executor.execute(work);
+        } catch (RejectedExecutionException e) {
+            Logger.e("[Worker] {} rejected: {}", taskId, e.getMessage());
+            finish(taskId, FETCH_RESULT_FAILED);
+        }
+    }
+
     BackgroundFetchConfig getConfig(String taskId) {
         synchronized (mConfig) {
             return (mConfig.containsKey(taskId)) ? mConfig.get(taskId) : null;
         }
     }
 
+    /**
+     * A task's work, run off the main thread.  See {@link #registerWorker}.
+     */
+    public interface Worker {
+        /**
+         * @return FETCH_RESULT_NEW_DATA, FETCH_RESULT_NO_DATA or FETCH_RESULT_FAILED, with which the task is
+         * finished.  Throwing finishes it with FETCH_RESULT_FAILED.  Long-running work should poll
+         * task.getCancellationToken() and return promptly once cancelled.
+         */
+        int doWork(BGTask task) throws Exception;
+    }
+
+    private static class WorkerRegistration {
+        final Worker worker;
+        final Executor executor;
+
+        WorkerRegistration(Worker worker, Executor executor) {
+            this.worker = worker;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Completion of configureAsync / scheduleTaskAsync / stopAsync.
+     */
+    public interface CompletionCallback {
+        /**
+         * @param error null on success.
+         */
+        void onComplete(Exception error);
+    }
+
     /**
      * @interface BackgroundFetch.Callback
      */
     public interface Callback {
         void onFetch(String taskId);
         void onTimeout(String taskId);
+
+        /**
+         * The task has reached its soft deadline (see BackgroundFetchConfig.Builder#setSoftDeadlineFraction):
+         * checkpoint any partial work and finish before it times out.
+         *
+         * @param remainingTime ms until onTimeout.
+         */
+        default void onDeadlineWarning(String taskId, long remainingTime) {}
     }
 }
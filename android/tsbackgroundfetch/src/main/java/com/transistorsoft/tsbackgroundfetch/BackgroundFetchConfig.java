@@ -2,17 +2,14 @@ package com.transistorsoft.tsbackgroundfetch;
 
 import android.app.job.JobInfo;
 import android.content.Context;
-import android.content.SharedPreferences;
 import android.os.Build;
-import android.util.Log;
 
 import org.json.JSONException;
 import org.json.JSONObject;
 
-import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Set;
+import java.util.Map;
 
 /**
  * Created by chris on 2018-01-11.
@@ -21,8 +18,34 @@ import java.util.Set;
 public class BackgroundFetchConfig {
     private Builder config;
 
+    // Adaptive / retry state, updated by each run.  Seeded from the Builder but owned by this config, so that
+    // configs built from the same Builder don't share it.  Guarded by the adapter's config lock.
+    private int mEffectiveFetchInterval;
+    private int mNoDataCount;
+    private int mRetryCount;
+
     private static final int MINIMUM_FETCH_INTERVAL = 1;
     private static final int DEFAULT_FETCH_INTERVAL = 15;
+    private static final int DEFAULT_MAXIMUM_FETCH_INTERVAL = 240;
+    // Consecutive NO_DATA results before the adaptive interval is stretched.
+    static final int ADAPTIVE_NO_DATA_THRESHOLD = 3;
+    // Retry delays follow JobScheduler's bounds (JobInfo.MIN_BACKOFF_MILLIS, MAX_BACKOFF_DELAY_MILLIS).
+    private static final long MIN_RETRY_DELAY = 10000L;
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 60 * 1000L;
+    private static final long DEFAULT_RETRY_DELAY = 30000L;
+    // JobScheduler stops a job after 10 minutes regardless.
+    private static final long MAX_TIMEOUT = 10 * 60 * 1000L;
+
+    // Values match JobInfo.BACKOFF_POLICY_LINEAR / BACKOFF_POLICY_EXPONENTIAL.
+    public static final int RETRY_POLICY_LINEAR = 0;
+    public static final int RETRY_POLICY_EXPONENTIAL = 1;
+
+    // Scheduling / dispatch priority.  EXPEDITED one-shot tasks with no delay run as expedited jobs on
+    // API 31+;  otherwise it degrades to HIGH.
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_DEFAULT = 1;
+    public static final int PRIORITY_HIGH = 2;
+    public static final int PRIORITY_EXPEDITED = 3;
 
     public static final String FIELD_TASK_ID = "taskId";
     public static final String FIELD_MINIMUM_FETCH_INTERVAL = "minimumFetchInterval";
@@ -38,6 +61,25 @@ public class BackgroundFetchConfig {
     public static final String FIELD_PERIODIC = "periodic";
     public static final String FIELD_DELAY = "delay";
     public static final String FIELD_IS_FETCH_TASK = "isFetchTask";
+    public static final String FIELD_BATCH_WINDOW = "batchWindow";
+    public static final String FIELD_TIMEOUT = "timeout";
+    public static final String FIELD_SOFT_DEADLINE_FRACTION = "softDeadlineFraction";
+    public static final String FIELD_ADAPTIVE_FETCH_INTERVAL = "adaptiveFetchInterval";
+    public static final String FIELD_MAXIMUM_FETCH_INTERVAL = "maximumFetchInterval";
+    public static final String FIELD_EFFECTIVE_FETCH_INTERVAL = "effectiveFetchInterval";
+    public static final String FIELD_NO_DATA_COUNT = "noDataCount";
+    public static final String FIELD_RETRY_POLICY = "retryPolicy";
+    public static final String FIELD_RETRY_DELAY = "retryDelay";
+    public static final String FIELD_MAX_RETRIES = "maxRetries";
+    public static final String FIELD_RETRY_COUNT = "retryCount";
+    public static final String FIELD_GROUP = "group";
+    public static final String FIELD_PRIORITY = "priority";
+    public static final String FIELD_GROUP_CONCURRENCY = "groupConcurrency";
+    public static final String FIELD_ESTIMATED_DOWNLOAD_BYTES = "estimatedDownloadBytes";
+    public static final String FIELD_ESTIMATED_UPLOAD_BYTES = "estimatedUploadBytes";
+    public static final String FIELD_PREFETCH = "prefetch";
+    public static final String FIELD_REQUIRES_UNMETERED = "requiresUnmetered";
+    public static final String FIELD_REQUIRES_NOT_CONGESTED = "requiresNotCongested";
 
     public static class Builder {
         private String taskId;
@@ -53,6 +95,29 @@ public class BackgroundFetchConfig {
         private boolean requiresDeviceIdle  = false;
         private boolean requiresStorageNotLow = false;
         private boolean isFetchTask         = false;
+        private long batchWindow            = 0;
+        private long timeout                = 0;
+        private float softDeadlineFraction  = 0;
+        private boolean adaptiveFetchInterval = false;
+        private int maximumFetchInterval    = DEFAULT_MAXIMUM_FETCH_INTERVAL;
+        // Persisted adaptive state, copied into each built config:  the interval currently scheduled
+        // (0 = minimumFetchInterval) and the NO_DATA streak.
+        private int effectiveFetchInterval  = 0;
+        private int noDataCount             = 0;
+        private int retryPolicy             = RETRY_POLICY_EXPONENTIAL;
+        private long retryDelay             = DEFAULT_RETRY_DELAY;
+        private int maxRetries              = 0;
+        // Persisted retries made since the last run which didn't fail, copied into each built config.
+        private int retryCount              = 0;
+        private String group                = null;
+        private int priority                = PRIORITY_DEFAULT;
+        private int groupConcurrency        = 0;
+        // -1 = unknown (JobInfo.NETWORK_BYTES_UNKNOWN).
+        private long estimatedDownloadBytes = -1;
+        private long estimatedUploadBytes   = -1;
+        private boolean prefetch            = false;
+        private boolean requiresUnmetered   = false;
+        private boolean requiresNotCongested = false;
 
         private String jobService           = null;
 
@@ -93,7 +158,7 @@ public class BackgroundFetchConfig {
                     (networkType != JobInfo.NETWORK_TYPE_NOT_ROAMING) &&
                     (networkType != JobInfo.NETWORK_TYPE_UNMETERED)
                 ) {
-                    Log.e(BackgroundFetch.TAG, "[ERROR] Invalid " + FIELD_REQUIRED_NETWORK_TYPE + ": " + networkType + "; Defaulting to NETWORK_TYPE_NONE");
+                    Logger.e("[ERROR] Invalid " + FIELD_REQUIRED_NETWORK_TYPE + ": {}; Defaulting to NETWORK_TYPE_NONE", networkType);
                     networkType = JobInfo.NETWORK_TYPE_NONE;
                 }
                 this.requiredNetworkType = networkType;
@@ -121,6 +186,35 @@ public class BackgroundFetchConfig {
             return this;
         }
 
+        /**
+         * Expected network traffic of a run, in bytes (-1 for unknown), so that JobScheduler can pick a network
+         * able to carry it in time (API 28+).  Only applied when the task requires a network.
+         */
+        public Builder setEstimatedNetworkBytes(long downloadBytes, long uploadBytes) {
+            this.estimatedDownloadBytes = (downloadBytes >= 0) ? downloadBytes : -1;
+            this.estimatedUploadBytes = (uploadBytes >= 0) ? uploadBytes : -1;
+            return this;
+        }
+
+        /**
+         * The task prefetches content for the user's next app launch:  JobScheduler may defer it until shortly
+         * before then, and run it on an unmetered network (API 28+).
+         */
+        public Builder setPrefetch(boolean value) {
+            this.prefetch = value;
+            return this;
+        }
+
+        /**
+         * Require a network which is unmetered and / or not congested.  Combined with requiredNetworkType.  API 28+
+         * applies it as a NetworkRequest;  older devices fall back to the nearest network type (UNMETERED, else ANY).
+         */
+        public Builder setRequiredNetwork(boolean unmetered, boolean notCongested) {
+            this.requiresUnmetered = unmetered;
+            this.requiresNotCongested = notCongested;
+            return this;
+        }
+
         public Builder setJobService(String className) {
             this.jobService = className;
             return this;
@@ -141,125 +235,297 @@ public class BackgroundFetchConfig {
             return this;
         }
 
+        /**
+         * Opt in to batching:  when some other task's job fires and this task is due within the next
+         * windowMs milliseconds (and its constraints are compatible), run it in that same job
+         * rather than waking the device again.  Its own job is pushed back.  0 (default) disables.
+         */
+        public Builder setBatchWindow(long windowMs) {
+            this.batchWindow = Math.max(0, windowMs);
+            return this;
+        }
+
+        /**
+         * Execution time budget for each run of this task, in ms.  When it elapses, the task is timed-out
+         * (Callback.onTimeout) and, failing a prompt finish, completed by the plugin.  0 (default) uses
+         * the plugin-wide 60s.  Capped at JobScheduler's own 10 minute execution limit.
+         */
+        public Builder setTimeout(long timeoutMs) {
+            this.timeout = Math.min(Math.max(0, timeoutMs), MAX_TIMEOUT);
+            return this;
+        }
+
+        /**
+         * Fire a deadline warning (Callback.onDeadlineWarning / BGTask.DeadlineListener) once this fraction
+         * of the timeout has elapsed, eg: 0.8 to warn with 20% of the budget remaining.  0 (default) disables.
+         */
+        public Builder setSoftDeadlineFraction(float fraction) {
+            this.softDeadlineFraction = ((fraction > 0) && (fraction < 1)) ? fraction : 0;
+            return this;
+        }
+
+        /**
+         * Adapt the fetch interval to the results passed to BackgroundFetch#finish(taskId, result):  every
+         * few consecutive FETCH_RESULT_NO_DATA double it (up to maximumFetchInterval), while each
+         * FETCH_RESULT_NEW_DATA halves it (down to minimumFetchInterval).  Fetch tasks only.
+         */
+        public Builder setAdaptiveFetchInterval(boolean value) {
+            this.adaptiveFetchInterval = value;
+            return this;
+        }
+
+        /**
+         * Upper bound, in minutes, for the adaptive fetch interval.  Default 240.
+         */
+        public Builder setMaximumFetchInterval(int fetchInterval) {
+            if (fetchInterval >= MINIMUM_FETCH_INTERVAL) {
+                this.maximumFetchInterval = fetchInterval;
+            }
+            return this;
+        }
+
+        /**
+         * Retry runs finished with FETCH_RESULT_FAILED up to maxRetries times (default 0:  no retries).
+         */
+        public Builder setMaxRetries(int value) {
+            this.maxRetries = Math.max(0, value);
+            return this;
+        }
+
+        /**
+         * RETRY_POLICY_LINEAR (delay * retry) or RETRY_POLICY_EXPONENTIAL (default:  delay * 2^(retry - 1)).
+         */
+        public Builder setRetryPolicy(int policy) {
+            if ((policy == RETRY_POLICY_LINEAR) || (policy == RETRY_POLICY_EXPONENTIAL)) {
+                this.retryPolicy = policy;
+            }
+            return this;
+        }
+
+        /**
+         * Initial retry delay in ms.  Default 30s;  JobScheduler enforces a minimum of 10s.
+         */
+        public Builder setRetryDelay(long delayMs) {
+            this.retryDelay = Math.min(Math.max(delayMs, MIN_RETRY_DELAY), MAX_RETRY_DELAY);
+            return this;
+        }
+
+        /**
+         * Put the task in a group, of which at most maxConcurrency tasks are dispatched at once (0:  no
+         * limit beyond BackgroundFetch#setMaxConcurrentTasks).  Others wait their turn, holding their job.
+         * Tasks of a group should agree on its maxConcurrency.
+         */
+        public Builder setGroup(String group, int maxConcurrency) {
+            this.group = group;
+            this.groupConcurrency = Math.max(0, maxConcurrency);
+            return this;
+        }
+
+        /**
+         * PRIORITY_LOW, PRIORITY_DEFAULT, PRIORITY_HIGH or PRIORITY_EXPEDITED.  Applied to the job where the
+         * platform supports it, and to the order in which ready tasks are dispatched.
+         */
+        public Builder setPriority(int priority) {
+            if ((priority >= PRIORITY_LOW) && (priority <= PRIORITY_EXPEDITED)) {
+                this.priority = priority;
+            }
+            return this;
+        }
+
         public BackgroundFetchConfig build() {
             return new BackgroundFetchConfig(this);
         }
 
         public BackgroundFetchConfig load(Context context, String taskId) {
-            SharedPreferences preferences = context.getSharedPreferences(BackgroundFetch.TAG + ":" + taskId, 0);
-            if (preferences.contains(FIELD_TASK_ID)) {
-                setTaskId(preferences.getString(FIELD_TASK_ID, taskId));
+            BackgroundFetchConfig stored = BackgroundFetch.getConfigStore(context).load(taskId);
+            if (stored != null) {
+                setFields(stored.toFields());
             }
-            if (preferences.contains(FIELD_IS_FETCH_TASK)) {
-                setIsFetchTask(preferences.getBoolean(FIELD_IS_FETCH_TASK, isFetchTask));
+            return new BackgroundFetchConfig(this);
+        }
+
+        /**
+         * Apply persisted fields, as produced by {@link BackgroundFetchConfig#toFields()}.  Missing
+         * fields retain their current value.
+         */
+        Builder setFields(Map<String, ?> fields) {
+            if (fields.get(FIELD_TASK_ID) instanceof String) {
+                setTaskId((String) fields.get(FIELD_TASK_ID));
             }
-            if (preferences.contains(FIELD_MINIMUM_FETCH_INTERVAL)) {
-                setMinimumFetchInterval(preferences.getInt(FIELD_MINIMUM_FETCH_INTERVAL, minimumFetchInterval));
+            if (fields.get(FIELD_IS_FETCH_TASK) instanceof Boolean) {
+                setIsFetchTask((Boolean) fields.get(FIELD_IS_FETCH_TASK));
             }
-            if (preferences.contains(FIELD_STOP_ON_TERMINATE)) {
-                setStopOnTerminate(preferences.getBoolean(FIELD_STOP_ON_TERMINATE, stopOnTerminate));
+            if (fields.get(FIELD_MINIMUM_FETCH_INTERVAL) instanceof Integer) {
+                setMinimumFetchInterval((Integer) fields.get(FIELD_MINIMUM_FETCH_INTERVAL));
             }
-            if (preferences.contains(FIELD_REQUIRED_NETWORK_TYPE)) {
-                setRequiredNetworkType(preferences.getInt(FIELD_REQUIRED_NETWORK_TYPE, requiredNetworkType));
+            if (fields.get(FIELD_STOP_ON_TERMINATE) instanceof Boolean) {
+                setStopOnTerminate((Boolean) fields.get(FIELD_STOP_ON_TERMINATE));
             }
-            if (preferences.contains(FIELD_REQUIRES_BATTERY_NOT_LOW)) {
-                setRequiresBatteryNotLow(preferences.getBoolean(FIELD_REQUIRES_BATTERY_NOT_LOW, requiresBatteryNotLow));
+            if (fields.get(FIELD_REQUIRED_NETWORK_TYPE) instanceof Integer) {
+                setRequiredNetworkType((Integer) fields.get(FIELD_REQUIRED_NETWORK_TYPE));
             }
-            if (preferences.contains(FIELD_REQUIRES_CHARGING)) {
-                setRequiresCharging(preferences.getBoolean(FIELD_REQUIRES_CHARGING, requiresCharging));
+            if (fields.get(FIELD_REQUIRES_BATTERY_NOT_LOW) instanceof Boolean) {
+                setRequiresBatteryNotLow((Boolean) fields.get(FIELD_REQUIRES_BATTERY_NOT_LOW));
             }
-            if (preferences.contains(FIELD_REQUIRES_DEVICE_IDLE)) {
-                setRequiresDeviceIdle(preferences.getBoolean(FIELD_REQUIRES_DEVICE_IDLE, requiresDeviceIdle));
+            if (fields.get(FIELD_REQUIRES_CHARGING) instanceof Boolean) {
+                setRequiresCharging((Boolean) fields.get(FIELD_REQUIRES_CHARGING));
             }
-            if (preferences.contains(FIELD_REQUIRES_STORAGE_NOT_LOW)) {
-                setRequiresStorageNotLow(preferences.getBoolean(FIELD_REQUIRES_STORAGE_NOT_LOW, requiresStorageNotLow));
+            if (fields.get(FIELD_REQUIRES_DEVICE_IDLE) instanceof Boolean) {
+                setRequiresDeviceIdle((Boolean) fields.get(FIELD_REQUIRES_DEVICE_IDLE));
             }
-            if (preferences.contains(FIELD_START_ON_BOOT)) {
-                setStartOnBoot(preferences.getBoolean(FIELD_START_ON_BOOT, startOnBoot));
+            if (fields.get(FIELD_REQUIRES_STORAGE_NOT_LOW) instanceof Boolean) {
+                setRequiresStorageNotLow((Boolean) fields.get(FIELD_REQUIRES_STORAGE_NOT_LOW));
             }
-            if (preferences.contains(FIELD_JOB_SERVICE)) {
-                setJobService(preferences.getString(FIELD_JOB_SERVICE, null));
+            if (fields.get(FIELD_START_ON_BOOT) instanceof Boolean) {
+                setStartOnBoot((Boolean) fields.get(FIELD_START_ON_BOOT));
             }
-            if (preferences.contains(FIELD_FORCE_ALARM_MANAGER)) {
-                setForceAlarmManager(preferences.getBoolean(FIELD_FORCE_ALARM_MANAGER, forceAlarmManager));
+            if (fields.containsKey(FIELD_JOB_SERVICE)) {
+                Object jobService = fields.get(FIELD_JOB_SERVICE);
+                setJobService((jobService instanceof String) ? (String) jobService : null);
             }
-            if (preferences.contains(FIELD_PERIODIC)) {
-                setPeriodic(preferences.getBoolean(FIELD_PERIODIC, periodic));
+            if (fields.get(FIELD_FORCE_ALARM_MANAGER) instanceof Boolean) {
+                setForceAlarmManager((Boolean) fields.get(FIELD_FORCE_ALARM_MANAGER));
             }
-            if (preferences.contains(FIELD_DELAY)) {
-                setDelay(preferences.getLong(FIELD_DELAY, delay));
+            if (fields.get(FIELD_PERIODIC) instanceof Boolean) {
+                setPeriodic((Boolean) fields.get(FIELD_PERIODIC));
             }
-            return new BackgroundFetchConfig(this);
+            if (fields.get(FIELD_DELAY) instanceof Long) {
+                setDelay((Long) fields.get(FIELD_DELAY));
+            }
+            if (fields.get(FIELD_ADAPTIVE_FETCH_INTERVAL) instanceof Boolean) {
+                setAdaptiveFetchInterval((Boolean) fields.get(FIELD_ADAPTIVE_FETCH_INTERVAL));
+            }
+            if (fields.get(FIELD_MAXIMUM_FETCH_INTERVAL) instanceof Integer) {
+                setMaximumFetchInterval((Integer) fields.get(FIELD_MAXIMUM_FETCH_INTERVAL));
+            }
+            if (fields.get(FIELD_EFFECTIVE_FETCH_INTERVAL) instanceof Integer) {
+                effectiveFetchInterval = (Integer) fields.get(FIELD_EFFECTIVE_FETCH_INTERVAL);
+            }
+            if (fields.get(FIELD_NO_DATA_COUNT) instanceof Integer) {
+                noDataCount = (Integer) fields.get(FIELD_NO_DATA_COUNT);
+            }
+            if (fields.get(FIELD_RETRY_POLICY) instanceof Integer) {
+                setRetryPolicy((Integer) fields.get(FIELD_RETRY_POLICY));
+            }
+            if (fields.get(FIELD_RETRY_DELAY) instanceof Long) {
+                setRetryDelay((Long) fields.get(FIELD_RETRY_DELAY));
+            }
+            if (fields.get(FIELD_MAX_RETRIES) instanceof Integer) {
+                setMaxRetries((Integer) fields.get(FIELD_MAX_RETRIES));
+            }
+            if (fields.get(FIELD_RETRY_COUNT) instanceof Integer) {
+                retryCount = (Integer) fields.get(FIELD_RETRY_COUNT);
+            }
+            if (fields.containsKey(FIELD_GROUP)) {
+                Object group = fields.get(FIELD_GROUP);
+                int concurrency = (fields.get(FIELD_GROUP_CONCURRENCY) instanceof Integer) ? (Integer) fields.get(FIELD_GROUP_CONCURRENCY) : 0;
+                setGroup((group instanceof String) ? (String) group : null, concurrency);
+            }
+            if (fields.get(FIELD_PRIORITY) instanceof Integer) {
+                setPriority((Integer) fields.get(FIELD_PRIORITY));
+            }
+            if (fields.get(FIELD_ESTIMATED_DOWNLOAD_BYTES) instanceof Long && fields.get(FIELD_ESTIMATED_UPLOAD_BYTES) instanceof Long) {
+                setEstimatedNetworkBytes((Long) fields.get(FIELD_ESTIMATED_DOWNLOAD_BYTES), (Long) fields.get(FIELD_ESTIMATED_UPLOAD_BYTES));
+            }
+            if (fields.get(FIELD_PREFETCH) instanceof Boolean) {
+                setPrefetch((Boolean) fields.get(FIELD_PREFETCH));
+            }
+            if (fields.get(FIELD_REQUIRES_UNMETERED) instanceof Boolean) {
+                setRequiredNetwork(Boolean.TRUE.equals(fields.get(FIELD_REQUIRES_UNMETERED)),
+                        Boolean.TRUE.equals(fields.get(FIELD_REQUIRES_NOT_CONGESTED)));
+            }
+            if (fields.get(FIELD_TIMEOUT) instanceof Long) {
+                setTimeout((Long) fields.get(FIELD_TIMEOUT));
+            }
+            if (fields.get(FIELD_SOFT_DEADLINE_FRACTION) instanceof Float) {
+                setSoftDeadlineFraction((Float) fields.get(FIELD_SOFT_DEADLINE_FRACTION));
+            }
+            if (fields.get(FIELD_BATCH_WINDOW) instanceof Long) {
+                setBatchWindow((Long) fields.get(FIELD_BATCH_WINDOW));
+            }
+            return this;
         }
     }
 
     private BackgroundFetchConfig(Builder builder) {
         config = builder;
+        mEffectiveFetchInterval = builder.effectiveFetchInterval;
+        mNoDataCount = builder.noDataCount;
+        mRetryCount = builder.retryCount;
         // Validate config
         if (config.jobService == null) {
             if (!config.stopOnTerminate) {
-                Log.w(BackgroundFetch.TAG, "- Configuration error:  In order to use stopOnTerminate: false, you must set enableHeadless: true");
+                Logger.w("- Configuration error:  In order to use stopOnTerminate: false, you must set enableHeadless: true");
                 config.setStopOnTerminate(true);
             }
             if (config.startOnBoot) {
-                Log.w(BackgroundFetch.TAG, "- Configuration error:  In order to use startOnBoot: true, you must enableHeadless: true");
+                Logger.w("- Configuration error:  In order to use startOnBoot: true, you must enableHeadless: true");
                 config.setStartOnBoot(false);
             }
         }
     }
 
     void save(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(BackgroundFetch.TAG, 0);
-        Set<String> taskIds = preferences.getStringSet("tasks", new HashSet<String>());
-        if (taskIds == null) {
-            taskIds = new HashSet<>();
-        }
-        if (!taskIds.contains(config.taskId)) {
-            Set<String> newIds = new HashSet<>(taskIds);
-            newIds.add(config.taskId);
-
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putStringSet("tasks", newIds);
-            editor.apply();
-        }
-
-        SharedPreferences.Editor editor = context.getSharedPreferences(BackgroundFetch.TAG + ":" + config.taskId, 0).edit();
-
-        editor.putString(FIELD_TASK_ID, config.taskId);
-        editor.putBoolean(FIELD_IS_FETCH_TASK, config.isFetchTask);
-        editor.putInt(FIELD_MINIMUM_FETCH_INTERVAL, config.minimumFetchInterval);
-        editor.putBoolean(FIELD_STOP_ON_TERMINATE, config.stopOnTerminate);
-        editor.putBoolean(FIELD_START_ON_BOOT, config.startOnBoot);
-        editor.putInt(FIELD_REQUIRED_NETWORK_TYPE, config.requiredNetworkType);
-        editor.putBoolean(FIELD_REQUIRES_BATTERY_NOT_LOW, config.requiresBatteryNotLow);
-        editor.putBoolean(FIELD_REQUIRES_CHARGING, config.requiresCharging);
-        editor.putBoolean(FIELD_REQUIRES_DEVICE_IDLE, config.requiresDeviceIdle);
-        editor.putBoolean(FIELD_REQUIRES_STORAGE_NOT_LOW, config.requiresStorageNotLow);
-        editor.putString(FIELD_JOB_SERVICE, config.jobService);
-        editor.putBoolean(FIELD_FORCE_ALARM_MANAGER, config.forceAlarmManager);
-        editor.putBoolean(FIELD_PERIODIC, config.periodic);
-        editor.putLong(FIELD_DELAY, config.delay);
-
-        editor.apply();
+        BackgroundFetch.getConfigStore(context).save(this);
+    }
+
+    /**
+     * Persist the adaptive / retry counters updated by a run.  These change on every run, so the default store
+     * coalesces them rather than writing each one.
+     */
+    void saveState(Context context) {
+        ConfigStore store = BackgroundFetch.getConfigStore(context);
+        if (store instanceof WriteBehindConfigStore) {
+            ((WriteBehindConfigStore) store).saveDeferred(this);
+        } else {
+            store.save(this);
+        }
     }
 
     void destroy(Context context) {
-        SharedPreferences preferences = context.getSharedPreferences(BackgroundFetch.TAG, 0);
-        Set<String> taskIds = preferences.getStringSet("tasks", new HashSet<String>());
-        if (taskIds == null) {
-            taskIds = new HashSet<>();
-        }
-        if (taskIds.contains(config.taskId)) {
-            Set<String> newIds = new HashSet<>(taskIds);
-            newIds.remove(config.taskId);
-            SharedPreferences.Editor editor = preferences.edit();
-            editor.putStringSet("tasks", newIds);
-            editor.apply();
-        }
-        // Clear per-task preferences for all task types (fetch and scheduled).
-        SharedPreferences.Editor editor = context.getSharedPreferences(BackgroundFetch.TAG + ":" + config.taskId, 0).edit();
-        editor.clear();
-        editor.apply();
+        BackgroundFetch.getConfigStore(context).remove(config.taskId);
+        TaskLease.delete(context, config.taskId);
+    }
+
+    /**
+     * Persistable field values keyed by FIELD_* name.  Values are String, Boolean, Integer, Long or Float.
+     */
+    Map<String, Object> toFields() {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put(FIELD_TASK_ID, config.taskId);
+        fields.put(FIELD_IS_FETCH_TASK, config.isFetchTask);
+        fields.put(FIELD_MINIMUM_FETCH_INTERVAL, config.minimumFetchInterval);
+        fields.put(FIELD_STOP_ON_TERMINATE, config.stopOnTerminate);
+        fields.put(FIELD_START_ON_BOOT, config.startOnBoot);
+        fields.put(FIELD_REQUIRED_NETWORK_TYPE, config.requiredNetworkType);
+        fields.put(FIELD_REQUIRES_BATTERY_NOT_LOW, config.requiresBatteryNotLow);
+        fields.put(FIELD_REQUIRES_CHARGING, config.requiresCharging);
+        fields.put(FIELD_REQUIRES_DEVICE_IDLE, config.requiresDeviceIdle);
+        fields.put(FIELD_REQUIRES_STORAGE_NOT_LOW, config.requiresStorageNotLow);
+        fields.put(FIELD_JOB_SERVICE, config.jobService);
+        fields.put(FIELD_FORCE_ALARM_MANAGER, config.forceAlarmManager);
+        fields.put(FIELD_PERIODIC, config.periodic);
+        fields.put(FIELD_DELAY, config.delay);
+        fields.put(FIELD_BATCH_WINDOW, config.batchWindow);
+        fields.put(FIELD_TIMEOUT, config.timeout);
+        fields.put(FIELD_ADAPTIVE_FETCH_INTERVAL, config.adaptiveFetchInterval);
+        fields.put(FIELD_MAXIMUM_FETCH_INTERVAL, config.maximumFetchInterval);
+        fields.put(FIELD_EFFECTIVE_FETCH_INTERVAL, mEffectiveFetchInterval);
+        fields.put(FIELD_NO_DATA_COUNT, mNoDataCount);
+        fields.put(FIELD_RETRY_POLICY, config.retryPolicy);
+        fields.put(FIELD_RETRY_DELAY, config.retryDelay);
+        fields.put(FIELD_MAX_RETRIES, config.maxRetries);
+        fields.put(FIELD_RETRY_COUNT, mRetryCount);
+        fields.put(FIELD_GROUP, config.group);
+        fields.put(FIELD_PRIORITY, config.priority);
+        fields.put(FIELD_GROUP_CONCURRENCY, config.groupConcurrency);
+        fields.put(FIELD_SOFT_DEADLINE_FRACTION, config.softDeadlineFraction);
+        fields.put(FIELD_ESTIMATED_DOWNLOAD_BYTES, config.estimatedDownloadBytes);
+        fields.put(FIELD_ESTIMATED_UPLOAD_BYTES, config.estimatedUploadBytes);
+        fields.put(FIELD_PREFETCH, config.prefetch);
+        fields.put(FIELD_REQUIRES_UNMETERED, config.requiresUnmetered);
+        fields.put(FIELD_REQUIRES_NOT_CONGESTED, config.requiresNotCongested);
+        return fields;
     }
 
     static int FETCH_JOB_ID = 999;
@@ -273,11 +539,139 @@ public class BackgroundFetchConfig {
         return config.minimumFetchInterval;
     }
 
+    public boolean getAdaptiveFetchInterval() {
+        return config.adaptiveFetchInterval;
+    }
+
+    public int getMaximumFetchInterval() {
+        return Math.max(config.maximumFetchInterval, config.minimumFetchInterval);
+    }
+
+    /**
+     * @return the fetch interval to schedule, in minutes:  the adapted interval when adaptive, else minimumFetchInterval.
+     */
+    public int getEffectiveFetchInterval() {
+        if (!config.adaptiveFetchInterval || (mEffectiveFetchInterval <= 0)) {
+            return config.minimumFetchInterval;
+        }
+        return Math.min(Math.max(mEffectiveFetchInterval, config.minimumFetchInterval), getMaximumFetchInterval());
+    }
+
+    /**
+     * Apply a fetch result to the adaptive interval.  Callers must hold the adapter's config lock.
+     *
+     * @return true if the effective interval changed (and the task must be rescheduled).
+     */
+    boolean onFetchResult(int result) {
+        int current = getEffectiveFetchInterval();
+        int next = current;
+        switch (result) {
+            case BackgroundFetch.FETCH_RESULT_NEW_DATA:
+                mNoDataCount = 0;
+                next = Math.max(current / 2, config.minimumFetchInterval);
+                break;
+            case BackgroundFetch.FETCH_RESULT_NO_DATA:
+                if (++mNoDataCount >= ADAPTIVE_NO_DATA_THRESHOLD) {
+                    mNoDataCount = 0;
+                    next = (int) Math.min((long) current * 2, getMaximumFetchInterval());
+                }
+                break;
+            default:
+                // FAILED says nothing about whether there was data to fetch.
+                break;
+        }
+        mEffectiveFetchInterval = next;
+        return next != current;
+    }
+
+    /**
+     * Carry the adaptive state over from a previous config for the same task, eg: when the app re-configures on launch.
+     */
+    void inheritAdaptiveState(BackgroundFetchConfig previous) {
+        if (config.adaptiveFetchInterval && previous.config.adaptiveFetchInterval) {
+            mEffectiveFetchInterval = previous.mEffectiveFetchInterval;
+            mNoDataCount = previous.mNoDataCount;
+        }
+    }
+
+    public int getPriority() { return config.priority; }
+
+    public String getGroup() { return config.group; }
+    public int getGroupConcurrency() { return config.groupConcurrency; }
+
+    public int getRetryPolicy() { return config.retryPolicy; }
+    public long getRetryDelay() { return config.retryDelay; }
+    public int getMaxRetries() { return config.maxRetries; }
+
+    /**
+     * @return retries made since the last run which didn't fail.
+     */
+    public int getRetryCount() { return mRetryCount; }
+
+    /**
+     * @return the delay before the given retry (1 = first), per the retry policy.
+     */
+    long getRetryDelay(int retry) {
+        retry = Math.max(1, retry);
+        long delay = (config.retryPolicy == RETRY_POLICY_LINEAR)
+                ? config.retryDelay * retry
+                : config.retryDelay << Math.min(retry - 1, 30);
+        return ((delay <= 0) || (delay > MAX_RETRY_DELAY)) ? MAX_RETRY_DELAY : delay;
+    }
+
+    /**
+     * Count a failed run.  Callers must hold the adapter's config lock.
+     *
+     * @return true if a retry is due, false once maxRetries is exhausted (which resets the count).
+     */
+    boolean onFailure() {
+        if (mRetryCount < config.maxRetries) {
+            mRetryCount++;
+            return true;
+        }
+        mRetryCount = 0;
+        return false;
+    }
+
+    /**
+     * A run didn't fail.  Callers must hold the adapter's config lock.
+     */
+    void onSuccess() {
+        mRetryCount = 0;
+    }
+
     public int getRequiredNetworkType() { return config.requiredNetworkType; }
     public boolean getRequiresBatteryNotLow() { return config.requiresBatteryNotLow; }
     public boolean getRequiresCharging() { return config.requiresCharging; }
     public boolean getRequiresDeviceIdle() { return config.requiresDeviceIdle; }
     public boolean getRequiresStorageNotLow() { return config.requiresStorageNotLow; }
+    public long getEstimatedDownloadBytes() { return config.estimatedDownloadBytes; }
+    public long getEstimatedUploadBytes() { return config.estimatedUploadBytes; }
+    public boolean getPrefetch() { return config.prefetch; }
+    public boolean getRequiresUnmetered() { return config.requiresUnmetered; }
+    public boolean getRequiresNotCongested() { return config.requiresNotCongested; }
+
+    /**
+     * @return true if setRequiredNetwork asked for more than a JobInfo network type can express.
+     */
+    boolean hasNetworkRequest() {
+        return config.requiresUnmetered || config.requiresNotCongested;
+    }
+
+    /**
+     * @return requiredNetworkType, widened to cover setRequiredNetwork:  UNMETERED when unmetered is required,
+     * else at least ANY.  This is all that's enforced before API 28.
+     */
+    int getEffectiveNetworkType() {
+        int type = config.requiredNetworkType;
+        if (config.requiresUnmetered && ((type == JobInfo.NETWORK_TYPE_NONE) || (type == JobInfo.NETWORK_TYPE_ANY))) {
+            return JobInfo.NETWORK_TYPE_UNMETERED;
+        }
+        if (hasNetworkRequest() && (type == JobInfo.NETWORK_TYPE_NONE)) {
+            return JobInfo.NETWORK_TYPE_ANY;
+        }
+        return type;
+    }
     public boolean getStopOnTerminate() {
         return config.stopOnTerminate;
     }
@@ -299,6 +693,21 @@ public class BackgroundFetchConfig {
         return config.delay;
     }
 
+    public long getBatchWindow() {
+        return config.batchWindow;
+    }
+
+    /**
+     * @return the execution time budget in ms:  the configured timeout, or the plugin default.
+     */
+    public long getTimeout() {
+        return (config.timeout > 0) ? config.timeout : BGTask.MAX_TIME;
+    }
+
+    public float getSoftDeadlineFraction() {
+        return config.softDeadlineFraction;
+    }
+
     int getJobId() {
         if (config.forceAlarmManager) {
             return 0;
@@ -324,6 +733,35 @@ public class BackgroundFetchConfig {
             output.put(FIELD_FORCE_ALARM_MANAGER, config.forceAlarmManager);
             output.put(FIELD_PERIODIC, getPeriodic());
             output.put(FIELD_DELAY, config.delay);
+            output.put(FIELD_BATCH_WINDOW, config.batchWindow);
+            output.put(FIELD_TIMEOUT, getTimeout());
+            output.put(FIELD_PRIORITY, config.priority);
+            if (config.group != null) {
+                output.put(FIELD_GROUP, config.group);
+                output.put(FIELD_GROUP_CONCURRENCY, config.groupConcurrency);
+            }
+            if (config.maxRetries > 0) {
+                output.put(FIELD_RETRY_POLICY, config.retryPolicy);
+                output.put(FIELD_RETRY_DELAY, config.retryDelay);
+                output.put(FIELD_MAX_RETRIES, config.maxRetries);
+                output.put(FIELD_RETRY_COUNT, mRetryCount);
+            }
+            if (config.adaptiveFetchInterval) {
+                output.put(FIELD_MAXIMUM_FETCH_INTERVAL, getMaximumFetchInterval());
+                output.put(FIELD_EFFECTIVE_FETCH_INTERVAL, getEffectiveFetchInterval());
+            }
+            output.put(FIELD_SOFT_DEADLINE_FRACTION, config.softDeadlineFraction);
+            if ((config.estimatedDownloadBytes >= 0) || (config.estimatedUploadBytes >= 0)) {
+                output.put(FIELD_ESTIMATED_DOWNLOAD_BYTES, config.estimatedDownloadBytes);
+                output.put(FIELD_ESTIMATED_UPLOAD_BYTES, config.estimatedUploadBytes);
+            }
+            if (config.prefetch) {
+                output.put(FIELD_PREFETCH, true);
+            }
+            if (hasNetworkRequest()) {
+                output.put(FIELD_REQUIRES_UNMETERED, config.requiresUnmetered);
+                output.put(FIELD_REQUIRES_NOT_CONGESTED, config.requiresNotCongested);
+            }
 
             return output.toString(2);
         } catch (JSONException e) {
@@ -333,19 +771,12 @@ public class BackgroundFetchConfig {
     }
 
     static void load(final Context context, final OnLoadCallback callback) {
-        BackgroundFetch.getThreadPool().execute(new Runnable() {
+        BackgroundFetch.getExecutor().execute(new Runnable() {
             @Override
             public void run() {
-                final List<BackgroundFetchConfig> result = new ArrayList<>();
-
-                SharedPreferences preferences = context.getSharedPreferences(BackgroundFetch.TAG, 0);
-                Set<String> taskIds = preferences.getStringSet("tasks", new HashSet<String>());
-
-                if (taskIds != null) {
-                    for (String taskId : taskIds) {
-                        result.add(new BackgroundFetchConfig.Builder().load(context, taskId));
-                    }
-                }
+                Tracer.begin("BackgroundFetchConfig.load");
+                final List<BackgroundFetchConfig> result = BackgroundFetch.getConfigStore(context).loadAll();
+                Tracer.end("BackgroundFetchConfig.load");
                 BackgroundFetch.getUiHandler().post(new Runnable() {
                     @Override public void run() {
                         callback.onLoad(result);
@@ -0,0 +1,214 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.Process;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, instrumented thread-pool used for the plugin's background work (config loading, boot
+ * restore, etc).  Threads are named "<name>-<n>", run at background priority and time out when idle.
+ *
+ * Besides the usual ThreadPoolExecutor counters, tracks how long tasks wait in the queue and how long
+ * they run.  Host apps may supply their own Executor instead with {@link BackgroundFetch#setExecutor}.
+ */
+public class BackgroundFetchExecutor extends ThreadPoolExecutor {
+    private static final int DEFAULT_CORE_POOL_SIZE = 2;
+    private static final int DEFAULT_MAXIMUM_POOL_SIZE = 4;
+    private static final int DEFAULT_QUEUE_CAPACITY = 64;
+    private static final long DEFAULT_KEEP_ALIVE_TIME = 30000L;
+
+    public static class Builder {
+        private String name = BackgroundFetch.TAG;
+        private int corePoolSize = DEFAULT_CORE_POOL_SIZE;
+        private int maximumPoolSize = DEFAULT_MAXIMUM_POOL_SIZE;
+        private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+        private long keepAliveTime = DEFAULT_KEEP_ALIVE_TIME;
+        private RejectedExecutionHandler rejectionPolicy = new ThreadPoolExecutor.CallerRunsPolicy();
+
+        public Builder setName(String name) {
+            this.name = name;
+            return this;
+        }
+
+        public Builder setCorePoolSize(int size) {
+            if (size >= 0) {
+                this.corePoolSize = size;
+            }
+            return this;
+        }
+
+        public Builder setMaximumPoolSize(int size) {
+            if (size > 0) {
+                this.maximumPoolSize = size;
+            }
+            return this;
+        }
+
+        public Builder setQueueCapacity(int capacity) {
+            if (capacity > 0) {
+                this.queueCapacity = capacity;
+            }
+            return this;
+        }
+
+        /**
+         * @param millis how long an idle thread lingers before exiting.
+         */
+        public Builder setKeepAliveTime(long millis) {
+            if (millis >= 0) {
+                this.keepAliveTime = millis;
+            }
+            return this;
+        }
+
+        /**
+         * Policy applied once the queue is full and all threads are busy.  Defaults to
+         * CallerRunsPolicy, since dropping a config-load or boot-restore would lose work.
+         */
+        public Builder setRejectionPolicy(RejectedExecutionHandler policy) {
+            if (policy != null) {
+                this.rejectionPolicy = policy;
+            }
+            return this;
+        }
+
+        public BackgroundFetchExecutor build() {
+            return new BackgroundFetchExecutor(this);
+        }
+    }
+
+    private final AtomicLong mRejectedCount = new AtomicLong();
+    private final AtomicLong mTotalWaitNanos = new AtomicLong();
+    private final AtomicLong mMaxWaitNanos = new AtomicLong();
+    private final AtomicLong mTotalRunNanos = new AtomicLong();
+    private final AtomicLong mMaxRunNanos = new AtomicLong();
+    private final AtomicLong mRunCount = new AtomicLong();
+
+    private BackgroundFetchExecutor(final Builder builder) {
+        super(Math.min(builder.corePoolSize, builder.maximumPoolSize),
+                builder.maximumPoolSize,
+                builder.keepAliveTime,
+                TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(builder.queueCapacity),
+                new NamedThreadFactory(builder.name));
+
+        final RejectedExecutionHandler policy = builder.rejectionPolicy;
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            @Override public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                mRejectedCount.incrementAndGet();
+                policy.rejectedExecution(r, executor);
+            }
+        });
+        if (builder.keepAliveTime > 0) {
+            allowCoreThreadTimeOut(true);
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        if (command == null) throw new NullPointerException();
+        super.execute(new TimedRunnable(command));
+    }
+
+    /**
+     * @return number of tasks waiting in the queue.
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    public long getRejectedCount() {
+        return mRejectedCount.get();
+    }
+
+    /**
+     * @return number of tasks which have run (including via the rejection policy on the caller thread).
+     */
+    public long getRunCount() {
+        return mRunCount.get();
+    }
+
+    public long getTotalWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalWaitNanos.get());
+    }
+
+    public long getMaxWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxWaitNanos.get());
+    }
+
+    public long getTotalRunTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mTotalRunNanos.get());
+    }
+
+    public long getMaxRunTime() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxRunNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "[BackgroundFetchExecutor pool=" + getPoolSize() + "/" + getMaximumPoolSize()
+                + ", active=" + getActiveCount()
+                + ", queued=" + getQueueDepth()
+                + ", runs=" + getRunCount()
+                + ", rejected=" + getRejectedCount()
+                + ", wait(total/max)=" + getTotalWaitTime() + "/" + getMaxWaitTime() + "ms"
+                + ", run(total/max)=" + getTotalRunTime() + "/" + getMaxRunTime() + "ms]";
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        while (value > (current = max.get())) {
+            if (max.compareAndSet(current, value)) return;
+        }
+    }
+
+    private class TimedRunnable implements Runnable {
+        private final Runnable mDelegate;
+        private final long mEnqueuedAt = System.nanoTime();
+
+        TimedRunnable(Runnable delegate) {
+            mDelegate = delegate;
+        }
+
+        @Override
+        public void run() {
+            long startedAt = System.nanoTime();
+            long wait = startedAt - mEnqueuedAt;
+            mTotalWaitNanos.addAndGet(wait);
+            updateMax(mMaxWaitNanos, wait);
+            try {
+                mDelegate.run();
+            } finally {
+                long run = System.nanoTime() - startedAt;
+                mTotalRunNanos.addAndGet(run);
+                updateMax(mMaxRunNanos, run);
+                mRunCount.incrementAndGet();
+            }
+        }
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String mName;
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        NamedThreadFactory(String name) {
+            mName = name;
+        }
+
+        @Override
+        public Thread newThread(final Runnable r) {
+            return new Thread(new Runnable() {
+                @Override public void run() {
+                    Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                    r.run();
+                }
+            }, mName + "-" + mCount.incrementAndGet());
+        }
+    }
+}
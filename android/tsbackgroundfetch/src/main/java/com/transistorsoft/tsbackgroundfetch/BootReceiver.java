@@ -3,7 +3,6 @@ package com.transistorsoft.tsbackgroundfetch;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
 
 /**
  * Created by chris on 2018-01-15.
@@ -14,10 +13,16 @@ public class BootReceiver extends BroadcastReceiver {
     @Override
     public void onReceive(final Context context, Intent intent) {
         String action = intent.getAction();
-        Log.d(BackgroundFetch.TAG,  "BootReceiver: " + action);
-        BackgroundFetch.getThreadPool().execute(new Runnable() {
+        Logger.d("BootReceiver: {}", action);
+        // Keep the receiver alive until restore completes, else the process may be killed mid-restore.
+        final PendingResult pending = goAsync();
+        BackgroundFetch.getExecutor().execute(new Runnable() {
             @Override public void run() {
-                BackgroundFetch.getInstance(context.getApplicationContext()).onBoot();
+                try {
+                    BackgroundFetch.getInstance(context.getApplicationContext()).onBoot();
+                } finally {
+                    pending.finish();
+                }
             }
         });
     }
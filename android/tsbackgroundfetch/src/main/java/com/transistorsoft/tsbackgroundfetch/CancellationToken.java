@@ -0,0 +1,121 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+
+/**
+ * Cooperative cancellation signal attached to each {@link BGTask} (see BGTask#getCancellationToken).
+ * It's cancelled when the OS stops the job, when the task times out, and on BackgroundFetch#stop.
+ * Long-running handlers and Workers should poll {@link #isCancelled()} (or {@link #throwIfCancelled()})
+ * between units of work, or register a {@link Listener}, and finish promptly once cancelled.
+ */
+public class CancellationToken {
+    public static final int REASON_NONE = 0;
+    // The OS stopped the job (FetchJobService#onStopJob).  See getStopReason().
+    public static final int REASON_JOB_STOPPED = 1;
+    // The task's time budget elapsed.
+    public static final int REASON_TIMEOUT = 2;
+    // The app called BackgroundFetch#stop.
+    public static final int REASON_STOPPED = 3;
+
+    public interface Listener {
+        /**
+         * Invoked on the cancelling thread (eg: the main or timer thread):  keep it short.
+         */
+        void onCancelled(CancellationToken token);
+    }
+
+    private final List<Listener> mListeners = new ArrayList<>();
+    private volatile int mReason = REASON_NONE;
+    private volatile int mStopReason = 0;
+    private volatile long mCancelledAt = 0;
+
+    public boolean isCancelled() {
+        return mReason != REASON_NONE;
+    }
+
+    /**
+     * @return one of the REASON_* constants;  REASON_NONE until cancelled.
+     */
+    public int getReason() {
+        return mReason;
+    }
+
+    /**
+     * @return for REASON_JOB_STOPPED, the JobParameters.STOP_REASON_* given by the OS (API 31+), else 0
+     * (JobParameters.STOP_REASON_UNDEFINED).
+     */
+    public int getStopReason() {
+        return mStopReason;
+    }
+
+    /**
+     * @throws CancellationException once cancelled.  Thrown from a Worker, it finishes the task as failed.
+     */
+    public void throwIfCancelled() {
+        if (isCancelled()) {
+            throw new CancellationException("Task cancelled (reason " + mReason + ")");
+        }
+    }
+
+    /**
+     * Add a listener.  If already cancelled, it's invoked immediately.
+     */
+    public void addListener(Listener listener) {
+        synchronized (mListeners) {
+            if (!isCancelled()) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onCancelled(this);
+    }
+
+    public void removeListener(Listener listener) {
+        synchronized (mListeners) {
+            mListeners.remove(listener);
+        }
+    }
+
+    /**
+     * @return elapsedRealtime when cancelled, or 0.
+     */
+    long getCancelledAt() {
+        return mCancelledAt;
+    }
+
+    /**
+     * Cancel, if not already.  The first reason wins.
+     *
+     * @return true if this call cancelled the token.
+     */
+    boolean cancel(int reason, int stopReason) {
+        List<Listener> listeners;
+        synchronized (mListeners) {
+            if (isCancelled()) {
+                return false;
+            }
+            mCancelledAt = SystemClock.elapsedRealtime();
+            mStopReason = stopReason;
+            mReason = reason;
+            listeners = new ArrayList<>(mListeners);
+            mListeners.clear();
+        }
+        for (Listener listener : listeners) {
+            try {
+                listener.onCancelled(this);
+            } catch (RuntimeException e) {
+                Logger.e("[CancellationToken] listener error", e);
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public String toString() {
+        return "[CancellationToken reason=" + mReason + ", stopReason=" + mStopReason + "]";
+    }
+}
@@ -0,0 +1,65 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Persistence backend for {@link BackgroundFetchConfig}.  The default is {@link LogConfigStore};
+ * a host app may install its own with {@link BackgroundFetch#setConfigStore(ConfigStore)}.
+ * Implementations must be thread-safe.
+ */
+public interface ConfigStore {
+    interface ChangeListener {
+        /**
+         * The configs for taskIds were saved or removed by another process.  Called on a background thread.
+         */
+        void onChanged(Collection<String> taskIds);
+    }
+
+    /**
+     * Load every persisted task config.
+     */
+    List<BackgroundFetchConfig> loadAll();
+
+    /**
+     * Load a single task config.
+     * @return the persisted config or null if taskId is unknown.
+     */
+    BackgroundFetchConfig load(String taskId);
+
+    /**
+     * Like {@link #load(String)}, but give up rather than wait long (eg: on another process).  Stores which never
+     * wait long needn't override this.
+     * @throws TimeoutException if the config couldn't be read promptly.
+     */
+    default BackgroundFetchConfig tryLoad(String taskId) throws TimeoutException {
+        return load(taskId);
+    }
+
+    /**
+     * Insert or replace the config for config.getTaskId().
+     */
+    void save(BackgroundFetchConfig config);
+
+    /**
+     * Delete the config for taskId.  Unknown taskIds are ignored.
+     */
+    void remove(String taskId);
+
+    /**
+     * Delete the configs for several taskIds at once.  Stores should override this to commit them together.
+     */
+    default void removeAll(Collection<String> taskIds) {
+        for (String taskId : taskIds) {
+            remove(taskId);
+        }
+    }
+
+    /**
+     * Watch for changes made by other processes of the app (eg: a component running in its own android:process),
+     * or stop watching if listener is null.  Stores which can't detect them may ignore this.
+     */
+    default void setChangeListener(ChangeListener listener) {
+    }
+}
@@ -0,0 +1,157 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Filters spurious job starts in {@link FetchJobService}:
+ *  - Duplicates:  JobScheduler on Android N can fire the same job twice within a few milliseconds.  A start
+ *    is suppressed when the same taskId (case-insensitive) started less than the suppression window ago.
+ *  - Initial fire:  JobScheduler immediately fires a periodic job once when it's scheduled.  A start of a
+ *    periodic job within 1s of scheduling is dropped.  One-shots (eg: expedited jobs) are meant to start at once.
+ *
+ * All timing uses SystemClock.elapsedRealtime(), so wall-clock changes have no effect.  Memory is bounded:
+ * entries expire with the window, and at most maxEntries taskIds are tracked (oldest fire evicted first).
+ */
+public class DuplicateJobFilter {
+    static final String EXTRA_SCHEDULED_AT = "scheduled_at";
+    static final String EXTRA_SCHEDULED_AT_ELAPSED = "scheduled_at_elapsed";
+
+    private static final long DEFAULT_WINDOW = 5000L;
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+    private static final long INITIAL_FIRE_THRESHOLD = 1000L;
+
+    private final int mMaxEntries;
+    private volatile long mWindow = DEFAULT_WINDOW;
+
+    // normalized taskId -> elapsedRealtime of last accepted start, ordered oldest first.
+    private final LinkedHashMap<String, Long> mLastFired;
+
+    private final AtomicLong mSuppressedCount = new AtomicLong();
+    private final AtomicLong mInitialFireCount = new AtomicLong();
+
+    public DuplicateJobFilter() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    DuplicateJobFilter(int maxEntries) {
+        mMaxEntries = Math.max(1, maxEntries);
+        mLastFired = new LinkedHashMap<String, Long>() {
+            @Override protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > mMaxEntries;
+            }
+        };
+    }
+
+    /**
+     * @param windowMs starts of the same task within this many milliseconds of one another are treated
+     *                 as duplicates.  Defaults to 5000.
+     */
+    public void setWindow(long windowMs) {
+        if (windowMs >= 0) {
+            mWindow = windowMs;
+        }
+    }
+
+    public long getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * @return true if this start is the immediate initial fire of a freshly scheduled job.
+     */
+    boolean isInitialFire(PersistableBundle extras) {
+        if (extras == null) return false;
+        // Jobs scheduled by an older version of the plugin don't say whether they're periodic:  assume so.
+        if (extras.getInt(BGTask.EXTRA_PERIODIC, 1) != 1) return false;
+        boolean initial;
+        long scheduledAt = extras.getLong(EXTRA_SCHEDULED_AT_ELAPSED, -1);
+        if (scheduledAt >= 0) {
+            long now = SystemClock.elapsedRealtime();
+            // scheduledAt > now:  the device has rebooted since the job was scheduled.
+            initial = (scheduledAt <= now) && (now - scheduledAt < INITIAL_FIRE_THRESHOLD);
+        } else {
+            // Job scheduled by an older version of the plugin:  only a wall-clock timestamp is available.
+            long dt = System.currentTimeMillis() - extras.getLong(EXTRA_SCHEDULED_AT);
+            initial = (dt >= 0) && (dt < INITIAL_FIRE_THRESHOLD);
+        }
+        if (initial) {
+            mInitialFireCount.incrementAndGet();
+        }
+        return initial;
+    }
+
+    /**
+     * Record a start of taskId.
+     * @return true if it's a duplicate of a start within the window, in which case it should be ignored.  A null
+     *         taskId is never a duplicate.
+     */
+    boolean isDuplicate(String taskId) {
+        if (taskId == null) return false;
+        String key = TaskRegistry.normalize(taskId);
+        long now = SystemClock.elapsedRealtime();
+        long window = mWindow;
+        synchronized (mLastFired) {
+            Long last = mLastFired.get(key);
+            if ((last != null) && (now - last < window)) {
+                mSuppressedCount.incrementAndGet();
+                return true;
+            }
+            // Re-insert so that iteration order stays oldest-first.
+            mLastFired.remove(key);
+            mLastFired.put(key, now);
+            prune(now, window);
+        }
+        return false;
+    }
+
+    // Entries older than the window can never match again.
+    private void prune(long now, long window) {
+        Iterator<Long> it = mLastFired.values().iterator();
+        while (it.hasNext()) {
+            if (now - it.next() >= window) {
+                it.remove();
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * @return number of job starts suppressed as duplicates.
+     */
+    public long getSuppressedCount() {
+        return mSuppressedCount.get();
+    }
+
+    /**
+     * @return number of initial periodic-job fires dropped.
+     */
+    public long getInitialFireCount() {
+        return mInitialFireCount.get();
+    }
+
+    int size() {
+        synchronized (mLastFired) {
+            return mLastFired.size();
+        }
+    }
+
+    void clear() {
+        synchronized (mLastFired) {
+            mLastFired.clear();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[DuplicateJobFilter window=" + mWindow + "ms, tracked=" + size()
+                + ", suppressed=" + getSuppressedCount()
+                + ", initialFires=" + getInitialFireCount() + "]";
+    }
+}
@@ -0,0 +1,647 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.app.Application;
+import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent, bounded journal of {@link BGTask} lifecycle transitions, for post-hoc analysis of what ran
+ * while the app was headless.
+ *
+ * Records are fixed-size (64 bytes) and written into a memory-mapped ring file
+ * (files/TSBackgroundFetch.journal);  once full, the oldest records are overwritten.  {@link #record} is
+ * allocation-free and never does I/O:  it claims a slot with an atomic counter and writes into the mapping,
+ * leaving the kernel to write pages back.  The file is opened on the background executor;  records arriving
+ * before it's mapped are staged in a small preallocated buffer.
+ *
+ * So that no lock is needed between processes, each process of the app writes its own ring file:  the main
+ * process TSBackgroundFetch.journal, others TSBackgroundFetch.journal-&lt;process&gt;.  {@link #read} merges them
+ * by wall-clock time.  Sequences are per file.
+ *
+ * Header:  [int MAGIC][int VERSION][int RECORD_SIZE][int capacity]
+ *
+ * Record layout (big-endian):
+ *   0  long  sequence + 1 (0 = empty slot)     28 int   jobId
+ *   8  long  wall-clock time                   32 long  value (FINISHED: duration ms, STOPPED: stop reason), -1 if none
+ *  16  long  elapsedRealtime                   40 int   hashCode of the full taskId
+ *  24  int   event                             44 short taskId length
+ *                                              46 char[18] trailing 18 chars of the taskId (ASCII)
+ */
+public class ExecutionJournal {
+    public static final int EVENT_CREATED       = 1;
+    public static final int EVENT_DISPATCHED    = 2;
+    public static final int EVENT_FINISHED      = 3;
+    public static final int EVENT_TIMEOUT       = 4;
+    public static final int EVENT_STOPPED       = 5;
+
+    static final String FILENAME = BackgroundFetch.TAG + ".journal";
+    static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x5453424a;   // "TSBJ"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 64;
+    private static final int MIN_CAPACITY = 16;
+    private static final int STAGING_CAPACITY = 32;
+
+    private static final int OFFSET_SEQ = 0;
+    private static final int OFFSET_WALL = 8;
+    private static final int OFFSET_ELAPSED = 16;
+    private static final int OFFSET_EVENT = 24;
+    private static final int OFFSET_JOB_ID = 28;
+    private static final int OFFSET_VALUE = 32;
+    private static final int OFFSET_TASK_ID_HASH = 40;
+    private static final int OFFSET_TASK_ID_LENGTH = 44;
+    private static final int OFFSET_TASK_ID = 46;
+    static final int TASK_ID_CHARS = RECORD_SIZE - OFFSET_TASK_ID;
+
+    /**
+     * A journal entry.  taskId is truncated to its trailing 18 characters when longer;  the hash and length of
+     * the full id tell apart truncated ids which share a suffix.
+     */
+    public static class Record {
+        private final long mSequence;
+        private final long mTimestamp;
+        private final long mElapsedRealtime;
+        private final int mEvent;
+        private final String mTaskId;
+        private final int mTaskIdHash;
+        private final int mTaskIdLength;
+        private final int mJobId;
+        private final long mValue;
+
+        Record(long sequence, long timestamp, long elapsedRealtime, int event, String taskId, int taskIdHash, int taskIdLength, int jobId, long value) {
+            mSequence = sequence;
+            mTimestamp = timestamp;
+            mElapsedRealtime = elapsedRealtime;
+            mEvent = event;
+            mTaskId = taskId;
+            mTaskIdHash = taskIdHash;
+            mTaskIdLength = taskIdLength;
+            mJobId = jobId;
+            mValue = value;
+        }
+
+        public long getSequence() { return mSequence; }
+        public long getTimestamp() { return mTimestamp; }
+        public long getElapsedRealtime() { return mElapsedRealtime; }
+        public int getEvent() { return mEvent; }
+        public String getTaskId() { return mTaskId; }
+        public int getTaskIdHash() { return mTaskIdHash; }
+        public boolean isTaskIdTruncated() { return mTaskIdLength > mTaskId.length(); }
+        public int getJobId() { return mJobId; }
+        public long getValue() { return mValue; }
+
+        /**
+         * @return true if this record was written for exactly the given (full, untruncated) taskId.
+         */
+        public boolean matches(String taskId) {
+            return (taskId != null) && (taskId.length() == mTaskIdLength) && (taskId.hashCode() == mTaskIdHash)
+                    && taskId.endsWith(mTaskId);
+        }
+
+        /**
+         * @return the taskId when it was stored in full;  otherwise its trailing characters plus "#" and the
+         * hash of the full id, so that distinct truncated ids don't collide.
+         */
+        String getKey() {
+            return isTaskIdTruncated() ? mTaskId + "#" + Integer.toHexString(mTaskIdHash) : mTaskId;
+        }
+
+        @Override
+        public String toString() {
+            return "[Record #" + mSequence + " " + eventName(mEvent) + " taskId=" + mTaskId + ", jobId=" + mJobId
+                    + ", value=" + mValue + ", timestamp=" + mTimestamp + "]";
+        }
+    }
+
+    public interface Visitor {
+        void onRecord(Record record);
+    }
+
+    /**
+     * Per-task totals over the journal.
+     */
+    public static class Summary {
+        private final String mTaskId;
+        private final int[] mCounts = new int[EVENT_STOPPED + 1];
+        private long mTotalDuration = 0;
+        private long mMaxDuration = 0;
+        private long mLastTimestamp = 0;
+
+        Summary(String taskId) {
+            mTaskId = taskId;
+        }
+
+        void add(Record record) {
+            if ((record.mEvent > 0) && (record.mEvent < mCounts.length)) {
+                mCounts[record.mEvent]++;
+            }
+            if ((record.mEvent == EVENT_FINISHED) && (record.mValue >= 0)) {
+                mTotalDuration += record.mValue;
+                mMaxDuration = Math.max(mMaxDuration, record.mValue);
+            }
+            mLastTimestamp = Math.max(mLastTimestamp, record.mTimestamp);
+        }
+
+        public String getTaskId() { return mTaskId; }
+
+        public int getCount(int event) {
+            return ((event > 0) && (event < mCounts.length)) ? mCounts[event] : 0;
+        }
+
+        public long getTotalDuration() { return mTotalDuration; }
+        public long getMaxDuration() { return mMaxDuration; }
+        public long getLastTimestamp() { return mLastTimestamp; }
+
+        @Override
+        public String toString() {
+            return "[Summary taskId=" + mTaskId + ", created=" + getCount(EVENT_CREATED) + ", dispatched=" + getCount(EVENT_DISPATCHED)
+                    + ", finished=" + getCount(EVENT_FINISHED) + ", timeouts=" + getCount(EVENT_TIMEOUT)
+                    + ", stopped=" + getCount(EVENT_STOPPED) + ", duration(total/max)=" + mTotalDuration + "/" + mMaxDuration + "ms]";
+        }
+    }
+
+    static String eventName(int event) {
+        switch (event) {
+            case EVENT_CREATED: return "CREATED";
+            case EVENT_DISPATCHED: return "DISPATCHED";
+            case EVENT_FINISHED: return "FINISHED";
+            case EVENT_TIMEOUT: return "TIMEOUT";
+            case EVENT_STOPPED: return "STOPPED";
+            default: return "UNKNOWN(" + event + ")";
+        }
+    }
+
+    // The main process's journal;  other processes' are named after it.
+    private final File mBaseFile;
+    // This process's journal, once known:  resolving the process name may do I/O.
+    private volatile File mFile;
+    private final String mPackageName;
+    private final int mCapacity;
+    private final AtomicLong mSequence = new AtomicLong();
+    private final AtomicBoolean mOpenRequested = new AtomicBoolean(false);
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private volatile MappedByteBuffer mBuffer;
+    private volatile boolean mFailed = false;
+
+    // Records which arrive before the file is mapped.  Guarded by mStagedTaskIds.
+    private final long[] mStagedLongs = new long[STAGING_CAPACITY * 3];
+    private final int[] mStagedInts = new int[STAGING_CAPACITY * 2];
+    private final String[] mStagedTaskIds = new String[STAGING_CAPACITY];
+    private int mStagedCount = 0;
+
+    public ExecutionJournal(Context context) {
+        this(context, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize size cap of the journal file in bytes.  Changing it discards the existing journal.
+     */
+    public ExecutionJournal(Context context, int maxSize) {
+        this(new File(context.getApplicationContext().getFilesDir(), FILENAME), null, context.getPackageName(), maxSize);
+    }
+
+    ExecutionJournal(File file, int maxSize) {
+        this(file, file, null, maxSize);
+    }
+
+    /**
+     * @param file this process's journal, or null to name it after the process when opened.
+     */
+    ExecutionJournal(File baseFile, File file, String packageName, int maxSize) {
+        mBaseFile = baseFile;
+        mFile = file;
+        mPackageName = packageName;
+        mCapacity = Math.max(MIN_CAPACITY, (maxSize - HEADER_SIZE) / RECORD_SIZE);
+    }
+
+    /**
+     * @return maximum number of records retained.
+     */
+    public int getCapacity() {
+        return mCapacity;
+    }
+
+    /**
+     * @return number of records lost because the journal couldn't be opened in time (or at all).
+     */
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    /**
+     * Append a record.  Allocation-free and non-blocking;  safe to call from any thread.
+     */
+    public void record(int event, String taskId, int jobId, long value) {
+        long timestamp = System.currentTimeMillis();
+        long elapsed = SystemClock.elapsedRealtime();
+        MappedByteBuffer buffer = mBuffer;
+        if (buffer == null) {
+            synchronized (mStagedTaskIds) {
+                buffer = mBuffer;
+                if (buffer == null) {
+                    stage(timestamp, elapsed, event, taskId, jobId, value);
+                }
+            }
+            if (buffer == null) {
+                if (mOpenRequested.compareAndSet(false, true)) {
+                    BackgroundFetch.getExecutor().execute(new Runnable() {
+                        @Override public void run() {
+                            open();
+                        }
+                    });
+                }
+                return;
+            }
+        }
+        write(buffer, mSequence.getAndIncrement(), timestamp, elapsed, event, taskId, jobId, value);
+    }
+
+    /**
+     * Visit every retained record of every process, oldest first.  Opens the journal if need be, so call off the
+     * main thread.
+     */
+    public void read(Visitor visitor) {
+        MappedByteBuffer buffer = open();
+        File[] others = listOthers();
+        if ((others == null) || (others.length == 0)) {
+            if (buffer != null) {
+                readOwn(buffer, visitor);
+            }
+            return;
+        }
+        final List<List<Record>> journals = new ArrayList<>();
+        if (buffer != null) {
+            final List<Record> own = new ArrayList<>();
+            readOwn(buffer, new Visitor() {
+                @Override public void onRecord(Record record) {
+                    own.add(record);
+                }
+            });
+            journals.add(own);
+        }
+        for (File file : others) {
+            journals.add(readOther(file));
+        }
+        // Merge by wall-clock time, keeping each journal's own order.
+        int[] positions = new int[journals.size()];
+        while (true) {
+            int next = -1;
+            for (int i = 0; i < journals.size(); i++) {
+                if (positions[i] == journals.get(i).size()) continue;
+                if ((next < 0) || (journals.get(i).get(positions[i]).mTimestamp
+                        < journals.get(next).get(positions[next]).mTimestamp)) {
+                    next = i;
+                }
+            }
+            if (next < 0) {
+                return;
+            }
+            visitor.onRecord(journals.get(next).get(positions[next]++));
+        }
+    }
+
+    private void readOwn(MappedByteBuffer buffer, Visitor visitor) {
+        long next = mSequence.get();
+        long first = Math.max(0, next - mCapacity);
+        for (long seq = first; seq < next; seq++) {
+            int offset = slotOffset(seq);
+            // A slot being (re)written concurrently reads as empty or with a newer sequence:  skip it.
+            if (buffer.getLong(offset + OFFSET_SEQ) != seq + 1) {
+                continue;
+            }
+            visitor.onRecord(readRecord(buffer, offset, seq));
+        }
+    }
+
+    /**
+     * @return the records of another process's journal, oldest first.  It may be writing to it meanwhile:  slots
+     * being written are skipped.
+     */
+    private List<Record> readOther(File file) {
+        List<Record> records = new ArrayList<>();
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                MappedByteBuffer buffer = mapOther(raf, FileChannel.MapMode.READ_ONLY);
+                int capacity = (buffer != null) ? buffer.getInt(12) : 0;
+                for (int i = 0; i < capacity; i++) {
+                    int offset = HEADER_SIZE + i * RECORD_SIZE;
+                    long seq = buffer.getLong(offset + OFFSET_SEQ) - 1;
+                    if (seq < 0) continue;
+                    Record record = readRecord(buffer, offset, seq);
+                    if (buffer.getLong(offset + OFFSET_SEQ) == seq + 1) {
+                        records.add(record);
+                    }
+                }
+            } finally {
+                raf.close();
+            }
+        } catch (IOException e) {
+            Logger.w("[ExecutionJournal] failed to read {}: {}", file.getName(), e.getMessage());
+        }
+        Collections.sort(records, new Comparator<Record>() {
+            @Override public int compare(Record a, Record b) {
+                return (a.mSequence < b.mSequence) ? -1 : ((a.mSequence == b.mSequence) ? 0 : 1);
+            }
+        });
+        return records;
+    }
+
+    // @return raf mapped, or null if it isn't a journal this version can read.
+    private static MappedByteBuffer mapOther(RandomAccessFile raf, FileChannel.MapMode mode) throws IOException {
+        long size = raf.length();
+        if (size < HEADER_SIZE) {
+            return null;
+        }
+        MappedByteBuffer buffer = raf.getChannel().map(mode, 0, size);
+        if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION) || (buffer.getInt(8) != RECORD_SIZE)
+                || (HEADER_SIZE + (long) buffer.getInt(12) * RECORD_SIZE != size)) {
+            return null;
+        }
+        return buffer;
+    }
+
+    // Other processes' journals.
+    private File[] listOthers() {
+        File dir = mBaseFile.getParentFile();
+        if (dir == null) {
+            return null;
+        }
+        final String base = mBaseFile.getName();
+        final File own = mFile;
+        return dir.listFiles(new FilenameFilter() {
+            @Override public boolean accept(File parent, String name) {
+                return (name.equals(base) || name.startsWith(base + "-"))
+                        && ((own == null) || !name.equals(own.getName()));
+            }
+        });
+    }
+
+    /**
+     * @return all retained records, oldest first.
+     */
+    public List<Record> getRecords() {
+        final List<Record> records = new ArrayList<>();
+        read(new Visitor() {
+            @Override public void onRecord(Record record) {
+                records.add(record);
+            }
+        });
+        return records;
+    }
+
+    /**
+     * @return per-taskId totals over all retained records.  Keyed by taskId;  ids too long to be stored in
+     * full are keyed by their trailing characters plus "#" and the hash of the full id.  Use
+     * {@link #aggregate(String)} to look up a task by its full id.
+     */
+    public Map<String, Summary> aggregate() {
+        final Map<String, Summary> result = new HashMap<>();
+        read(new Visitor() {
+            @Override public void onRecord(Record record) {
+                String key = record.getKey();
+                Summary summary = result.get(key);
+                if (summary == null) {
+                    summary = new Summary(key);
+                    result.put(key, summary);
+                }
+                summary.add(record);
+            }
+        });
+        return Collections.unmodifiableMap(result);
+    }
+
+    /**
+     * @return totals over the retained records for exactly the given taskId, or null if there are none.
+     */
+    public Summary aggregate(final String taskId) {
+        final Summary summary = new Summary(taskId);
+        final boolean[] found = new boolean[1];
+        read(new Visitor() {
+            @Override public void onRecord(Record record) {
+                if (record.matches(taskId)) {
+                    summary.add(record);
+                    found[0] = true;
+                }
+            }
+        });
+        return found[0] ? summary : null;
+    }
+
+    /**
+     * Discard all records, other processes' included.
+     */
+    public synchronized void clear() {
+        MappedByteBuffer buffer = open();
+        if (buffer != null) {
+            for (int i = 0; i < mCapacity; i++) {
+                buffer.putLong(HEADER_SIZE + i * RECORD_SIZE + OFFSET_SEQ, 0);
+            }
+            mSequence.set(0);
+        }
+        File[] others = listOthers();
+        if (others == null) {
+            return;
+        }
+        for (File file : others) {
+            // The owner may still be writing to it:  empty its slots rather than delete it.
+            try {
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                try {
+                    MappedByteBuffer other = mapOther(raf, FileChannel.MapMode.READ_WRITE);
+                    int capacity = (other != null) ? other.getInt(12) : 0;
+                    for (int i = 0; i < capacity; i++) {
+                        other.putLong(HEADER_SIZE + i * RECORD_SIZE + OFFSET_SEQ, 0);
+                    }
+                } finally {
+                    raf.close();
+                }
+            } catch (IOException e) {
+                Logger.w("[ExecutionJournal] failed to clear {}: {}", file.getName(), e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Map the journal file, creating (or re-creating, when its geometry has changed) as required.
+     * Idempotent.
+     */
+    synchronized MappedByteBuffer open() {
+        mOpenRequested.set(true);
+        if ((mBuffer != null) || mFailed) {
+            return mBuffer;
+        }
+        if (mFile == null) {
+            mFile = processFile();
+        }
+        long size = HEADER_SIZE + (long) mCapacity * RECORD_SIZE;
+        MappedByteBuffer buffer;
+        try {
+            File dir = mFile.getParentFile();
+            if ((dir != null) && !dir.exists()) {
+                dir.mkdirs();
+            }
+            RandomAccessFile raf = new RandomAccessFile(mFile, "rw");
+            try {
+                boolean valid = (raf.length() == size);
+                if (!valid) {
+                    raf.setLength(0);
+                    raf.setLength(size);
+                }
+                buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+                if (!valid || (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)
+                        || (buffer.getInt(8) != RECORD_SIZE) || (buffer.getInt(12) != mCapacity)) {
+                    for (int i = 0; i < size; i += 8) {
+                        buffer.putLong(i, 0);
+                    }
+                    buffer.putInt(0, MAGIC);
+                    buffer.putInt(4, VERSION);
+                    buffer.putInt(8, RECORD_SIZE);
+                    buffer.putInt(12, mCapacity);
+                }
+            } finally {
+                // The mapping remains valid after the channel is closed.
+                raf.close();
+            }
+        } catch (IOException e) {
+            Logger.e("[ExecutionJournal] failed to open {}: {}", mFile, e.getMessage());
+            mFailed = true;
+            synchronized (mStagedTaskIds) {
+                mDroppedCount.addAndGet(mStagedCount);
+                mStagedCount = 0;
+            }
+            return null;
+        }
+
+        long next = 0;
+        for (int i = 0; i < mCapacity; i++) {
+            next = Math.max(next, buffer.getLong(HEADER_SIZE + i * RECORD_SIZE + OFFSET_SEQ));
+        }
+        mSequence.set(next);
+
+        synchronized (mStagedTaskIds) {
+            for (int i = 0; i < mStagedCount; i++) {
+                write(buffer, mSequence.getAndIncrement(), mStagedLongs[i * 3], mStagedLongs[i * 3 + 1],
+                        mStagedInts[i * 2], mStagedTaskIds[i], mStagedInts[i * 2 + 1], mStagedLongs[i * 3 + 2]);
+                mStagedTaskIds[i] = null;
+            }
+            mStagedCount = 0;
+            mBuffer = buffer;
+        }
+        return buffer;
+    }
+
+    /**
+     * @return the base file for the main process, else the base file suffixed with the process name (for
+     * "com.example:sync", "sync").
+     */
+    private File processFile() {
+        String process = null;
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            process = Application.getProcessName();
+        } else {
+            try {
+                FileInputStream in = new FileInputStream("/proc/self/cmdline");
+                try {
+                    byte[] bytes = new byte[256];
+                    int length = Math.max(0, in.read(bytes));
+                    int end = 0;
+                    while ((end < length) && (bytes[end] != 0)) end++;
+                    process = new String(bytes, 0, end, "UTF-8");
+                } finally {
+                    in.close();
+                }
+            } catch (IOException e) {
+                Logger.w("[ExecutionJournal] failed to read the process name: {}", e.getMessage());
+            }
+        }
+        if ((process == null) || process.isEmpty() || process.equals(mPackageName)) {
+            return mBaseFile;
+        }
+        if ((mPackageName != null) && process.startsWith(mPackageName + ":")) {
+            process = process.substring(mPackageName.length() + 1);
+        }
+        return new File(mBaseFile.getPath() + "-" + process.replaceAll("[^A-Za-z0-9._]", "_"));
+    }
+
+    private void stage(long timestamp, long elapsed, int event, String taskId, int jobId, long value) {
+        if (mFailed || (mStagedCount == STAGING_CAPACITY)) {
+            mDroppedCount.incrementAndGet();
+            return;
+        }
+        int i = mStagedCount++;
+        mStagedLongs[i * 3] = timestamp;
+        mStagedLongs[i * 3 + 1] = elapsed;
+        mStagedLongs[i * 3 + 2] = value;
+        mStagedInts[i * 2] = event;
+        mStagedInts[i * 2 + 1] = jobId;
+        mStagedTaskIds[i] = taskId;
+    }
+
+    private int slotOffset(long seq) {
+        return HEADER_SIZE + (int) (seq % mCapacity) * RECORD_SIZE;
+    }
+
+    private void write(MappedByteBuffer buffer, long seq, long timestamp, long elapsed, int event, String taskId, int jobId, long value) {
+        int offset = slotOffset(seq);
+        // Invalidate the slot first so that a torn write reads as empty.
+        buffer.putLong(offset + OFFSET_SEQ, 0);
+        buffer.putLong(offset + OFFSET_WALL, timestamp);
+        buffer.putLong(offset + OFFSET_ELAPSED, elapsed);
+        buffer.putInt(offset + OFFSET_EVENT, event);
+        buffer.putInt(offset + OFFSET_JOB_ID, jobId);
+        buffer.putLong(offset + OFFSET_VALUE, value);
+
+        int length = (taskId != null) ? taskId.length() : 0;
+        buffer.putInt(offset + OFFSET_TASK_ID_HASH, (taskId != null) ? taskId.hashCode() : 0);
+        buffer.putShort(offset + OFFSET_TASK_ID_LENGTH, (short) Math.min(length, Short.MAX_VALUE));
+        int start = Math.max(0, length - TASK_ID_CHARS);
+        for (int i = 0; i < TASK_ID_CHARS; i++) {
+            int index = start + i;
+            char c = (index < length) ? taskId.charAt(index) : 0;
+            buffer.put(offset + OFFSET_TASK_ID + i, (byte) ((c < 0x80) ? c : '?'));
+        }
+        buffer.putLong(offset + OFFSET_SEQ, seq + 1);
+    }
+
+    private Record readRecord(MappedByteBuffer buffer, int offset, long seq) {
+        int length = buffer.getShort(offset + OFFSET_TASK_ID_LENGTH);
+        int stored = Math.min(length, TASK_ID_CHARS);
+        char[] chars = new char[stored];
+        for (int i = 0; i < stored; i++) {
+            chars[i] = (char) buffer.get(offset + OFFSET_TASK_ID + i);
+        }
+        return new Record(seq,
+                buffer.getLong(offset + OFFSET_WALL),
+                buffer.getLong(offset + OFFSET_ELAPSED),
+                buffer.getInt(offset + OFFSET_EVENT),
+                new String(chars),
+                buffer.getInt(offset + OFFSET_TASK_ID_HASH),
+                length,
+                buffer.getInt(offset + OFFSET_JOB_ID),
+                buffer.getLong(offset + OFFSET_VALUE));
+    }
+
+    File getFile() {
+        return mFile;
+    }
+}
@@ -4,7 +4,6 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.os.PowerManager;
-import android.util.Log;
 
 import static android.content.Context.POWER_SERVICE;
 
@@ -16,24 +15,39 @@ public class FetchAlarmReceiver extends BroadcastReceiver {
 
     @Override
     public void onReceive(final Context context, Intent intent) {
-        PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
-        final PowerManager.WakeLock wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, BackgroundFetch.TAG + "::" + intent.getAction());
-        // WakeLock expires in MAX_TIME + 4s buffer.
-        wakeLock.acquire((BGTask.MAX_TIME + 4000));
-
         final String taskId = intent.getAction();
+        if (taskId == null) {
+            Logger.w("- FetchAlarmReceiver: alarm has no taskId: [IGNORED]");
+            return;
+        }
+        PowerManager powerManager = (PowerManager) context.getSystemService(POWER_SERVICE);
+        final PowerManager.WakeLock wakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, BackgroundFetch.TAG + "::" + taskId);
+        long timeout = intent.getLongExtra(BGTask.EXTRA_TIMEOUT, BGTask.MAX_TIME);
+        // WakeLock expires in timeout + 4s buffer.
+        wakeLock.acquire((timeout + BGTask.TIMEOUT_GRACE));
 
         final FetchJobService.CompletionHandler completionHandler = new FetchJobService.CompletionHandler() {
             @Override
             public void finish() {
-                if (wakeLock.isHeld()) {
-                    wakeLock.release();
-                    Log.d(BackgroundFetch.TAG, "- FetchAlarmReceiver finish");
-                }
+                BackgroundFetch.flushConfigStore(new Runnable() {
+                    @Override public void run() {
+                        if (wakeLock.isHeld()) {
+                            wakeLock.release();
+                            Logger.d("- FetchAlarmReceiver finish");
+                        }
+                    }
+                });
             }
         };
 
-        BGTask task = new BGTask(context, taskId, completionHandler, 0);
+        TaskMetrics.forTask(taskId).onStart(-1,
+                intent.getLongExtra(DuplicateJobFilter.EXTRA_SCHEDULED_AT, 0),
+                intent.getLongExtra(BGTask.EXTRA_INTERVAL, -1),
+                intent.getBooleanExtra(BGTask.EXTRA_PERIODIC, false));
+        BackgroundFetch.getJournal(context).record(ExecutionJournal.EVENT_CREATED, taskId, 0, -1);
+
+        BGTask task = new BGTask(context, taskId, completionHandler, 0, timeout,
+                intent.getFloatExtra(BGTask.EXTRA_SOFT_DEADLINE_FRACTION, 0));
 
         BackgroundFetch.getInstance(context.getApplicationContext()).onFetch(task);
     }
@@ -3,11 +3,12 @@ package com.transistorsoft.tsbackgroundfetch;
 import android.annotation.TargetApi;
 import android.app.job.JobParameters;
 import android.app.job.JobService;
+import android.os.Build;
 import android.os.PersistableBundle;
-import android.util.Log;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Created by chris on 2018-01-11.
@@ -15,92 +16,158 @@ import java.util.List;
 @TargetApi(21)
 public class FetchJobService extends JobService {
 
-    // Queue of recently run jobs.
-    private static final List<ExecutedJob> sExecutedJobs = new ArrayList<>();
+    // Drops duplicate and initial-periodic starts.
+    private static final DuplicateJobFilter sDuplicateJobFilter = new DuplicateJobFilter();
+
+    // jobIds currently executing.  A running one-shot job is absent from JobScheduler#getAllPendingJobs.
+    private static final Set<Integer> sRunningJobs = Collections.newSetFromMap(new ConcurrentHashMap<Integer, Boolean>());
+
+    static boolean isRunning(int jobId) {
+        return sRunningJobs.contains(jobId);
+    }
+
+    static DuplicateJobFilter getDuplicateJobFilter() {
+        return sDuplicateJobFilter;
+    }
 
     @Override
     public boolean onStartJob(final JobParameters params) {
-        PersistableBundle extras = params.getExtras();
-        long scheduleAt = extras.getLong("scheduled_at");
-        long dt = System.currentTimeMillis() - scheduleAt;
-        // Scheduled < 1s ago?  Ignore.
-        if (dt < 1000) {
+        Tracer.begin("FetchJobService.onStartJob");
+        try {
+            PersistableBundle extras = params.getExtras();
             // JobScheduler always immediately fires an initial event on Periodic jobs -- We IGNORE these.
-            jobFinished(params, false);
-            return false;
-        }
-
-        final String taskId = extras.getString(BackgroundFetchConfig.FIELD_TASK_ID);
+            if (sDuplicateJobFilter.isInitialFire(extras)) {
+                Tracer.instant("initialFire", null);
+                jobFinished(params, false);
+                return false;
+            }
 
-        // Is this a duplicate event?
-        // JobScheduler has a bug in Android N that causes duplicate Jobs to fire within a few milliseconds.
-        // We keep a Queue of the last 5 tasks so we can see if this task has executed in the last 5000ms.
-        synchronized (sExecutedJobs) {
-            for (ExecutedJob job : sExecutedJobs) {
-                if (job.isDuplicate(taskId)) {
-                    Log.d(BackgroundFetch.TAG, "- Caught duplicate Job " + taskId + ": [IGNORED]");
-                    jobFinished(params, false);
-                    return false;
-                }
+            final String taskId = extras.getString(BackgroundFetchConfig.FIELD_TASK_ID);
+            if (taskId == null) {
+                // Not one of ours (eg: a job without extras):  nothing to run.
+                Logger.w("- Job {} has no taskId: [IGNORED]", params.getJobId());
+                jobFinished(params, false);
+                return false;
             }
-            // Not found?  Add this task to the Queue.
-            sExecutedJobs.add(new ExecutedJob(taskId));
-            if (sExecutedJobs.size() > 5) {
-                sExecutedJobs.remove(0);
+
+            // Is this a duplicate event?
+            // JobScheduler has a bug in Android N that causes duplicate Jobs to fire within a few milliseconds.
+            if (sDuplicateJobFilter.isDuplicate(taskId)) {
+                Logger.d("- Caught duplicate Job {}: [IGNORED]", taskId);
+                Tracer.instant("duplicate", taskId);
+                jobFinished(params, false);
+                return false;
             }
+            // Good to go:  Execute the task.
+            TaskMetrics.forTask(taskId).onStart(
+                    extras.getLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, -1),
+                    extras.getLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT),
+                    extras.getLong(BGTask.EXTRA_INTERVAL, -1),
+                    extras.getInt(BGTask.EXTRA_PERIODIC, 0) == 1);
+            BackgroundFetch.getJournal(this).record(ExecutionJournal.EVENT_CREATED, taskId, params.getJobId(), -1);
+            sRunningJobs.add(params.getJobId());
+            Tracer.asyncBegin("job", params.getJobId(), taskId);
+            CompletionHandler completionHandler = new CompletionHandler() {
+                @Override public void finish() {
+                    finishJob(params, false, null);
+                }
+                @Override public boolean finishAndRetry() {
+                    finishJob(params, true, null);
+                    return true;
+                }
+                @Override public boolean finish(boolean retry, Runnable next) {
+                    finishJob(params, retry, next);
+                    return retry;
+                }
+            };
+            BGTask task = new BGTask(this, taskId, completionHandler, params.getJobId(),
+                    extras.getLong(BGTask.EXTRA_TIMEOUT, BGTask.MAX_TIME),
+                    (float) extras.getDouble(BGTask.EXTRA_SOFT_DEADLINE_FRACTION, 0));
+            BackgroundFetch.getInstance(getApplicationContext()).onFetch(task);
+
+            return true;
+        } finally {
+            Tracer.end("FetchJobService.onStartJob");
         }
-        // Good to go:  Execute the task.
-        CompletionHandler completionHandler = () -> {
-            Log.d(BackgroundFetch.TAG, "- jobFinished");
-            jobFinished(params, false);
-        };
-        BGTask task = new BGTask(this, taskId, completionHandler, params.getJobId());
-        BackgroundFetch.getInstance(getApplicationContext()).onFetch(task);
-
-        return true;
     }
 
     @Override
     public boolean onStopJob(final JobParameters params) {
-        Log.d(BackgroundFetch.TAG, "- onStopJob");
+        Logger.d("- onStopJob");
 
         PersistableBundle extras = params.getExtras();
         final String taskId = extras.getString(BackgroundFetchConfig.FIELD_TASK_ID);
+        if (taskId == null) {
+            jobFinished(params, false);
+            return true;
+        }
+        Tracer.instant("FetchJobService.onStopJob", taskId);
+        int stopReason = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.S) ? params.getStopReason() : JobParameters.STOP_REASON_UNDEFINED;
+        TaskMetrics.forTask(taskId).onStop();
+        BackgroundFetch.getJournal(this).record(ExecutionJournal.EVENT_STOPPED, taskId, params.getJobId(), stopReason);
 
         BGTask task = BGTask.getTask(taskId);
         if (task != null) {
+            task.getCancellationToken().cancel(CancellationToken.REASON_JOB_STOPPED, stopReason);
             task.onTimeout(getApplicationContext());
+            // Tasks batched into this job lose it too.
+            for (BGTask member : task.getBatch()) {
+                member.getCancellationToken().cancel(CancellationToken.REASON_JOB_STOPPED, stopReason);
+                member.onTimeout(getApplicationContext());
+            }
+        }
+        if (sRunningJobs.remove(params.getJobId())) {
+            Tracer.asyncEnd("job", params.getJobId());
         }
         jobFinished(params, false);
         return true;
     }
 
-    public interface CompletionHandler {
-        void finish();
+    private void finishJob(final JobParameters params, final boolean reschedule, final Runnable next) {
+        Logger.d(reschedule ? "- jobFinished (retry)" : "- jobFinished");
+        if (sRunningJobs.remove(params.getJobId())) {
+            Tracer.asyncEnd("job", params.getJobId());
+        }
+        BackgroundFetch.flushConfigStore(() -> {
+            jobFinished(params, reschedule);
+            Tracer.instant("jobFinished", null);
+            if (next != null) {
+                next.run();
+            }
+        });
     }
 
-    private static class ExecutedJob {
-        private static final long OFFSET_TIME = 5000L;
-
-        private final String mTaskId;
-        private final long mTimestamp;
+    public interface CompletionHandler {
+        void finish();
 
-        ExecutedJob(String taskId) {
-            mTaskId = taskId;
-            mTimestamp = System.currentTimeMillis();
+        /**
+         * Finish, asking the OS to run the job again under its backoff criteria.
+         *
+         * @return false if this handler can't, in which case it has simply finished.
+         */
+        default boolean finishAndRetry() {
+            finish();
+            return false;
         }
 
-        boolean isDuplicate(String taskId) {
-            if (!taskId.equalsIgnoreCase(mTaskId)) {
-                return false;
+        /**
+         * finish() or finishAndRetry(), then run next once the OS has been told the job is done.  Anything which
+         * replaces the job (eg: scheduling it anew) must wait for that, or the OS stops the job being replaced.
+         *
+         * @param next may be null.
+         * @return whether the job will be retried, as for finishAndRetry().
+         */
+        default boolean finish(boolean retry, Runnable next) {
+            boolean retried = false;
+            if (retry) {
+                retried = finishAndRetry();
+            } else {
+                finish();
             }
-            long dt = System.currentTimeMillis() - mTimestamp;
-            return (dt < OFFSET_TIME);
-        }
-
-        @Override
-        public String toString() {
-            return "[LastJob taskId: " + mTaskId + ", timestamp: " + mTimestamp + "]";
+            if (next != null) {
+                next.run();
+            }
+            return retried;
         }
     }
 }
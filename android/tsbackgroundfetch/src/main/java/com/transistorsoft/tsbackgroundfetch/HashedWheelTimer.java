@@ -0,0 +1,327 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hashed timing-wheel running on its own thread, used for {@link BGTask} timeouts so that they fire on
+ * time regardless of how busy the main thread is.
+ *
+ * schedule() and cancel() are O(1):  both just enqueue, and the worker moves entries into / out of the
+ * wheel on its next tick.  Expired tasks run on the timer thread, so they must be short and must not
+ * block.  When nothing is scheduled the worker parks instead of ticking.
+ *
+ * Expiry accuracy is one tick.  Lateness (actual - scheduled expiry time) of every expired timeout is
+ * recorded.
+ */
+public class HashedWheelTimer {
+    private static final long DEFAULT_TICK_DURATION = 100L;
+    private static final int DEFAULT_WHEEL_SIZE = 1024;
+
+    /**
+     * Handle to a scheduled task.
+     */
+    public interface Timeout {
+        /**
+         * @return true if the task was cancelled before it expired.
+         */
+        boolean cancel();
+        boolean isCancelled();
+        boolean isExpired();
+    }
+
+    private final String mName;
+    private final long mTickNanos;
+    private final Bucket[] mWheel;
+    private final int mMask;
+
+    private final Queue<Entry> mPendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Entry> mCancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger mPendingCount = new AtomicInteger();
+
+    private final Object mLock = new Object();
+    private volatile boolean mIdle = false;
+    private volatile Thread mWorker;
+    private long mStartTime;
+    private long mTick;
+
+    private final AtomicLong mExpiredCount = new AtomicLong();
+    private final AtomicLong mCancelledCount = new AtomicLong();
+    private final AtomicLong mTotalLatenessNanos = new AtomicLong();
+    private final AtomicLong mMaxLatenessNanos = new AtomicLong();
+
+    public HashedWheelTimer(String name) {
+        this(name, DEFAULT_TICK_DURATION, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickDuration resolution of the timer in milliseconds.
+     * @param wheelSize number of buckets; rounded up to a power of 2.
+     */
+    public HashedWheelTimer(String name, long tickDuration, int wheelSize) {
+        if (tickDuration <= 0) throw new IllegalArgumentException("tickDuration must be > 0");
+        if (wheelSize <= 0) throw new IllegalArgumentException("wheelSize must be > 0");
+        int size = 1;
+        while (size < wheelSize) size <<= 1;
+
+        mName = name;
+        mTickNanos = TimeUnit.MILLISECONDS.toNanos(tickDuration);
+        mWheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            mWheel[i] = new Bucket();
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Run task on the timer thread after delay milliseconds.
+     */
+    public Timeout schedule(Runnable task, long delay) {
+        if (task == null) throw new NullPointerException("task");
+        start();
+        long deadline = System.nanoTime() - mStartTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delay));
+        Entry entry = new Entry(task, deadline);
+        mPendingCount.incrementAndGet();
+        mPendingTimeouts.add(entry);
+        if (mIdle) {
+            synchronized (mLock) {
+                mLock.notifyAll();
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * @return number of scheduled timeouts which have neither expired nor been cancelled.
+     */
+    public int getPendingCount() {
+        return mPendingCount.get();
+    }
+
+    public long getExpiredCount() {
+        return mExpiredCount.get();
+    }
+
+    public long getCancelledCount() {
+        return mCancelledCount.get();
+    }
+
+    /**
+     * @return average lateness, in milliseconds, of expired timeouts.
+     */
+    public long getAverageLateness() {
+        long count = mExpiredCount.get();
+        return (count == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(mTotalLatenessNanos.get() / count);
+    }
+
+    /**
+     * @return maximum lateness, in milliseconds, of any expired timeout.
+     */
+    public long getMaxLateness() {
+        return TimeUnit.NANOSECONDS.toMillis(mMaxLatenessNanos.get());
+    }
+
+    @Override
+    public String toString() {
+        return "[HashedWheelTimer " + mName + " pending=" + getPendingCount()
+                + ", expired=" + getExpiredCount()
+                + ", cancelled=" + getCancelledCount()
+                + ", lateness(avg/max)=" + getAverageLateness() + "/" + getMaxLateness() + "ms]";
+    }
+
+    private void start() {
+        if (mWorker != null) return;
+        synchronized (mLock) {
+            if (mWorker != null) return;
+            mStartTime = System.nanoTime();
+            Thread worker = new Thread(new Worker(), mName);
+            worker.setDaemon(true);
+            worker.start();
+            mWorker = worker;
+        }
+    }
+
+    private void onExpired(Entry entry, long now) {
+        mPendingCount.decrementAndGet();
+        long lateness = Math.max(0, now - entry.mDeadline);
+        mExpiredCount.incrementAndGet();
+        mTotalLatenessNanos.addAndGet(lateness);
+        long max;
+        while (lateness > (max = mMaxLatenessNanos.get())) {
+            if (mMaxLatenessNanos.compareAndSet(max, lateness)) break;
+        }
+        try {
+            entry.mTask.run();
+        } catch (Throwable e) {
+            Logger.e("[HashedWheelTimer] task threw: {}", e.getMessage(), e);
+        }
+    }
+
+    private final class Worker implements Runnable {
+        @Override
+        public void run() {
+            while (true) {
+                long now = waitForNextTick();
+                transferCancelled();
+                transferPending();
+                mWheel[(int) (mTick & mMask)].expire(now);
+                mTick++;
+            }
+        }
+
+        /**
+         * Sleep until the start of the current tick, or indefinitely when nothing is scheduled.
+         * @return current time relative to mStartTime.
+         */
+        private long waitForNextTick() {
+            while (true) {
+                long now = System.nanoTime() - mStartTime;
+                if (mPendingCount.get() == 0) {
+                    synchronized (mLock) {
+                        mIdle = true;
+                        try {
+                            if (mPendingCount.get() == 0) {
+                                mLock.wait();
+                            }
+                        } catch (InterruptedException ignored) {
+                        } finally {
+                            mIdle = false;
+                        }
+                    }
+                    // The wheel is empty:  jump straight to the current tick rather than sweeping
+                    // every bucket we slept through.
+                    mTick = Math.max(mTick, (System.nanoTime() - mStartTime) / mTickNanos);
+                    continue;
+                }
+                long sleepNanos = (mTick + 1) * mTickNanos - now;
+                if (sleepNanos <= 0) {
+                    return now;
+                }
+                try {
+                    Thread.sleep(TimeUnit.NANOSECONDS.toMillis(sleepNanos), (int) (sleepNanos % 1000000L));
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }
+
+        private void transferPending() {
+            Entry entry;
+            while ((entry = mPendingTimeouts.poll()) != null) {
+                if (entry.mState.get() != Entry.STATE_INIT) {
+                    continue;
+                }
+                long expiryTick = entry.mDeadline / mTickNanos;
+                entry.mRemainingRounds = (expiryTick - mTick) / mWheel.length;
+                // Already-due entries land in the current bucket.
+                long tick = Math.max(expiryTick, mTick);
+                mWheel[(int) (tick & mMask)].add(entry);
+            }
+        }
+
+        private void transferCancelled() {
+            Entry entry;
+            while ((entry = mCancelledTimeouts.poll()) != null) {
+                if (entry.mBucket != null) {
+                    entry.mBucket.remove(entry);
+                }
+            }
+        }
+    }
+
+    private final class Entry implements Timeout {
+        static final int STATE_INIT = 0;
+        static final int STATE_CANCELLED = 1;
+        static final int STATE_EXPIRED = 2;
+
+        final Runnable mTask;
+        final long mDeadline;
+        final AtomicInteger mState = new AtomicInteger(STATE_INIT);
+
+        // Owned by the worker thread.
+        long mRemainingRounds;
+        Bucket mBucket;
+        Entry mNext;
+        Entry mPrev;
+
+        Entry(Runnable task, long deadline) {
+            mTask = task;
+            mDeadline = deadline;
+        }
+
+        @Override
+        public boolean cancel() {
+            if (!mState.compareAndSet(STATE_INIT, STATE_CANCELLED)) {
+                return false;
+            }
+            mPendingCount.decrementAndGet();
+            mCancelledCount.incrementAndGet();
+            mCancelledTimeouts.add(this);
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return mState.get() == STATE_CANCELLED;
+        }
+
+        @Override
+        public boolean isExpired() {
+            return mState.get() == STATE_EXPIRED;
+        }
+    }
+
+    /**
+     * Doubly-linked list of entries.  Only touched by the worker thread.
+     */
+    private final class Bucket {
+        private Entry mHead;
+        private Entry mTail;
+
+        void add(Entry entry) {
+            entry.mBucket = this;
+            if (mHead == null) {
+                mHead = mTail = entry;
+            } else {
+                mTail.mNext = entry;
+                entry.mPrev = mTail;
+                mTail = entry;
+            }
+        }
+
+        void expire(long now) {
+            Entry entry = mHead;
+            while (entry != null) {
+                Entry next = entry.mNext;
+                if (entry.mRemainingRounds <= 0) {
+                    remove(entry);
+                    if (entry.mState.compareAndSet(Entry.STATE_INIT, Entry.STATE_EXPIRED)) {
+                        onExpired(entry, now);
+                    }
+                } else {
+                    entry.mRemainingRounds--;
+                }
+                entry = next;
+            }
+        }
+
+        void remove(Entry entry) {
+            if (entry.mBucket != this) return;
+            if (entry.mPrev != null) {
+                entry.mPrev.mNext = entry.mNext;
+            } else {
+                mHead = entry.mNext;
+            }
+            if (entry.mNext != null) {
+                entry.mNext.mPrev = entry.mPrev;
+            } else {
+                mTail = entry.mPrev;
+            }
+            entry.mNext = entry.mPrev = null;
+            entry.mBucket = null;
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-bucket histogram of millisecond values.  Recording is lock-free and allocation-free:  a binary
+ * search over the bucket bounds and an atomic increment.
+ *
+ * Percentiles resolve to the upper bound of the bucket containing them (capped at the largest value
+ * recorded), so they're exact to within one bucket.  Buckets run from 1ms to 1h, roughly 1-2-5 spaced.
+ */
+public class Histogram {
+    // Inclusive upper bound of each bucket, in ms.  A final overflow bucket catches the rest.
+    private static final long[] BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500,
+            1000, 2000, 5000, 10000, 20000, 30000, 60000,
+            120000, 300000, 600000, 1800000, 3600000
+    };
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BOUNDS.length + 1);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    void record(long value) {
+        if (value < 0) value = 0;
+        int index = Arrays.binarySearch(BOUNDS, value);
+        if (index < 0) {
+            // Insertion point:  the first bound greater than value (or the overflow bucket).
+            index = -index - 1;
+        }
+        mCounts.incrementAndGet(index);
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get())) {
+            if (mMax.compareAndSet(max, value)) break;
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public long getMax() {
+        return mMax.get();
+    }
+
+    public long getMean() {
+        long count = mCount.get();
+        return (count == 0) ? 0 : mSum.get() / count;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return the value below which percentile% of recorded values fall, or 0 when empty.
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+            total += counts[i];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(Math.min(100, Math.max(0, percentile)) / 100.0 * total);
+        rank = Math.max(1, rank);
+        long seen = 0;
+        long max = mMax.get();
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return (i < BOUNDS.length) ? Math.min(BOUNDS[i], max) : max;
+            }
+        }
+        return max;
+    }
+
+    public long getP50() { return getPercentile(50); }
+    public long getP95() { return getPercentile(95); }
+    public long getP99() { return getPercentile(99); }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("count", getCount());
+        map.put("mean", getMean());
+        map.put("max", getMax());
+        map.put("p50", getP50());
+        map.put("p95", getP95());
+        map.put("p99", getP99());
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "[count=" + getCount() + ", mean=" + getMean() + ", p50=" + getP50() + ", p95=" + getP95()
+                + ", p99=" + getP99() + ", max=" + getMax() + "]";
+    }
+}
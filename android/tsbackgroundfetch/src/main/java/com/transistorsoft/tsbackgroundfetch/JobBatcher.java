@@ -0,0 +1,114 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Picks the tasks which may ride along on a job that has just fired, so that N tasks with similar
+ * constraints cost one wakeup instead of N.
+ *
+ * A task is eligible when it has opted in with {@link BackgroundFetchConfig.Builder#setBatchWindow},
+ * is JobScheduler-backed, has a pending job falling due within its batch window, isn't already running,
+ * and its constraints are satisfied by those of the job which fired.
+ */
+class JobBatcher {
+
+    static List<BackgroundFetchConfig> collect(Context context, BackgroundFetchConfig host, Collection<BackgroundFetchConfig> candidates) {
+        List<BackgroundFetchConfig> batch = new ArrayList<>();
+        if ((Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) || host.getForceAlarmManager()) {
+            return batch;
+        }
+        Map<Integer, JobInfo> pendingJobs = null;
+        long now = System.currentTimeMillis();
+
+        for (BackgroundFetchConfig candidate : candidates) {
+            if ((candidate.getBatchWindow() <= 0) || candidate.getForceAlarmManager()) continue;
+            if (candidate.getJobId() == host.getJobId()) continue;
+            if (!isCompatible(host, candidate)) continue;
+            if (FetchJobService.isRunning(candidate.getJobId()) || (BGTask.getTask(candidate.getTaskId()) != null)) continue;
+
+            if (pendingJobs == null) {
+                pendingJobs = getPendingJobs(context);
+            }
+            JobInfo job = pendingJobs.get(candidate.getJobId());
+            if (job == null) continue;
+
+            long dueAt = getDueTime(job, candidate, now);
+            if ((dueAt >= 0) && (dueAt - now <= candidate.getBatchWindow())) {
+                batch.add(candidate);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * The host's job is running, so its constraints are currently met.  The candidate is compatible
+     * when it requires nothing beyond them.
+     */
+    static boolean isCompatible(BackgroundFetchConfig host, BackgroundFetchConfig candidate) {
+        if (candidate.getRequiresCharging() && !host.getRequiresCharging()) return false;
+        if (candidate.getRequiresDeviceIdle() && !host.getRequiresDeviceIdle()) return false;
+        if (candidate.getRequiresBatteryNotLow() && !host.getRequiresBatteryNotLow()) return false;
+        if (candidate.getRequiresStorageNotLow() && !host.getRequiresStorageNotLow()) return false;
+
+        if (candidate.getRequiresNotCongested() && !host.getRequiresNotCongested()) return false;
+
+        int required = candidate.getEffectiveNetworkType();
+        int available = host.getEffectiveNetworkType();
+        if ((required == JobInfo.NETWORK_TYPE_NONE) || (required == available)) {
+            return true;
+        }
+        // Any specific network type implies a connection.
+        return (required == JobInfo.NETWORK_TYPE_ANY) && (available != JobInfo.NETWORK_TYPE_NONE);
+    }
+
+    /**
+     * @return wall-clock time the job next falls due, or -1 if unknown.
+     */
+    @TargetApi(21)
+    private static long getDueTime(JobInfo job, BackgroundFetchConfig config, long now) {
+        PersistableBundle extras = job.getExtras();
+        long scheduledAt = (extras != null) ? extras.getLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT) : 0;
+        if (scheduledAt <= 0) {
+            return -1;
+        }
+        long interval = (config.isFetchTask()) ? TimeUnit.MINUTES.toMillis(config.getEffectiveFetchInterval()) : config.getDelay();
+        if (interval <= 0) {
+            return scheduledAt;
+        }
+        long dueAt = scheduledAt + interval;
+        if (config.getPeriodic() && (dueAt <= now)) {
+            // A periodic job keeps its original extras; advance to the current period.
+            long periods = (now - scheduledAt) / interval;
+            dueAt = scheduledAt + (periods + 1) * interval;
+        }
+        return dueAt;
+    }
+
+    @TargetApi(21)
+    private static Map<Integer, JobInfo> getPendingJobs(Context context) {
+        Map<Integer, JobInfo> result = new HashMap<>();
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return result;
+        }
+        List<JobInfo> jobs = jobScheduler.getAllPendingJobs();
+        if (jobs != null) {
+            for (JobInfo job : jobs) {
+                result.put(job.getId(), job);
+            }
+        }
+        return result;
+    }
+}
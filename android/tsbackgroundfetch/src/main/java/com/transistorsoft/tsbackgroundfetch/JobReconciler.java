@@ -0,0 +1,146 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobScheduler;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compares the JobScheduler's pending jobs against persisted task configs:
+ *  - Orphans (a pending FetchJobService job with no config) are cancelled, so they stop waking the process.
+ *  - Configs whose job has vanished are re-registered.
+ *  - Matching jobs are left untouched.
+ *
+ * AlarmManager-backed tasks (forceAlarmManager, or API < 21) can't be enumerated and are ignored.
+ */
+class JobReconciler {
+
+    static class Result {
+        private final List<String> mCancelled = new ArrayList<>();
+        private final List<String> mRescheduled = new ArrayList<>();
+        private int mUnchanged = 0;
+        private long mDuration = 0;
+
+        /**
+         * @return taskIds (or "#jobId" when the job carried no taskId) of orphaned jobs which were cancelled.
+         */
+        List<String> getCancelled() { return Collections.unmodifiableList(mCancelled); }
+
+        /**
+         * @return taskIds whose missing job was re-registered.
+         */
+        List<String> getRescheduled() { return Collections.unmodifiableList(mRescheduled); }
+
+        int getUnchanged() { return mUnchanged; }
+
+        long getDuration() { return mDuration; }
+
+        boolean hasChanges() {
+            return !mCancelled.isEmpty() || !mRescheduled.isEmpty();
+        }
+
+        @Override
+        public String toString() {
+            return "[JobReconciler cancelled=" + mCancelled + ", rescheduled=" + mRescheduled + ", unchanged=" + mUnchanged + ", " + mDuration + "ms]";
+        }
+    }
+
+    static Result reconcile(Context context, Collection<BackgroundFetchConfig> configs) {
+        Result result = new Result();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            return result;
+        }
+        long startedAt = SystemClock.elapsedRealtime();
+        reconcileJobs(context, configs, result);
+        result.mDuration = SystemClock.elapsedRealtime() - startedAt;
+
+        if (result.hasChanges()) {
+            Logger.i("- reconcile: {}", result);
+        } else {
+            Logger.d("- reconcile: {}", result);
+        }
+        return result;
+    }
+
+    @TargetApi(21)
+    private static void reconcileJobs(Context context, Collection<BackgroundFetchConfig> configs, Result result) {
+        JobScheduler jobScheduler = (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        if (jobScheduler == null) {
+            return;
+        }
+        // Snapshot the pending jobs *before* consulting the store:  anything configured after this point
+        // either appears in the store re-check below or schedules its own job.
+        List<JobInfo> pendingJobs = jobScheduler.getAllPendingJobs();
+        if (pendingJobs == null) {
+            pendingJobs = new ArrayList<>();
+        }
+        ConfigStore store = BackgroundFetch.getConfigStore(context);
+
+        Map<Integer, BackgroundFetchConfig> expected = new HashMap<>();
+        for (BackgroundFetchConfig config : configs) {
+            if (!config.getForceAlarmManager()) {
+                expected.put(config.getJobId(), config);
+            }
+        }
+
+        Set<Integer> pendingIds = new HashSet<>();
+        for (JobInfo job : pendingJobs) {
+            if (!isFetchJob(job)) {
+                // Belongs to some other JobService in the host app.
+                continue;
+            }
+            pendingIds.add(job.getId());
+            if (expected.containsKey(job.getId())) {
+                result.mUnchanged++;
+                continue;
+            }
+            PersistableBundle extras = job.getExtras();
+            String taskId = (extras != null) ? extras.getString(BackgroundFetchConfig.FIELD_TASK_ID) : null;
+            if ((taskId != null) && (store.load(taskId) != null)) {
+                // Configured since we were handed the config list.
+                result.mUnchanged++;
+                continue;
+            }
+            jobScheduler.cancel(job.getId());
+            result.mCancelled.add((taskId != null) ? taskId : ("#" + job.getId()));
+        }
+
+        for (Map.Entry<Integer, BackgroundFetchConfig> entry : expected.entrySet()) {
+            BackgroundFetchConfig config = entry.getValue();
+            if (pendingIds.contains(entry.getKey())) {
+                continue;
+            }
+            if (FetchJobService.isRunning(entry.getKey()) || (BGTask.getTask(config.getTaskId()) != null)) {
+                // A one-shot job drops out of the pending list while it runs.  Re-scheduling it now
+                // would stop it.
+                result.mUnchanged++;
+                continue;
+            }
+            if (store.load(config.getTaskId()) == null) {
+                // Stopped since we were handed the config list.
+                continue;
+            }
+            BGTask.schedule(context, config);
+            result.mRescheduled.add(config.getTaskId());
+        }
+    }
+
+    @TargetApi(21)
+    private static boolean isFetchJob(JobInfo job) {
+        ComponentName service = job.getService();
+        return (service != null) && FetchJobService.class.getName().equals(service.getClassName());
+    }
+}
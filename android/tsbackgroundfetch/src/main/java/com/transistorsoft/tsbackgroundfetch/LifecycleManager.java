@@ -2,7 +2,6 @@ package com.transistorsoft.tsbackgroundfetch;
 
 import android.os.Handler;
 import android.os.Looper;
-import android.util.Log;
 
 import androidx.annotation.NonNull;
 import androidx.lifecycle.DefaultLifecycleObserver;
@@ -45,7 +44,7 @@ public class LifecycleManager implements DefaultLifecycleObserver, Runnable {
         mHandler    = new Handler(Looper.getMainLooper());
         onHeadlessChange(isHeadless -> {
             if (isHeadless) {
-                Log.d(BackgroundFetch.TAG, "☯️  HeadlessMode? " + isHeadless);
+                Logger.d("☯️  HeadlessMode? {}", isHeadless);
             }
         });
     }
@@ -86,7 +85,7 @@ public class LifecycleManager implements DefaultLifecycleObserver, Runnable {
     public void setHeadless(boolean value) {
         mIsHeadless.set(value);
         if (mIsHeadless.get()) {
-            Log.d(BackgroundFetch.TAG,"☯️  HeadlessMode? " + mIsHeadless);
+            Logger.d("☯️  HeadlessMode? {}", mIsHeadless);
         }
         if (mHeadlessChangeEvent != null) {
             mHandler.removeCallbacks(mHeadlessChangeEvent);
@@ -125,7 +124,7 @@ public class LifecycleManager implements DefaultLifecycleObserver, Runnable {
 
     @Override
     public void onCreate(@NonNull LifecycleOwner owner) {
-        Log.d(BackgroundFetch.TAG,"☯️  onCreate");
+        Logger.d("☯️  onCreate");
         // If this 50ms Timer fires before onStart, we are headless
         mHeadlessChangeEvent = new Runnable() {
             @Override public void run() {
@@ -141,7 +140,7 @@ public class LifecycleManager implements DefaultLifecycleObserver, Runnable {
 
     @Override
     public void onStart(@NonNull LifecycleOwner owner) {
-        Log.d(BackgroundFetch.TAG, "☯️  onStart");
+        Logger.d("☯️  onStart");
         // Cancel StateChange Timer.
         if (mPaused.get()) {
             return;
@@ -160,14 +159,14 @@ public class LifecycleManager implements DefaultLifecycleObserver, Runnable {
 
     @Override
     public void onDestroy(@NonNull LifecycleOwner owner) {
-        Log.d(BackgroundFetch.TAG, "☯️  onDestroy");
+        Logger.d("☯️  onDestroy");
         mIsBackground.set(true);
         mIsHeadless.set(true);
     }
 
     @Override
     public void onStop(@NonNull LifecycleOwner owner) {
-        Log.d(BackgroundFetch.TAG, "☯️  onStop");
+        Logger.d("☯️  onStop");
         if (mPaused.compareAndSet(true, false)) {
             return;
         }
@@ -177,14 +176,14 @@ public class LifecycleManager implements DefaultLifecycleObserver, Runnable {
 
     @Override
     public void onPause(@NonNull LifecycleOwner owner) {
-        Log.d(BackgroundFetch.TAG, "☯️  onPause");
+        Logger.d("☯️  onPause");
         mIsBackground.set(true);
         fireStateChangeListeners(false);
     }
 
     @Override
     public void onResume(@NonNull LifecycleOwner owner) {
-        Log.d(BackgroundFetch.TAG, "☯️  onResume");
+        Logger.d("☯️  onResume");
         if (mPaused.get()) {
             return;
         }
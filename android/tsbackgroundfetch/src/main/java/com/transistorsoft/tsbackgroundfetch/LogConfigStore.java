@@ -0,0 +1,852 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.content.Context;
+import android.os.FileObserver;
+import android.os.Looper;
+import android.os.Process;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeoutException;
+import java.util.zip.CRC32;
+
+/**
+ * Single-file, append-only binary {@link ConfigStore}.
+ *
+ * Every save / remove appends one checksummed record to TSBackgroundFetch.configs.  The file is read
+ * with a single sequential pass the first time it's needed; the last record for a taskId wins.  Once
+ * superseded records outnumber live ones, the file is compacted by writing the live set to a temp file
+ * and renaming it over the original, on the background executor.  A torn or corrupt tail (eg: process
+ * killed mid-append) is dropped and compacted away on open.  A file whose header isn't recognized (eg: written
+ * by a newer version of the plugin) is never overwritten:  it's renamed aside and the store starts empty.
+ *
+ * Appends aren't fsync'd:  they only need to survive the process being killed, which the page cache ensures.
+ * Compaction is, since it replaces the whole file.
+ *
+ * The file may be shared by several processes of the app.  Every operation holds a {@link ProcessLock} on
+ * TSBackgroundFetch.configs.lock, first applying whatever other processes appended since this one last read
+ * the file.  The lock is only held for reads and unsynced appends:  compaction writes and syncs its new file
+ * beforehand, then bumps the epoch kept in the lock file, which tells other processes to re-read it in full.
+ * The main thread waits at most {@link #MAIN_THREAD_LOCK_TIMEOUT} for the lock;  failing that, reads are served
+ * from the last state read and writes are queued, in call order, for the background executor.  Later writes queue
+ * behind them until the queue is empty, so they're never applied out of order.  If nothing has been read yet,
+ * {@link #tryLoad(String)} gives up, while load / loadAll have no choice but to wait.  With a
+ * {@link ConfigStore.ChangeListener} set, a FileObserver reports other processes' changes as they're written.
+ *
+ * On first open, configs persisted in the legacy {@link SharedPreferencesConfigStore} layout are
+ * migrated into the log and the old preferences cleared.
+ *
+ * File:    [int MAGIC][int VERSION] record*
+ * Record:  [int length][int crc32(body)] body
+ * Body:    [byte OP_PUT][UTF taskId][short count] (UTF name, byte type, value)*
+ *        | [byte OP_REMOVE][UTF taskId]
+ */
+public class LogConfigStore implements ConfigStore {
+    static final String FILE_NAME = BackgroundFetch.TAG + ".configs";
+
+    private static final int MAGIC = 0x54534246; // "TSBF"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_OVERHEAD = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_BOOLEAN = 2;
+    private static final byte TYPE_INT = 3;
+    private static final byte TYPE_LONG = 4;
+    private static final byte TYPE_FLOAT = 5;
+
+    // Don't bother compacting until at least this many records are dead.
+    private static final int MIN_COMPACT_GARBAGE = 32;
+    private static final long MAIN_THREAD_LOCK_TIMEOUT = 100L;
+
+    private final Context mContext;
+    private final File mFile;
+    private final ProcessLock mProcessLock;
+
+    // State below is guarded by mProcessLock.
+    // Live records, in insertion order.  null until the file has been read.
+    private Map<String, Map<String, Object>> mRecords;
+    private int mGarbage;
+    // How far mRecords reflects the file, and the file's epoch at the time.
+    private long mReadOffset;
+    private long mEpoch;
+    private boolean mCompactScheduled;
+    // Set if an unrecognized file couldn't be moved aside:  it mustn't be written to.
+    private boolean mReadOnly;
+    // Copy of mRecords as of the last unlock, for the main thread to read when the lock is busy.  Only rebuilt
+    // when mRecords has changed since.
+    private volatile Map<String, Map<String, Object>> mSnapshot;
+    private boolean mSnapshotStale;
+
+    private ChangeListener mListener;
+    private FileObserver mObserver;
+
+    // Writes the main thread couldn't make promptly, in call order.  The head stays queued until it has been
+    // written.  Guarded by itself.
+    private final ArrayDeque<Runnable> mQueuedWrites = new ArrayDeque<>();
+
+    public LogConfigStore(Context context) {
+        this(context, new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    LogConfigStore(Context context, File file) {
+        mContext = context.getApplicationContext();
+        mFile = file;
+        mProcessLock = ProcessLock.forFile(new File(file.getPath() + ".lock"));
+    }
+
+    @Override
+    public List<BackgroundFetchConfig> loadAll() {
+        if (!lockProcess()) {
+            Map<String, Map<String, Object>> snapshot = mSnapshot;
+            if (snapshot != null) {
+                Logger.w("[LogConfigStore] {} is busy:  reading the last known state", mFile.getName());
+                return toConfigs(snapshot);
+            }
+            // Nothing read yet:  no choice but to wait.
+            lockProcessBlocking();
+        }
+        try {
+            return toConfigs(open());
+        } finally {
+            unlockProcess();
+        }
+    }
+
+    @Override
+    public BackgroundFetchConfig load(String taskId) {
+        if (!lockProcess()) {
+            Map<String, Map<String, Object>> snapshot = mSnapshot;
+            if (snapshot != null) {
+                return loadSnapshot(snapshot, taskId);
+            }
+            lockProcessBlocking();
+        }
+        return loadLocked(taskId);
+    }
+
+    /**
+     * Like load(), but when the main thread can't get the lock before anything has been read, give up.
+     */
+    @Override
+    public BackgroundFetchConfig tryLoad(String taskId) throws TimeoutException {
+        if (!lockProcess()) {
+            Map<String, Map<String, Object>> snapshot = mSnapshot;
+            if (snapshot == null) {
+                throw new TimeoutException(mFile.getName() + " is busy");
+            }
+            return loadSnapshot(snapshot, taskId);
+        }
+        return loadLocked(taskId);
+    }
+
+    private BackgroundFetchConfig loadSnapshot(Map<String, Map<String, Object>> snapshot, String taskId) {
+        Logger.w("[LogConfigStore] {} is busy:  reading the last known state", mFile.getName());
+        Map<String, Object> fields = snapshot.get(taskId);
+        return (fields != null) ? toConfig(taskId, fields) : null;
+    }
+
+    // Caller holds the process lock, which is released.
+    private BackgroundFetchConfig loadLocked(String taskId) {
+        try {
+            // Even for a single task, read everything:  the rest is usually wanted next (eg: a cold launch loads
+            // every config after the firing one), and is then already in memory.
+            Map<String, Object> fields = open().get(taskId);
+            return (fields != null) ? toConfig(taskId, fields) : null;
+        } finally {
+            unlockProcess();
+        }
+    }
+
+    @Override
+    public void save(final BackgroundFetchConfig config) {
+        write(new Runnable() {
+            @Override public void run() {
+                Map<String, Map<String, Object>> records = open();
+                Map<String, Object> fields = config.toFields();
+                try {
+                    append(encodePut(config.getTaskId(), fields));
+                } catch (IOException e) {
+                    Logger.e("[LogConfigStore] failed to save {}: {}", config.getTaskId(), e.getMessage());
+                    return;
+                }
+                if (records.put(config.getTaskId(), fields) != null) {
+                    mGarbage++;
+                }
+                mSnapshotStale = true;
+                compactIfNeeded();
+            }
+        });
+    }
+
+    @Override
+    public void remove(final String taskId) {
+        write(new Runnable() {
+            @Override public void run() {
+                Map<String, Map<String, Object>> records = open();
+                if (!records.containsKey(taskId)) {
+                    return;
+                }
+                try {
+                    append(encodeRemove(taskId));
+                } catch (IOException e) {
+                    Logger.e("[LogConfigStore] failed to remove {}: {}", taskId, e.getMessage());
+                    return;
+                }
+                records.remove(taskId);
+                mSnapshotStale = true;
+                // Both the put and the remove record are now dead.
+                mGarbage += 2;
+                compactIfNeeded();
+            }
+        });
+    }
+
+    /**
+     * Append every remove record in a single write.
+     */
+    @Override
+    public void removeAll(final Collection<String> taskIds) {
+        write(new Runnable() {
+            @Override public void run() {
+                Map<String, Map<String, Object>> records = open();
+                List<String> removed = new ArrayList<>();
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+                try {
+                    DataOutputStream data = new DataOutputStream(buffer);
+                    for (String taskId : taskIds) {
+                        if (records.containsKey(taskId) && !removed.contains(taskId)) {
+                            writeRecord(data, encodeRemove(taskId));
+                            removed.add(taskId);
+                        }
+                    }
+                    data.flush();
+                    if (removed.isEmpty()) {
+                        return;
+                    }
+                    appendRaw(buffer);
+                } catch (IOException e) {
+                    Logger.e("[LogConfigStore] failed to remove {}: {}", removed, e.getMessage());
+                    return;
+                }
+                for (String taskId : removed) {
+                    records.remove(taskId);
+                }
+                mSnapshotStale = true;
+                mGarbage += 2 * removed.size();
+                compactIfNeeded();
+            }
+        });
+    }
+
+    /**
+     * Rewrite the file with only the live records.  The new file is written and synced without holding the
+     * process lock, and replaces the original only if nothing was written to it meanwhile.
+     */
+    void compact() {
+        Map<String, Map<String, Object>> records;
+        long length;
+        long epoch;
+        lockProcessBlocking();
+        try {
+            mCompactScheduled = false;
+            records = new LinkedHashMap<>(open());
+            length = mReadOffset;
+            epoch = mEpoch;
+        } finally {
+            unlockProcess();
+        }
+        File tmp;
+        try {
+            tmp = writeTemp(records);
+        } catch (IOException e) {
+            Logger.e("[LogConfigStore] compaction failed: {}", e.getMessage());
+            return;
+        }
+        lockProcessBlocking();
+        try {
+            if ((mFile.length() != length) || (mProcessLock.readEpoch() != epoch)) {
+                // The next write schedules another attempt.
+                Logger.d("[LogConfigStore] {} changed while compacting:  skipped", mFile.getName());
+                tmp.delete();
+                return;
+            }
+            install(tmp);
+        } catch (IOException e) {
+            Logger.e("[LogConfigStore] compaction failed: {}", e.getMessage());
+            tmp.delete();
+        } finally {
+            unlockProcess();
+        }
+    }
+
+    /**
+     * Apply changes written by other processes since this one last read the file.
+     *
+     * @return the taskIds whose config changed;  empty if nothing has been read yet (the next read is fresh anyway).
+     */
+    Collection<String> refresh() {
+        Set<String> changed = new LinkedHashSet<>();
+        lockProcessBlocking();
+        try {
+            if (mRecords != null) {
+                catchUp(changed);
+            }
+        } finally {
+            unlockProcess();
+        }
+        return changed;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public synchronized void setChangeListener(ChangeListener listener) {
+        mListener = listener;
+        if (listener == null) {
+            if (mObserver != null) {
+                mObserver.stopWatching();
+                mObserver = null;
+            }
+            return;
+        }
+        if (mObserver != null) {
+            return;
+        }
+        final String name = mFile.getName();
+        // Appends close the file;  compaction renames over it.  Our own writes are events too, but refresh()
+        // finds nothing new in them.
+        mObserver = new FileObserver(mFile.getParent(), FileObserver.CLOSE_WRITE | FileObserver.MOVED_TO) {
+            @Override public void onEvent(int event, String path) {
+                if (name.equals(path)) {
+                    BackgroundFetch.getExecutor().execute(new Runnable() {
+                        @Override public void run() {
+                            notifyChanged();
+                        }
+                    });
+                }
+            }
+        };
+        mObserver.startWatching();
+    }
+
+    private void notifyChanged() {
+        Collection<String> changed = refresh();
+        ChangeListener listener;
+        synchronized (this) {
+            listener = mListener;
+        }
+        if ((listener != null) && !changed.isEmpty()) {
+            Logger.d("[LogConfigStore] changed by another process: {}", changed);
+            listener.onChanged(changed);
+        }
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    private BackgroundFetchConfig toConfig(String taskId, Map<String, Object> fields) {
+        return new BackgroundFetchConfig.Builder().setTaskId(taskId).setFields(fields).build();
+    }
+
+    private List<BackgroundFetchConfig> toConfigs(Map<String, Map<String, Object>> records) {
+        List<BackgroundFetchConfig> result = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Object>> entry : records.entrySet()) {
+            result.add(toConfig(entry.getKey(), entry.getValue()));
+        }
+        return result;
+    }
+
+    /**
+     * Run write under the process lock.  If the main thread can't get it promptly, the write is queued for the
+     * background executor, which waits for it.  While writes are queued, later ones join the queue rather than
+     * overtake them.
+     */
+    private void write(final Runnable write) {
+        synchronized (mQueuedWrites) {
+            if (!mQueuedWrites.isEmpty()) {
+                mQueuedWrites.add(write);
+                return;
+            }
+        }
+        if (lockProcess()) {
+            try {
+                write.run();
+            } finally {
+                unlockProcess();
+            }
+            return;
+        }
+        Logger.w("[LogConfigStore] {} is busy:  writing in the background", mFile.getName());
+        synchronized (mQueuedWrites) {
+            mQueuedWrites.add(write);
+            if (mQueuedWrites.size() > 1) {
+                // Already being written.
+                return;
+            }
+        }
+        BackgroundFetch.getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                writeQueued();
+            }
+        });
+    }
+
+    // One at a time, so that the executor's threads can't reorder them.
+    private void writeQueued() {
+        while (true) {
+            Runnable write;
+            synchronized (mQueuedWrites) {
+                write = mQueuedWrites.peek();
+            }
+            if (write == null) {
+                return;
+            }
+            lockProcessBlocking();
+            try {
+                write.run();
+            } catch (RuntimeException e) {
+                // Don't strand the writes queued behind it.
+                Logger.e("[LogConfigStore] queued write failed", e);
+            } finally {
+                unlockProcess();
+                synchronized (mQueuedWrites) {
+                    mQueuedWrites.poll();
+                }
+            }
+        }
+    }
+
+    /**
+     * Lock, waiting at most MAIN_THREAD_LOCK_TIMEOUT on the main thread:  another process may hold the lock for
+     * a while.
+     * @return false if the main thread didn't get the lock.
+     */
+    private boolean lockProcess() {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            lockProcessBlocking();
+            return true;
+        }
+        try {
+            return mProcessLock.tryLock(MAIN_THREAD_LOCK_TIMEOUT);
+        } catch (IOException e) {
+            Logger.w("[LogConfigStore] failed to lock {}: {}", mFile.getName(), e.getMessage());
+            return true;
+        }
+    }
+
+    // If the lock file is unusable, carry on regardless:  this process at least stays consistent.
+    private void lockProcessBlocking() {
+        try {
+            mProcessLock.lock();
+        } catch (IOException e) {
+            Logger.w("[LogConfigStore] failed to lock {}: {}", mFile.getName(), e.getMessage());
+        }
+    }
+
+    private void unlockProcess() {
+        if (mSnapshotStale) {
+            mSnapshot = (mRecords != null) ? Collections.unmodifiableMap(new LinkedHashMap<>(mRecords)) : null;
+            mSnapshotStale = false;
+        }
+        mProcessLock.unlock();
+    }
+
+    // Caller holds the process lock.
+    private Map<String, Map<String, Object>> open() {
+        if (mRecords != null) {
+            catchUp(null);
+            return mRecords;
+        }
+        mRecords = new LinkedHashMap<>();
+        mGarbage = 0;
+        mSnapshotStale = true;
+        if (!mFile.exists()) {
+            migrate();
+            return mRecords;
+        }
+        try {
+            if (!read()) {
+                // Corrupt or torn tail:  keep what we could read and rewrite a clean file.
+                Logger.w("[LogConfigStore] discarded corrupt tail of {}", mFile.getName());
+                rewrite(mRecords);
+            }
+        } catch (UnrecognizedFileException e) {
+            setAside();
+        } catch (IOException e) {
+            Logger.e("[LogConfigStore] failed to read {}: {}", mFile.getName(), e.getMessage());
+        }
+        return mRecords;
+    }
+
+    /**
+     * Read the whole file in a single pass.
+     * @return false if a corrupt or truncated record was encountered.
+     * @throws UnrecognizedFileException if the header isn't ours.
+     */
+    private boolean read() throws IOException {
+        mEpoch = mProcessLock.readEpoch();
+        byte[] bytes = readFully(mFile);
+        if (bytes.length < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+            throw new UnrecognizedFileException();
+        }
+        int end = applyRecords(bytes, HEADER_SIZE, null);
+        mReadOffset = end;
+        return end == bytes.length;
+    }
+
+    /**
+     * Apply the records in bytes from start on, stopping at the first corrupt or truncated one.
+     *
+     * @param changed collects the affected taskIds, if not null.
+     * @return the offset just past the last good record.
+     */
+    private int applyRecords(byte[] bytes, int start, Collection<String> changed) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        buffer.position(start);
+        CRC32 crc = new CRC32();
+        while (buffer.hasRemaining()) {
+            int recordStart = buffer.position();
+            if (buffer.remaining() < RECORD_OVERHEAD) {
+                return recordStart;
+            }
+            int length = buffer.getInt();
+            int checksum = buffer.getInt();
+            if (length <= 0 || length > buffer.remaining()) {
+                return recordStart;
+            }
+            int offset = buffer.position();
+            crc.reset();
+            crc.update(bytes, offset, length);
+            if ((int) crc.getValue() != checksum) {
+                return recordStart;
+            }
+            String taskId = apply(new DataInputStream(new ByteArrayInputStream(bytes, offset, length)));
+            if (changed != null) {
+                changed.add(taskId);
+            }
+            buffer.position(offset + length);
+        }
+        return buffer.position();
+    }
+
+    /**
+     * Apply what other processes appended since we last read the file, or re-read it in full if another process
+     * compacted it.  Caller holds the process lock.
+     *
+     * @param changed collects the affected taskIds, if not null.
+     */
+    private void catchUp(Collection<String> changed) {
+        try {
+            long length = mFile.length();
+            if ((mProcessLock.readEpoch() == mEpoch) && (length >= mReadOffset)) {
+                if (length == mReadOffset) {
+                    return;
+                }
+                byte[] bytes = readRange(mFile, mReadOffset, length);
+                int end = applyRecords(bytes, 0, changed);
+                if (end == bytes.length) {
+                    mReadOffset += end;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            Logger.w("[LogConfigStore] failed to catch up on {}: {}", mFile.getName(), e.getMessage());
+        }
+        // Rewritten elsewhere, or a torn tail:  start over.
+        Map<String, Map<String, Object>> previous = mRecords;
+        mRecords = null;
+        open();
+        if (changed != null) {
+            for (Map.Entry<String, Map<String, Object>> entry : previous.entrySet()) {
+                if (!entry.getValue().equals(mRecords.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+            for (String taskId : mRecords.keySet()) {
+                if (!previous.containsKey(taskId)) {
+                    changed.add(taskId);
+                }
+            }
+        }
+    }
+
+    // @return the record's taskId.
+    private String apply(DataInputStream in) throws IOException {
+        byte op = in.readByte();
+        String taskId = in.readUTF();
+        if (op == OP_PUT) {
+            int count = in.readShort();
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for (int i = 0; i < count; i++) {
+                String name = in.readUTF();
+                fields.put(name, readValue(in));
+            }
+            if (mRecords.put(taskId, fields) != null) {
+                mGarbage++;
+            }
+        } else if (op == OP_REMOVE) {
+            if (mRecords.remove(taskId) != null) {
+                mGarbage++;
+            }
+            mGarbage++;
+        } else {
+            throw new IOException("Unknown record op " + op);
+        }
+        mSnapshotStale = true;
+        return taskId;
+    }
+
+    /**
+     * Rename an unrecognized file out of the way, rather than discard configs we merely can't read, and start
+     * a fresh one.
+     */
+    private void setAside() {
+        File aside = new File(mFile.getPath() + ".unrecognized-" + System.currentTimeMillis());
+        if (!mFile.renameTo(aside)) {
+            Logger.e("[LogConfigStore] unrecognized file {} could not be moved aside; changes won't be saved", mFile.getName());
+            mReadOnly = true;
+            return;
+        }
+        Logger.w("[LogConfigStore] unrecognized file header:  moved to {} and starting empty", aside.getName());
+        try {
+            rewrite(mRecords);
+        } catch (IOException e) {
+            Logger.e("[LogConfigStore] failed to recreate {}: {}", mFile.getName(), e.getMessage());
+        }
+    }
+
+    private void migrate() {
+        SharedPreferencesConfigStore legacy = new SharedPreferencesConfigStore(mContext);
+        List<BackgroundFetchConfig> configs = legacy.loadAll();
+        for (BackgroundFetchConfig config : configs) {
+            mRecords.put(config.getTaskId(), config.toFields());
+        }
+        try {
+            // Always create the file, so we only look for the legacy layout once.
+            rewrite(mRecords);
+        } catch (IOException e) {
+            Logger.e("[LogConfigStore] migration failed: {}", e.getMessage());
+            return;
+        }
+        for (String taskId : legacy.getTaskIds()) {
+            legacy.remove(taskId);
+        }
+        if (!configs.isEmpty()) {
+            Logger.d("[LogConfigStore] migrated {} task configs from SharedPreferences", configs.size());
+        }
+    }
+
+    // The caller may be the main thread:  leave the rewrite to the background executor.
+    private void compactIfNeeded() {
+        if (mCompactScheduled || mGarbage < MIN_COMPACT_GARBAGE || mGarbage <= mRecords.size()) {
+            return;
+        }
+        mCompactScheduled = true;
+        BackgroundFetch.getExecutor().execute(new Runnable() {
+            @Override public void run() {
+                compact();
+            }
+        });
+    }
+
+    // Caller holds the process lock.
+    private void rewrite(Map<String, Map<String, Object>> records) throws IOException {
+        install(writeTemp(records));
+    }
+
+    /**
+     * Write records to a new, synced temp file, unique to this thread.
+     */
+    private File writeTemp(Map<String, Map<String, Object>> records) throws IOException {
+        if (mReadOnly) {
+            throw new IOException(mFile.getName() + " is unrecognized");
+        }
+        File tmp = new File(mFile.getPath() + "." + Process.myPid() + "-" + Thread.currentThread().getId() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            DataOutputStream data = new DataOutputStream(buffer);
+            data.writeInt(MAGIC);
+            data.writeInt(VERSION);
+            for (Map.Entry<String, Map<String, Object>> entry : records.entrySet()) {
+                writeRecord(data, encodePut(entry.getKey(), entry.getValue()));
+            }
+            data.flush();
+            buffer.writeTo(out);
+            out.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        return tmp;
+    }
+
+    // Replace the file with tmp.  Caller holds the process lock.
+    private void install(File tmp) throws IOException {
+        long length = tmp.length();
+        if (!tmp.renameTo(mFile)) {
+            tmp.delete();
+            throw new IOException("Failed to rename " + tmp.getName());
+        }
+        mGarbage = 0;
+        mReadOffset = length;
+        mEpoch = mProcessLock.bumpEpoch();
+    }
+
+    private void append(byte[] body) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(body.length + RECORD_OVERHEAD);
+        DataOutputStream data = new DataOutputStream(buffer);
+        writeRecord(data, body);
+        data.flush();
+        appendRaw(buffer);
+    }
+
+    private void appendRaw(ByteArrayOutputStream buffer) throws IOException {
+        if (mReadOnly) {
+            throw new IOException(mFile.getName() + " is unrecognized");
+        }
+        FileOutputStream out = new FileOutputStream(mFile, true);
+        try {
+            buffer.writeTo(out);
+            out.flush();
+        } finally {
+            out.close();
+        }
+        // We'd caught up before appending (see open()), so this is all that's new.
+        mReadOffset += buffer.size();
+    }
+
+    private static void writeRecord(DataOutputStream out, byte[] body) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(body, 0, body.length);
+        out.writeInt(body.length);
+        out.writeInt((int) crc.getValue());
+        out.write(body);
+    }
+
+    private static byte[] encodePut(String taskId, Map<String, Object> fields) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(OP_PUT);
+        out.writeUTF(taskId);
+        out.writeShort(fields.size());
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            out.writeUTF(field.getKey());
+            writeValue(out, field.getValue());
+        }
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static byte[] encodeRemove(String taskId) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(taskId);
+        out.flush();
+        return buffer.toByteArray();
+    }
+
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TYPE_NULL);
+        } else if (value instanceof String) {
+            out.writeByte(TYPE_STRING);
+            out.writeUTF((String) value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(TYPE_BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        } else if (value instanceof Integer) {
+            out.writeByte(TYPE_INT);
+            out.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            out.writeByte(TYPE_LONG);
+            out.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            out.writeByte(TYPE_FLOAT);
+            out.writeFloat((Float) value);
+        } else {
+            throw new IOException("Unsupported field type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case TYPE_NULL: return null;
+            case TYPE_STRING: return in.readUTF();
+            case TYPE_BOOLEAN: return in.readBoolean();
+            case TYPE_INT: return in.readInt();
+            case TYPE_LONG: return in.readLong();
+            case TYPE_FLOAT: return in.readFloat();
+            default: throw new IOException("Unknown field type " + type);
+        }
+    }
+
+    private static byte[] readRange(File file, long from, long to) throws IOException {
+        byte[] bytes = new byte[(int) (to - from)];
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            in.seek(from);
+            in.readFully(bytes);
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static byte[] readFully(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                int count = in.read(bytes, offset, bytes.length - offset);
+                if (count < 0) break;
+                offset += count;
+            }
+            if (offset < bytes.length) {
+                byte[] truncated = new byte[offset];
+                System.arraycopy(bytes, 0, truncated, 0, offset);
+                return truncated;
+            }
+        } finally {
+            in.close();
+        }
+        return bytes;
+    }
+
+    private static class UnrecognizedFileException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UnrecognizedFileException() {
+            super("Unrecognized file header");
+        }
+    }
+}
@@ -0,0 +1,236 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.content.Context;
+import android.content.pm.ApplicationInfo;
+import android.util.Log;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * The plugin's logger.
+ *  - Levels are configurable at runtime ({@link #setLevel(int)}).  The default is DEBUG for debuggable apps and
+ *    INFO otherwise, so release builds don't pay for debug logging on every wakeup.
+ *  - Messages are formatted lazily:  "{}" placeholders are replaced by the arguments only once the level is known
+ *    to be enabled, so a disabled call costs a level check.  Pass objects rather than pre-built strings.
+ *  - Enabled messages go to a {@link Sink} (default:  logcat) and to a bounded in-memory ring buffer which can be
+ *    dumped for support tickets ({@link #dump()}).
+ *
+ * A trailing Throwable argument which has no placeholder of its own is logged with its stack trace.
+ */
+public class Logger {
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    public static final int OFF = Integer.MAX_VALUE;
+
+    static final int DEFAULT_BUFFER_SIZE = 250;
+
+    public interface Sink {
+        /**
+         * @param error may be null.
+         */
+        void log(int level, String message, Throwable error);
+    }
+
+    /**
+     * A buffered log entry.
+     */
+    public static class Entry {
+        public final long timestamp;
+        public final int level;
+        public final String thread;
+        public final String message;
+        public final Throwable error;
+
+        Entry(int level, String message, Throwable error) {
+            this.timestamp = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.message = message;
+            this.error = error;
+        }
+
+        @Override
+        public String toString() {
+            SimpleDateFormat format = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+            String line = format.format(new Date(timestamp)) + " " + levelName(level) + " [" + thread + "] " + message;
+            return (error != null) ? line + "\n" + Log.getStackTraceString(error) : line;
+        }
+    }
+
+    private static final Sink LOGCAT = new Sink() {
+        @Override public void log(int level, String message, Throwable error) {
+            if (error != null) {
+                message += "\n" + Log.getStackTraceString(error);
+            }
+            Log.println(level, BackgroundFetch.TAG, message);
+        }
+    };
+
+    private static volatile int sLevel = DEBUG;
+    private static volatile boolean sLevelSet = false;
+    private static volatile Sink sSink = LOGCAT;
+
+    // Ring buffer.  Guarded by sBufferLock.
+    private static final Object sBufferLock = new Object();
+    private static Entry[] sBuffer = new Entry[DEFAULT_BUFFER_SIZE];
+    private static int sBufferHead = 0;
+    private static int sBufferCount = 0;
+
+    /**
+     * Apply the default level for the app's build type, unless the app has already chosen one.
+     */
+    static void init(Context context) {
+        if (sLevelSet) {
+            return;
+        }
+        ApplicationInfo info = context.getApplicationInfo();
+        boolean debuggable = (info != null) && ((info.flags & ApplicationInfo.FLAG_DEBUGGABLE) != 0);
+        sLevel = debuggable ? DEBUG : INFO;
+    }
+
+    /**
+     * @param level VERBOSE, DEBUG, INFO, WARN, ERROR or OFF.  Messages below it are dropped.
+     */
+    public static void setLevel(int level) {
+        sLevel = level;
+        sLevelSet = true;
+    }
+
+    public static int getLevel() {
+        return sLevel;
+    }
+
+    public static boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * Replace the logcat sink, eg: to forward to the app's own logging.  null restores logcat.
+     */
+    public static void setSink(Sink sink) {
+        sSink = (sink != null) ? sink : LOGCAT;
+    }
+
+    /**
+     * @param size entries retained for {@link #dump()};  0 disables the buffer.
+     */
+    public static void setBufferSize(int size) {
+        synchronized (sBufferLock) {
+            sBuffer = new Entry[Math.max(0, size)];
+            sBufferHead = 0;
+            sBufferCount = 0;
+        }
+    }
+
+    /**
+     * @return the buffered entries, oldest first.
+     */
+    public static List<Entry> getEntries() {
+        synchronized (sBufferLock) {
+            List<Entry> entries = new ArrayList<>(sBufferCount);
+            int start = sBufferHead - sBufferCount;
+            for (int i = 0; i < sBufferCount; i++) {
+                entries.add(sBuffer[(start + i + sBuffer.length) % sBuffer.length]);
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * @return the buffered entries as text, one per line, oldest first.
+     */
+    public static String dump() {
+        StringBuilder output = new StringBuilder();
+        for (Entry entry : getEntries()) {
+            output.append(entry).append('\n');
+        }
+        return output.toString();
+    }
+
+    public static void clear() {
+        synchronized (sBufferLock) {
+            sBufferHead = 0;
+            sBufferCount = 0;
+            java.util.Arrays.fill(sBuffer, null);
+        }
+    }
+
+    // Fixed-arity overloads, so that a disabled call doesn't allocate a varargs array.
+
+    public static void v(String message) { if (isLoggable(VERBOSE)) log(VERBOSE, message, null); }
+    public static void v(String format, Object arg) { if (isLoggable(VERBOSE)) log(VERBOSE, format, new Object[] { arg }); }
+    public static void v(String format, Object arg1, Object arg2) { if (isLoggable(VERBOSE)) log(VERBOSE, format, new Object[] { arg1, arg2 }); }
+    public static void v(String format, Object... args) { if (isLoggable(VERBOSE)) log(VERBOSE, format, args); }
+
+    public static void d(String message) { if (isLoggable(DEBUG)) log(DEBUG, message, null); }
+    public static void d(String format, Object arg) { if (isLoggable(DEBUG)) log(DEBUG, format, new Object[] { arg }); }
+    public static void d(String format, Object arg1, Object arg2) { if (isLoggable(DEBUG)) log(DEBUG, format, new Object[] { arg1, arg2 }); }
+    public static void d(String format, Object... args) { if (isLoggable(DEBUG)) log(DEBUG, format, args); }
+
+    public static void i(String message) { if (isLoggable(INFO)) log(INFO, message, null); }
+    public static void i(String format, Object arg) { if (isLoggable(INFO)) log(INFO, format, new Object[] { arg }); }
+    public static void i(String format, Object arg1, Object arg2) { if (isLoggable(INFO)) log(INFO, format, new Object[] { arg1, arg2 }); }
+    public static void i(String format, Object... args) { if (isLoggable(INFO)) log(INFO, format, args); }
+
+    public static void w(String message) { if (isLoggable(WARN)) log(WARN, message, null); }
+    public static void w(String format, Object arg) { if (isLoggable(WARN)) log(WARN, format, new Object[] { arg }); }
+    public static void w(String format, Object arg1, Object arg2) { if (isLoggable(WARN)) log(WARN, format, new Object[] { arg1, arg2 }); }
+    public static void w(String format, Object... args) { if (isLoggable(WARN)) log(WARN, format, args); }
+
+    public static void e(String message) { if (isLoggable(ERROR)) log(ERROR, message, null); }
+    public static void e(String format, Object arg) { if (isLoggable(ERROR)) log(ERROR, format, new Object[] { arg }); }
+    public static void e(String format, Object arg1, Object arg2) { if (isLoggable(ERROR)) log(ERROR, format, new Object[] { arg1, arg2 }); }
+    public static void e(String format, Object... args) { if (isLoggable(ERROR)) log(ERROR, format, args); }
+
+    private static void log(int level, String format, Object[] args) {
+        Throwable error = null;
+        String message = format;
+        if (args != null) {
+            StringBuilder output = new StringBuilder(format.length() + 16 * args.length);
+            int used = 0;
+            int from = 0;
+            int at;
+            while ((used < args.length) && ((at = format.indexOf("{}", from)) >= 0)) {
+                output.append(format, from, at).append(args[used++]);
+                from = at + 2;
+            }
+            output.append(format, from, format.length());
+            message = output.toString();
+            if ((used < args.length) && (args[args.length - 1] instanceof Throwable)) {
+                error = (Throwable) args[args.length - 1];
+            }
+        }
+        Entry entry = new Entry(level, message, error);
+        synchronized (sBufferLock) {
+            if (sBuffer.length > 0) {
+                sBuffer[sBufferHead] = entry;
+                sBufferHead = (sBufferHead + 1) % sBuffer.length;
+                sBufferCount = Math.min(sBufferCount + 1, sBuffer.length);
+            }
+        }
+        try {
+            sSink.log(level, message, error);
+        } catch (RuntimeException e) {
+            // A broken sink mustn't take the caller down with it.
+            Log.e(BackgroundFetch.TAG, "[Logger] sink error: " + e);
+        }
+    }
+
+    static String levelName(int level) {
+        switch (level) {
+            case VERBOSE: return "V";
+            case DEBUG: return "D";
+            case INFO: return "I";
+            case WARN: return "W";
+            case ERROR: return "E";
+            default: return String.valueOf(level);
+        }
+    }
+}
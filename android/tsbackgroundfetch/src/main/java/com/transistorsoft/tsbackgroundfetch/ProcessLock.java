@@ -0,0 +1,147 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Reentrant lock shared by every thread and process of the app, backed by an exclusive FileLock on a lock file.
+ * Java file locks are held per-process, so threads of this process are serialized by an in-process lock first;
+ * there's one instance per file, see {@link #forFile(File)}.
+ *
+ * The lock file also holds an epoch (a long) which lock holders may read and write, eg: to tell other processes
+ * that a file was rewritten.
+ */
+class ProcessLock {
+    // How often tryLock() polls for a file lock held by another process.
+    private static final long RETRY_INTERVAL = 10L;
+
+    private static final Map<String, ProcessLock> sLocks = new HashMap<>();
+
+    private final File mFile;
+    private final ReentrantLock mLock = new ReentrantLock();
+    // Guarded by mLock.
+    private RandomAccessFile mAccess;
+    private FileLock mFileLock;
+
+    static ProcessLock forFile(File file) {
+        String path = file.getAbsolutePath();
+        synchronized (sLocks) {
+            ProcessLock lock = sLocks.get(path);
+            if (lock == null) {
+                lock = new ProcessLock(file);
+                sLocks.put(path, lock);
+            }
+            return lock;
+        }
+    }
+
+    private ProcessLock(File file) {
+        mFile = file;
+    }
+
+    /**
+     * Block until this thread holds the lock.  Must be paired with {@link #unlock()}, even when this throws.
+     *
+     * @throws IOException if the file lock can't be taken.  The in-process lock is still held.
+     */
+    void lock() throws IOException {
+        mLock.lock();
+        if (mLock.getHoldCount() > 1) {
+            return;
+        }
+        if (mAccess == null) {
+            mAccess = new RandomAccessFile(mFile, "rw");
+        }
+        mFileLock = mAccess.getChannel().lock();
+    }
+
+    /**
+     * Like {@link #lock()}, but give up if another thread or process still holds the lock after timeout ms.
+     *
+     * @return false if the lock wasn't taken, in which case it mustn't be unlocked.
+     * @throws IOException if the file lock can't be taken.  The in-process lock is still held.
+     */
+    boolean tryLock(long timeout) throws IOException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        try {
+            if (!mLock.tryLock(timeout, TimeUnit.MILLISECONDS)) {
+                return false;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (mLock.getHoldCount() > 1) {
+            return true;
+        }
+        if (mAccess == null) {
+            mAccess = new RandomAccessFile(mFile, "rw");
+        }
+        while (true) {
+            try {
+                mFileLock = mAccess.getChannel().tryLock();
+            } catch (OverlappingFileLockException e) {
+                // Held through another channel of this process.
+                mFileLock = null;
+            }
+            if (mFileLock != null) {
+                return true;
+            }
+            if (System.nanoTime() >= deadline) {
+                mLock.unlock();
+                return false;
+            }
+            try {
+                Thread.sleep(RETRY_INTERVAL);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                mLock.unlock();
+                return false;
+            }
+        }
+    }
+
+    void unlock() {
+        try {
+            if ((mLock.getHoldCount() == 1) && (mFileLock != null)) {
+                mFileLock.release();
+                mFileLock = null;
+            }
+        } catch (IOException e) {
+            Logger.w("[ProcessLock] failed to release {}: {}", mFile.getName(), e.getMessage());
+            mFileLock = null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    /**
+     * @return the epoch last written, or 0.  Caller must hold the lock.
+     */
+    long readEpoch() throws IOException {
+        if ((mFileLock == null) || (mAccess.length() < 8)) {
+            return 0;
+        }
+        mAccess.seek(0);
+        return mAccess.readLong();
+    }
+
+    /**
+     * @return a new epoch, written for other processes to see.  Caller must hold the lock.
+     */
+    long bumpEpoch() throws IOException {
+        long epoch = readEpoch() + 1;
+        if (mFileLock != null) {
+            mAccess.seek(0);
+            mAccess.writeLong(epoch);
+        }
+        return epoch;
+    }
+}
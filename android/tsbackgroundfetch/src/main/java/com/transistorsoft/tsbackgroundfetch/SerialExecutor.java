@@ -0,0 +1,41 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.Process;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks one at a time, in submission order, on its own background thread, which exits when idle.  The
+ * queue is unbounded, so execute() never blocks or runs a task on the calling thread (often main), however
+ * busy the shared executor is.
+ */
+class SerialExecutor implements Executor {
+    private static final long KEEP_ALIVE_TIME = 30000L;
+
+    private final ThreadPoolExecutor mExecutor;
+
+    SerialExecutor(final String name) {
+        mExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_TIME, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override public Thread newThread(final Runnable r) {
+                        return new Thread(new Runnable() {
+                            @Override public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name);
+                    }
+                });
+        mExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable r) {
+        mExecutor.execute(r);
+    }
+}
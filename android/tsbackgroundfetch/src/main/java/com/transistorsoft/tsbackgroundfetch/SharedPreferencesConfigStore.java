@@ -0,0 +1,125 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The original persistence layout:  one SharedPreferences file per task (TSBackgroundFetch:<taskId>)
+ * plus a "tasks" string-set in the TSBackgroundFetch prefs.  Retained so that existing installs can
+ * be migrated into {@link LogConfigStore}, and for hosts which prefer to keep this layout.
+ */
+public class SharedPreferencesConfigStore implements ConfigStore {
+    static final String KEY_TASKS = "tasks";
+
+    private final Context mContext;
+
+    public SharedPreferencesConfigStore(Context context) {
+        mContext = context.getApplicationContext();
+    }
+
+    @Override
+    public List<BackgroundFetchConfig> loadAll() {
+        List<BackgroundFetchConfig> result = new ArrayList<>();
+        for (String taskId : getTaskIds()) {
+            BackgroundFetchConfig config = load(taskId);
+            if (config != null) {
+                result.add(config);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public BackgroundFetchConfig load(String taskId) {
+        Map<String, ?> fields = getTaskPreferences(taskId).getAll();
+        if (fields.isEmpty()) {
+            return null;
+        }
+        return new BackgroundFetchConfig.Builder().setTaskId(taskId).setFields(fields).build();
+    }
+
+    @Override
+    public void save(BackgroundFetchConfig config) {
+        SharedPreferences preferences = mContext.getSharedPreferences(BackgroundFetch.TAG, 0);
+        Set<String> taskIds = getTaskIds();
+        if (!taskIds.contains(config.getTaskId())) {
+            Set<String> newIds = new HashSet<>(taskIds);
+            newIds.add(config.getTaskId());
+
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putStringSet(KEY_TASKS, newIds);
+            editor.apply();
+        }
+
+        SharedPreferences.Editor editor = getTaskPreferences(config.getTaskId()).edit();
+        for (Map.Entry<String, Object> field : config.toFields().entrySet()) {
+            Object value = field.getValue();
+            if (value instanceof Boolean) {
+                editor.putBoolean(field.getKey(), (Boolean) value);
+            } else if (value instanceof Integer) {
+                editor.putInt(field.getKey(), (Integer) value);
+            } else if (value instanceof Long) {
+                editor.putLong(field.getKey(), (Long) value);
+            } else if (value instanceof Float) {
+                editor.putFloat(field.getKey(), (Float) value);
+            } else {
+                editor.putString(field.getKey(), (String) value);
+            }
+        }
+        editor.apply();
+    }
+
+    @Override
+    public void remove(String taskId) {
+        SharedPreferences preferences = mContext.getSharedPreferences(BackgroundFetch.TAG, 0);
+        Set<String> taskIds = getTaskIds();
+        if (taskIds.contains(taskId)) {
+            Set<String> newIds = new HashSet<>(taskIds);
+            newIds.remove(taskId);
+            SharedPreferences.Editor editor = preferences.edit();
+            editor.putStringSet(KEY_TASKS, newIds);
+            editor.apply();
+        }
+        // Clear per-task preferences for all task types (fetch and scheduled).
+        SharedPreferences.Editor editor = getTaskPreferences(taskId).edit();
+        editor.clear();
+        editor.apply();
+    }
+
+    /**
+     * Updates the "tasks" set once for all taskIds.
+     */
+    @Override
+    public void removeAll(Collection<String> taskIds) {
+        Set<String> existing = getTaskIds();
+        Set<String> newIds = new HashSet<>(existing);
+        newIds.removeAll(taskIds);
+        if (newIds.size() != existing.size()) {
+            SharedPreferences.Editor editor = mContext.getSharedPreferences(BackgroundFetch.TAG, 0).edit();
+            editor.putStringSet(KEY_TASKS, newIds);
+            editor.apply();
+        }
+        for (String taskId : taskIds) {
+            SharedPreferences.Editor editor = getTaskPreferences(taskId).edit();
+            editor.clear();
+            editor.apply();
+        }
+    }
+
+    Set<String> getTaskIds() {
+        SharedPreferences preferences = mContext.getSharedPreferences(BackgroundFetch.TAG, 0);
+        Set<String> taskIds = preferences.getStringSet(KEY_TASKS, new HashSet<String>());
+        return (taskIds != null) ? taskIds : new HashSet<String>();
+    }
+
+    private SharedPreferences getTaskPreferences(String taskId) {
+        return mContext.getSharedPreferences(BackgroundFetch.TAG + ":" + taskId, 0);
+    }
+}
@@ -0,0 +1,265 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.content.Context;
+import android.os.Looper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Cross-process claim on a taskId for the duration of a run, so that when the app runs components in more than
+ * one process (android:process), each of which has its own BackgroundFetch, a task fires in only one of them.
+ *
+ * A lease is an exclusive FileLock on a per-task lock file.  The OS drops it if the holding process dies, so a
+ * lease can't outlive its process.  Within a process, leases are shared and reference-counted:  same-process
+ * overlap is already handled by BGTask's task registry.
+ *
+ * A task's lock file is deleted once the task is gone for good (see {@link #delete}).  Opening + locking a lease
+ * file and deleting one both happen under a {@link ProcessLock} on the lease directory, so a process can't end
+ * up holding a lock on a file which has since been unlinked and replaced.  That lock is taken before sHeld, never
+ * while holding it, and the main thread waits at most {@link #MAIN_THREAD_LOCK_TIMEOUT} for it:  acquire() then
+ * throws, and deletes are handed to the background executor.
+ */
+class TaskLease {
+    private static final String DIR_NAME = BackgroundFetch.TAG + ".leases";
+    static final long MAIN_THREAD_LOCK_TIMEOUT = 100L;
+
+    // taskId -> lease held by this process.  Guarded by itself.
+    private static final Map<String, TaskLease> sHeld = new HashMap<>();
+
+    private final String mTaskId;
+    private final FileChannel mChannel;
+    private final FileLock mLock;
+    private final File mFile;
+    // Guarded by sHeld.
+    private int mHolders = 1;
+    private boolean mDeleteOnRelease;
+
+    /**
+     * @return the lease, or null if another process holds it.  If the lock file can't be used at all, the
+     * returned lease guards nothing, so the task still runs.
+     * @throws TimeoutException on the main thread, if another process kept the lease directory locked for more
+     * than MAIN_THREAD_LOCK_TIMEOUT.  Try again off the main thread.
+     */
+    static TaskLease acquire(Context context, String taskId) throws TimeoutException {
+        TaskLease lease = hold(taskId);
+        if (lease != null) {
+            return lease;
+        }
+        File file = getFile(context, taskId);
+        ProcessLock dirLock = getDirLock(context.getFilesDir());
+        if (!lockDir(dirLock)) {
+            throw new TimeoutException(DIR_NAME + " is busy");
+        }
+        try {
+            synchronized (sHeld) {
+                // Another thread of this process may have taken it meanwhile.
+                lease = hold(taskId);
+                if (lease != null) {
+                    return lease;
+                }
+                lease = open(taskId, file);
+                if (lease != null) {
+                    sHeld.put(taskId, lease);
+                }
+                return lease;
+            }
+        } finally {
+            dirLock.unlock();
+        }
+    }
+
+    // @return this process's lease on taskId, with one more holder, or null.
+    private static TaskLease hold(String taskId) {
+        synchronized (sHeld) {
+            TaskLease lease = sHeld.get(taskId);
+            if (lease != null) {
+                lease.mHolders++;
+            }
+            return lease;
+        }
+    }
+
+    // Caller holds the directory lock.
+    private static TaskLease open(String taskId, File file) {
+        FileChannel channel = null;
+        try {
+            File dir = file.getParentFile();
+            if ((dir != null) && !dir.isDirectory() && !dir.mkdirs()) {
+                throw new IOException("Failed to create " + dir.getName());
+            }
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                close(channel);
+                return null;
+            }
+            return new TaskLease(taskId, file, channel, lock);
+        } catch (OverlappingFileLockException e) {
+            // Locked through some other channel of this process:  just as unavailable.
+            close(channel);
+            return null;
+        } catch (IOException e) {
+            Logger.w("[TaskLease] {} running without a lease: {}", taskId, e.getMessage());
+            close(channel);
+            return new TaskLease(taskId, file, null, null);
+        }
+    }
+
+    /**
+     * Delete taskId's lock file, once the task has been stopped or has finished for good.  If this process holds
+     * the lease, the file goes when it's released;  if another process does, it's left alone.
+     */
+    static void delete(Context context, String taskId) {
+        synchronized (sHeld) {
+            TaskLease held = sHeld.get(taskId);
+            if (held != null) {
+                held.mDeleteOnRelease = true;
+                return;
+            }
+        }
+        File file = getFile(context, taskId);
+        if (file.exists()) {
+            deleteFile(taskId, file);
+        }
+    }
+
+    private static void deleteFile(final String taskId, final File file) {
+        final ProcessLock dirLock = getDirLock(file.getParentFile().getParentFile());
+        if (!lockDir(dirLock)) {
+            BackgroundFetch.getExecutor().execute(new Runnable() {
+                @Override public void run() {
+                    lockDirBlocking(dirLock);
+                    try {
+                        deleteUnlessHeld(taskId, file);
+                    } finally {
+                        dirLock.unlock();
+                    }
+                }
+            });
+            return;
+        }
+        try {
+            deleteUnlessHeld(taskId, file);
+        } finally {
+            dirLock.unlock();
+        }
+    }
+
+    // Caller holds the directory lock.
+    private static void deleteUnlessHeld(String taskId, File file) {
+        synchronized (sHeld) {
+            TaskLease held = sHeld.get(taskId);
+            if (held != null) {
+                held.mDeleteOnRelease = true;
+                return;
+            }
+            FileChannel channel = null;
+            try {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                FileLock lock = channel.tryLock();
+                if (lock != null) {
+                    file.delete();
+                    lock.release();
+                }
+            } catch (OverlappingFileLockException e) {
+                // In use.
+            } catch (IOException e) {
+                Logger.w("[TaskLease] failed to delete {}: {}", file.getName(), e.getMessage());
+            } finally {
+                close(channel);
+            }
+        }
+    }
+
+    static File getFile(Context context, String taskId) {
+        String name = taskId.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + Integer.toHexString(taskId.hashCode());
+        return new File(new File(context.getFilesDir(), DIR_NAME), name + ".lock");
+    }
+
+    private static ProcessLock getDirLock(File filesDir) {
+        return ProcessLock.forFile(new File(filesDir, DIR_NAME + ".lock"));
+    }
+
+    /**
+     * Lock the lease directory, held only to open + lock, or delete, a lease file.  The main thread waits at most
+     * MAIN_THREAD_LOCK_TIMEOUT.
+     * @return false if the main thread didn't get the lock.
+     */
+    private static boolean lockDir(ProcessLock dirLock) {
+        if (Looper.myLooper() != Looper.getMainLooper()) {
+            lockDirBlocking(dirLock);
+            return true;
+        }
+        try {
+            return dirLock.tryLock(MAIN_THREAD_LOCK_TIMEOUT);
+        } catch (IOException e) {
+            Logger.w("[TaskLease] failed to lock {}: {}", DIR_NAME, e.getMessage());
+            return true;
+        }
+    }
+
+    private static void lockDirBlocking(ProcessLock dirLock) {
+        try {
+            dirLock.lock();
+        } catch (IOException e) {
+            Logger.w("[TaskLease] failed to lock {}: {}", DIR_NAME, e.getMessage());
+        }
+    }
+
+    private TaskLease(String taskId, File file, FileChannel channel, FileLock lock) {
+        mTaskId = taskId;
+        mFile = file;
+        mChannel = channel;
+        mLock = lock;
+    }
+
+    String getTaskId() {
+        return mTaskId;
+    }
+
+    /**
+     * Drop this process's hold.  The file lock is released with the last holder.
+     */
+    void release() {
+        synchronized (sHeld) {
+            if (--mHolders > 0) {
+                return;
+            }
+            if (sHeld.get(mTaskId) == this) {
+                sHeld.remove(mTaskId);
+            }
+            try {
+                if (mLock != null) {
+                    mLock.release();
+                }
+            } catch (IOException e) {
+                Logger.w("[TaskLease] failed to release {}: {}", mTaskId, e.getMessage());
+            }
+            close(mChannel);
+            if (!mDeleteOnRelease || (mLock == null)) {
+                return;
+            }
+        }
+        // Unlocked, so another process may take it before the file goes:  deleteFile() leaves it if so.
+        deleteFile(mTaskId, mFile);
+    }
+
+    private static void close(FileChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // Nothing to do.
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+/**
+ * Limits how many tasks are dispatched at once:  per task group (BackgroundFetchConfig.Builder#setGroup) and
+ * overall (BackgroundFetch#setMaxConcurrentTasks).  Tasks over a limit wait in a queue ordered by priority, then
+ * arrival, holding their job until a running task finishes.  A task's timeout keeps running while it waits, so
+ * queue time counts against its budget;  a task cancelled while queued is finished without ever being dispatched.
+ */
+class TaskLimiter {
+    private static class Entry {
+        final BGTask task;
+        final String group;
+        final int groupLimit;
+        final int priority;
+        final Runnable dispatch;
+        final long enqueuedAt = SystemClock.elapsedRealtime();
+
+        Entry(BGTask task, String group, int groupLimit, int priority, Runnable dispatch) {
+            this.task = task;
+            this.group = group;
+            this.groupLimit = groupLimit;
+            this.priority = priority;
+            this.dispatch = dispatch;
+        }
+    }
+
+    private final Executor mDeferredExecutor;
+    private int mMaxConcurrent = 0;
+    private int mRunning = 0;
+    private final Map<String, Integer> mRunningByGroup = new HashMap<>();
+    // Running tasks -> their group (or null).
+    private final Map<BGTask, String> mActive = new IdentityHashMap<>();
+    private final LinkedList<Entry> mQueue = new LinkedList<>();
+
+    /**
+     * @param deferredExecutor runs the dispatch of tasks which had to wait.
+     */
+    TaskLimiter(Executor deferredExecutor) {
+        mDeferredExecutor = deferredExecutor;
+    }
+
+    /**
+     * @param max tasks dispatched at once across all groups;  0 for no limit.
+     */
+    synchronized void setMaxConcurrent(int max) {
+        mMaxConcurrent = Math.max(0, max);
+    }
+
+    synchronized int getMaxConcurrent() {
+        return mMaxConcurrent;
+    }
+
+    /**
+     * Dispatch task now if within limits, else queue it.
+     *
+     * @param group the task's group, or null.
+     * @param groupLimit the group's concurrency limit;  0 for none.
+     * @param priority BackgroundFetchConfig.PRIORITY_*:  higher priority tasks are dispatched first.
+     * @param dispatch delivers the task.  Run here if admitted immediately, else later on the deferred executor.
+     */
+    void submit(final BGTask task, String group, int groupLimit, int priority, Runnable dispatch) {
+        final Entry entry = new Entry(task, group, groupLimit, priority, dispatch);
+        boolean queued = false;
+        synchronized (this) {
+            // Untracked when there's no limit to apply.
+            boolean limited = (group != null) || (mMaxConcurrent > 0);
+            if (limited && canRun(entry)) {
+                start(entry);
+            } else if (limited) {
+                enqueue(entry);
+                queued = true;
+                Logger.d("- Queued {} (group: {}, running: {}, queued: {})", task.getTaskId(), group, mRunning, mQueue.size());
+            }
+        }
+        if (!queued) {
+            entry.dispatch.run();
+            return;
+        }
+        task.getCancellationToken().addListener(new CancellationToken.Listener() {
+            @Override public void onCancelled(CancellationToken token) {
+                boolean queued;
+                synchronized (TaskLimiter.this) {
+                    queued = mQueue.remove(entry);
+                }
+                if (queued) {
+                    Logger.d("- Cancelled {} while queued", task.getTaskId());
+                    task.finish();
+                }
+            }
+        });
+    }
+
+    /**
+     * A task finished:  free its slot and dispatch whatever queued tasks now fit.
+     */
+    void release(BGTask task) {
+        List<Entry> admitted = new ArrayList<>();
+        synchronized (this) {
+            if (!mActive.containsKey(task)) {
+                // Finished while still queued.
+                Iterator<Entry> iterator = mQueue.iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next().task == task) {
+                        iterator.remove();
+                    }
+                }
+                return;
+            }
+            String group = mActive.remove(task);
+            mRunning--;
+            if (group != null) {
+                int running = mRunningByGroup.get(group) - 1;
+                if (running > 0) {
+                    mRunningByGroup.put(group, running);
+                } else {
+                    mRunningByGroup.remove(group);
+                }
+            }
+            Iterator<Entry> iterator = mQueue.iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (canRun(entry)) {
+                    iterator.remove();
+                    start(entry);
+                    admitted.add(entry);
+                }
+            }
+        }
+        for (Entry entry : admitted) {
+            mDeferredExecutor.execute(entry.dispatch);
+        }
+    }
+
+    synchronized int getRunningCount() {
+        return mRunning;
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueue.size();
+    }
+
+    // Guarded by this.  After the last entry of equal or higher priority.
+    private void enqueue(Entry entry) {
+        ListIterator<Entry> iterator = mQueue.listIterator(mQueue.size());
+        while (iterator.hasPrevious()) {
+            if (iterator.previous().priority >= entry.priority) {
+                iterator.next();
+                break;
+            }
+        }
+        iterator.add(entry);
+    }
+
+    // Guarded by this.
+    private boolean canRun(Entry entry) {
+        if ((mMaxConcurrent > 0) && (mRunning >= mMaxConcurrent)) {
+            return false;
+        }
+        if ((entry.group != null) && (entry.groupLimit > 0)) {
+            Integer running = mRunningByGroup.get(entry.group);
+            return (running == null) || (running < entry.groupLimit);
+        }
+        return true;
+    }
+
+    // Guarded by this.
+    private void start(Entry entry) {
+        mActive.put(entry.task, entry.group);
+        mRunning++;
+        if (entry.group != null) {
+            Integer running = mRunningByGroup.get(entry.group);
+            mRunningByGroup.put(entry.group, (running == null) ? 1 : running + 1);
+        }
+        String taskId = entry.task.getTaskId();
+        if (taskId != null) {
+            TaskMetrics.forTask(taskId).onQueueWait(SystemClock.elapsedRealtime() - entry.enqueuedAt);
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-task execution metrics, held in memory for the life of the process:
+ *  - schedulingDelay:  how late the task started relative to when it was due (0 when on time).
+ *  - duration:  time from the event being dispatched to the app until finish.
+ *  - queueWait:  time spent queued behind concurrency limits (see TaskLimiter) before being dispatched.
+ *  - cancellationLatency:  time from the task being cancelled (OS stop / timeout) until it actually finished.
+ *  - starts, timeouts, and stops (the OS stopping the job early).
+ *
+ * Obtain with {@link BackgroundFetch#getMetrics(String)}.
+ */
+public class TaskMetrics {
+    private static final TaskRegistry<TaskMetrics> sMetrics = new TaskRegistry<>();
+
+    /**
+     * @return metrics for taskId, created on first use.
+     */
+    static TaskMetrics forTask(String taskId) {
+        TaskMetrics metrics = sMetrics.get(taskId);
+        if (metrics == null) {
+            TaskMetrics created = new TaskMetrics(taskId);
+            metrics = sMetrics.putIfAbsent(taskId, created);
+            if (metrics == null) {
+                metrics = created;
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * @return metrics for taskId, or null if it hasn't run in this process.
+     */
+    static TaskMetrics get(String taskId) {
+        return sMetrics.get(taskId);
+    }
+
+    static void clear() {
+        sMetrics.clear();
+    }
+
+    private final String mTaskId;
+    private final Histogram mSchedulingDelay = new Histogram();
+    private final Histogram mDuration = new Histogram();
+    private final Histogram mCancellationLatency = new Histogram();
+    private final Histogram mQueueWait = new Histogram();
+    private final AtomicLong mStartCount = new AtomicLong();
+    private final AtomicLong mTimeoutCount = new AtomicLong();
+    private final AtomicLong mStopCount = new AtomicLong();
+    private volatile long mLastStartedAt = 0;
+
+    private TaskMetrics(String taskId) {
+        mTaskId = taskId;
+    }
+
+    /**
+     * Record a start and its scheduling delay.
+     *
+     * @param scheduledAtElapsed elapsedRealtime when the task was scheduled, or -1 if unknown.
+     * @param scheduledAt wall-clock time when the task was scheduled, or 0 if unknown.  Only consulted
+     *                    when elapsedRealtime can't be (eg: the device has since rebooted).
+     * @param interval the task's delay / period in ms, or -1 if unknown.
+     */
+    void onStart(long scheduledAtElapsed, long scheduledAt, long interval, boolean periodic) {
+        long now = SystemClock.elapsedRealtime();
+        long lastStartedAt = mLastStartedAt;
+        mLastStartedAt = now;
+        mStartCount.incrementAndGet();
+
+        if (interval < 0) {
+            // Scheduled by an older version of the plugin:  due time unknown.
+            return;
+        }
+        long delay = 0;
+        boolean hasScheduledTime = false;
+        if (periodic && (lastStartedAt > 0)) {
+            delay = now - (lastStartedAt + interval);
+            hasScheduledTime = true;
+        } else if ((scheduledAtElapsed >= 0) && (scheduledAtElapsed <= now)) {
+            // A periodic task with no previous start in this process can only be measured in its first period.
+            if (!periodic || (now - scheduledAtElapsed < 2 * interval)) {
+                delay = now - (scheduledAtElapsed + interval);
+                hasScheduledTime = true;
+            }
+        } else if ((scheduledAt > 0) && !periodic) {
+            delay = System.currentTimeMillis() - (scheduledAt + interval);
+            hasScheduledTime = true;
+        }
+        if (hasScheduledTime) {
+            // JobScheduler may legitimately run a job early within its flex window.
+            mSchedulingDelay.record(Math.max(0, delay));
+        }
+    }
+
+    void onFinish(long duration) {
+        mDuration.record(duration);
+    }
+
+    void onQueueWait(long wait) {
+        mQueueWait.record(wait);
+    }
+
+    void onCancelledFinish(long latency) {
+        mCancellationLatency.record(latency);
+    }
+
+    void onTimeout() {
+        mTimeoutCount.incrementAndGet();
+    }
+
+    void onStop() {
+        mStopCount.incrementAndGet();
+    }
+
+    public String getTaskId() { return mTaskId; }
+
+    public Histogram getSchedulingDelay() { return mSchedulingDelay; }
+
+    public Histogram getDuration() { return mDuration; }
+
+    public Histogram getCancellationLatency() { return mCancellationLatency; }
+
+    public Histogram getQueueWait() { return mQueueWait; }
+
+    public long getStartCount() { return mStartCount.get(); }
+
+    public long getTimeoutCount() { return mTimeoutCount.get(); }
+
+    public long getStopCount() { return mStopCount.get(); }
+
+    public Map<String, Object> toMap() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("taskId", mTaskId);
+        map.put("starts", getStartCount());
+        map.put("timeouts", getTimeoutCount());
+        map.put("stops", getStopCount());
+        map.put("schedulingDelay", mSchedulingDelay.toMap());
+        map.put("duration", mDuration.toMap());
+        map.put("cancellationLatency", mCancellationLatency.toMap());
+        map.put("queueWait", mQueueWait.toMap());
+        return map;
+    }
+
+    @Override
+    public String toString() {
+        return "[TaskMetrics taskId=" + mTaskId + ", starts=" + getStartCount() + ", timeouts=" + getTimeoutCount()
+                + ", stops=" + getStopCount() + ", schedulingDelay=" + mSchedulingDelay + ", duration=" + mDuration
+                + ", cancellationLatency=" + mCancellationLatency + ", queueWait=" + mQueueWait + "]";
+    }
+}
@@ -0,0 +1,87 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Concurrent map of values keyed by taskId.  Keys are normalized so that lookups match with the
+ * same semantics as {@link String#equalsIgnoreCase(String)}.  Reads are lock-free; insert and remove
+ * are atomic per-key.  A null taskId can't be registered, and looks up nothing.
+ */
+final class TaskRegistry<V> {
+    private final ConcurrentHashMap<String, V> mEntries = new ConcurrentHashMap<>();
+
+    /**
+     * Fold a taskId to the key used by the registry.  Mirrors the per-character comparison done by
+     * String#equalsIgnoreCase so that both forms agree for every input.  Returns the input itself
+     * when it is already folded, so the common all-lowercase taskId does not allocate.
+     */
+    static String normalize(String taskId) {
+        if (taskId == null) throw new NullPointerException("taskId");
+        int length = taskId.length();
+        for (int i = 0; i < length; i++) {
+            char c = taskId.charAt(i);
+            if (fold(c) != c) {
+                char[] chars = taskId.toCharArray();
+                for (int j = i; j < length; j++) {
+                    chars[j] = fold(chars[j]);
+                }
+                return new String(chars);
+            }
+        }
+        return taskId;
+    }
+
+    private static char fold(char c) {
+        return Character.toLowerCase(Character.toUpperCase(c));
+    }
+
+    V get(String taskId) {
+        return (taskId != null) ? mEntries.get(normalize(taskId)) : null;
+    }
+
+    boolean contains(String taskId) {
+        return (taskId != null) && mEntries.containsKey(normalize(taskId));
+    }
+
+    /**
+     * @return the value previously registered for taskId, or null.
+     */
+    V put(String taskId, V value) {
+        return mEntries.put(normalize(taskId), value);
+    }
+
+    /**
+     * @return the value already registered for taskId (in which case nothing changed), or null.
+     */
+    V putIfAbsent(String taskId, V value) {
+        return mEntries.putIfAbsent(normalize(taskId), value);
+    }
+
+    V remove(String taskId) {
+        return (taskId != null) ? mEntries.remove(normalize(taskId)) : null;
+    }
+
+    /**
+     * Remove taskId only while it is still mapped to value.
+     */
+    boolean remove(String taskId, V value) {
+        return (taskId != null) && mEntries.remove(normalize(taskId), value);
+    }
+
+    Collection<V> values() {
+        return mEntries.values();
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+}
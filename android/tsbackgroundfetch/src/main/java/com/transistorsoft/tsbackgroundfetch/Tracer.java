@@ -0,0 +1,295 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import android.os.Build;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.Trace;
+
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opt-in recorder of the fetch lifecycle (job start, duplicate filtering, config load, headless detection,
+ * dispatch, finish, jobFinished) as trace events, exported as Chrome trace-event JSON for chrome://tracing or
+ * ui.perfetto.dev.
+ *
+ * Events are written into a preallocated ring buffer (the newest {@code capacity} events are kept), with the
+ * thread id and an elapsedRealtimeNanos timestamp.  While enabled, spans are mirrored to android.os.Trace
+ * so they also show up in a system trace.  Disabled (the default), each call costs a volatile read or two.
+ *
+ * Span and event names should be constants:  recording them mustn't allocate.
+ */
+public class Tracer {
+    static final int DEFAULT_CAPACITY = 4096;
+
+    private static final char PHASE_BEGIN = 'B';
+    private static final char PHASE_END = 'E';
+    private static final char PHASE_INSTANT = 'i';
+    private static final char PHASE_ASYNC_BEGIN = 'b';
+    private static final char PHASE_ASYNC_END = 'e';
+
+    private static volatile boolean sEnabled = false;
+
+    // Each thread's stack of unended begin() calls, noting which of them were recorded (and mirrored to
+    // android.os.Trace), so that end() stays paired with its begin() when the tracer is toggled in between.
+    // Only maintained while some span is open, so that a disabled tracer never touches it.
+    private static final AtomicInteger sStackedSpans = new AtomicInteger();
+    private static final ThreadLocal<SpanStack> sSpans = new ThreadLocal<SpanStack>() {
+        @Override protected SpanStack initialValue() {
+            return new SpanStack();
+        }
+    };
+
+    private static class SpanStack {
+        private boolean[] mBegun = new boolean[8];
+        private int mDepth = 0;
+
+        void push(boolean begun) {
+            if (mDepth == mBegun.length) {
+                mBegun = Arrays.copyOf(mBegun, mDepth * 2);
+            }
+            mBegun[mDepth++] = begun;
+        }
+
+        /**
+         * @return whether the popped span was begun, or false if the stack is empty.
+         */
+        boolean pop() {
+            return (mDepth > 0) && mBegun[--mDepth];
+        }
+
+        boolean isEmpty() {
+            return mDepth == 0;
+        }
+    }
+
+    // Ring buffer, as parallel arrays.  Guarded by sLock.
+    private static final Object sLock = new Object();
+    private static char[] sPhases = new char[0];
+    private static String[] sNames = new String[0];
+    private static Object[] sArgs = new Object[0];
+    private static long[] sTimestamps = new long[0];
+    private static int[] sTids = new int[0];
+    private static String[] sThreadNames = new String[0];
+    private static int[] sIds = new int[0];
+    private static int sHead = 0;
+    private static int sCount = 0;
+
+    /**
+     * Start recording into a buffer of {@link #DEFAULT_CAPACITY} events, discarding anything recorded earlier.
+     */
+    public static void enable() {
+        enable(DEFAULT_CAPACITY);
+    }
+
+    public static void enable(int capacity) {
+        capacity = Math.max(1, capacity);
+        synchronized (sLock) {
+            sPhases = new char[capacity];
+            sNames = new String[capacity];
+            sArgs = new Object[capacity];
+            sTimestamps = new long[capacity];
+            sTids = new int[capacity];
+            sThreadNames = new String[capacity];
+            sIds = new int[capacity];
+            sHead = 0;
+            sCount = 0;
+        }
+        sEnabled = true;
+    }
+
+    /**
+     * Stop recording.  What was recorded remains available to {@link #toJson()} until the next enable().
+     */
+    public static void disable() {
+        sEnabled = false;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    /**
+     * @return events currently held.
+     */
+    public static int getEventCount() {
+        synchronized (sLock) {
+            return sCount;
+        }
+    }
+
+    /**
+     * Begin a span on the current thread.  Must be matched by {@link #end(String)} on the same thread.
+     */
+    public static void begin(String name) {
+        if (sEnabled) {
+            beginSpan(name, null);
+        } else if (sStackedSpans.get() > 0) {
+            skipSpan();
+        }
+    }
+
+    public static void begin(String name, Object arg) {
+        if (sEnabled) {
+            beginSpan(name, arg);
+        } else if (sStackedSpans.get() > 0) {
+            skipSpan();
+        }
+    }
+
+    /**
+     * End the current thread's innermost span.  A no-op if that span was begun while disabled;  a span begun
+     * while enabled is ended even if the tracer has since been disabled.
+     */
+    public static void end(String name) {
+        if (sStackedSpans.get() == 0) {
+            return;
+        }
+        SpanStack spans = sSpans.get();
+        if (spans.isEmpty()) {
+            return;
+        }
+        sStackedSpans.decrementAndGet();
+        if (spans.pop()) {
+            Trace.endSection();
+            record(PHASE_END, name, null, 0);
+        }
+    }
+
+    private static void beginSpan(String name, Object arg) {
+        sSpans.get().push(true);
+        sStackedSpans.incrementAndGet();
+        record(PHASE_BEGIN, name, arg, 0);
+        Trace.beginSection(name);
+    }
+
+    private static void skipSpan() {
+        sSpans.get().push(false);
+        sStackedSpans.incrementAndGet();
+    }
+
+    public static void instant(String name, Object arg) {
+        if (sEnabled) {
+            record(PHASE_INSTANT, name, arg, 0);
+        }
+    }
+
+    /**
+     * Begin a span which may end on another thread, eg: a task's lifetime.  id pairs it with its
+     * {@link #asyncEnd(String, int)}.
+     */
+    public static void asyncBegin(String name, int id, Object arg) {
+        if (sEnabled) {
+            record(PHASE_ASYNC_BEGIN, name, arg, id);
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.beginAsyncSection(name, id);
+            }
+        }
+    }
+
+    public static void asyncEnd(String name, int id) {
+        if (sEnabled) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+                Trace.endAsyncSection(name, id);
+            }
+            record(PHASE_ASYNC_END, name, null, id);
+        }
+    }
+
+    private static void record(char phase, String name, Object arg, int id) {
+        long timestamp = SystemClock.elapsedRealtimeNanos();
+        int tid = Process.myTid();
+        String threadName = Thread.currentThread().getName();
+        synchronized (sLock) {
+            int capacity = sPhases.length;
+            if (capacity == 0) {
+                return;
+            }
+            int index = sHead;
+            sPhases[index] = phase;
+            sNames[index] = name;
+            sArgs[index] = arg;
+            sTimestamps[index] = timestamp;
+            sTids[index] = tid;
+            sThreadNames[index] = threadName;
+            sIds[index] = id;
+            sHead = (index + 1) % capacity;
+            sCount = Math.min(sCount + 1, capacity);
+        }
+    }
+
+    /**
+     * @return the recorded events, oldest first, as a Chrome trace-event JSON object.
+     */
+    public static String toJson() {
+        StringBuilder output = new StringBuilder();
+        try {
+            write(output);
+        } catch (IOException e) {
+            // StringBuilder doesn't throw.
+        }
+        return output.toString();
+    }
+
+    /**
+     * Write {@link #toJson()} to file, eg: for adb pull.
+     */
+    public static void writeTo(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8")) {
+            write(writer);
+        }
+    }
+
+    private static void write(Appendable output) throws IOException {
+        int pid = Process.myPid();
+        Map<Integer, String> threadNames = new HashMap<>();
+        output.append("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean first = true;
+        synchronized (sLock) {
+            int capacity = sPhases.length;
+            int start = sHead - sCount + capacity;
+            for (int i = 0; i < sCount; i++) {
+                int index = (start + i) % capacity;
+                char phase = sPhases[index];
+                if (!first) {
+                    output.append(',');
+                }
+                first = false;
+                output.append("{\"name\":").append(JSONObject.quote(sNames[index]))
+                        .append(",\"cat\":\"fetch\",\"ph\":\"").append(phase)
+                        .append("\",\"ts\":").append(String.valueOf(sTimestamps[index] / 1000))
+                        .append(",\"pid\":").append(String.valueOf(pid))
+                        .append(",\"tid\":").append(String.valueOf(sTids[index]));
+                if ((phase == PHASE_ASYNC_BEGIN) || (phase == PHASE_ASYNC_END)) {
+                    output.append(",\"id\":").append(String.valueOf(sIds[index]));
+                } else if (phase == PHASE_INSTANT) {
+                    output.append(",\"s\":\"t\"");
+                }
+                if (sArgs[index] != null) {
+                    output.append(",\"args\":{\"arg\":").append(JSONObject.quote(String.valueOf(sArgs[index]))).append('}');
+                }
+                output.append('}');
+                threadNames.put(sTids[index], sThreadNames[index]);
+            }
+        }
+        for (Map.Entry<Integer, String> thread : threadNames.entrySet()) {
+            if (!first) {
+                output.append(',');
+            }
+            first = false;
+            output.append("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":").append(String.valueOf(pid))
+                    .append(",\"tid\":").append(String.valueOf(thread.getKey()))
+                    .append(",\"args\":{\"name\":").append(JSONObject.quote(thread.getValue())).append("}}");
+        }
+        output.append("]}");
+    }
+}
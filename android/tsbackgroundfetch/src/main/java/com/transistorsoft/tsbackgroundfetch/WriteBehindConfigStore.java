@@ -0,0 +1,372 @@
+package com.transistorsoft.tsbackgroundfetch;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Dirty-checked {@link ConfigStore} decorator, with write-behind for bookkeeping:
+ *  - save / remove / removeAll write through, so a task's config is persisted before its job is registered or
+ *    cancelled.  Any write-behind pending for the task is superseded.
+ *  - {@link #saveDeferred} only marks the task dirty.  Dirty tasks are written to the backing store on a
+ *    background thread once the coalescing window (default 1000ms) elapses, so repeated saves of the same task
+ *    collapse into one write.  It's meant for state updated on every run (eg: adaptive / retry counters), whose
+ *    loss on a kill is harmless.
+ *  - A save whose fields match what the backing store already holds (or what's already pending) is dropped.
+ *  - Reads see pending writes.
+ *  - {@link #flush()} writes everything pending synchronously.  BackgroundFetch flushes before reporting a
+ *    job finished, after which the process may be frozen or killed.
+ *
+ * {@link #getAvoidedWriteCount()} counts the backing-store writes saved by the above.
+ */
+public class WriteBehindConfigStore implements ConfigStore {
+    private static final long DEFAULT_WINDOW = 1000L;
+
+    private final ConfigStore mStore;
+    private final long mWindow;
+
+    private final Object mLock = new Object();
+    private final Object mFlushLock = new Object();
+
+    // taskId -> fields to write.  Guarded by mLock.
+    private final Map<String, Map<String, Object>> mPending = new LinkedHashMap<>();
+    // taskId -> fields last known to be in the backing store, or null when known absent.  Guarded by mLock.
+    private final Map<String, Map<String, Object>> mPersisted = new HashMap<>();
+    private HashedWheelTimer.Timeout mScheduledFlush;
+    // Bumped by every flushed write, so that a read racing a flush doesn't cache what it overwrote.  Guarded by mLock.
+    private long mGeneration = 0;
+
+    private final AtomicLong mAvoidedCount = new AtomicLong();
+    private final AtomicLong mWriteCount = new AtomicLong();
+
+    public WriteBehindConfigStore(ConfigStore store) {
+        this(store, DEFAULT_WINDOW);
+    }
+
+    /**
+     * @param window coalescing window in milliseconds.
+     */
+    public WriteBehindConfigStore(ConfigStore store, long window) {
+        mStore = store;
+        mWindow = Math.max(0, window);
+    }
+
+    @Override
+    public List<BackgroundFetchConfig> loadAll() {
+        long generation;
+        synchronized (mLock) {
+            generation = mGeneration;
+        }
+        List<BackgroundFetchConfig> stored = mStore.loadAll();
+        Map<String, BackgroundFetchConfig> result = new LinkedHashMap<>();
+        synchronized (mLock) {
+            for (BackgroundFetchConfig config : stored) {
+                result.put(config.getTaskId(), config);
+                if (generation == mGeneration) {
+                    remember(config.getTaskId(), config);
+                }
+            }
+            for (Map.Entry<String, Map<String, Object>> entry : mPending.entrySet()) {
+                result.put(entry.getKey(), toConfig(entry.getKey(), entry.getValue()));
+            }
+        }
+        return new ArrayList<>(result.values());
+    }
+
+    @Override
+    public BackgroundFetchConfig load(String taskId) {
+        long generation;
+        synchronized (mLock) {
+            Map<String, Object> fields = mPending.get(taskId);
+            if (fields != null) {
+                return toConfig(taskId, fields);
+            }
+            generation = mGeneration;
+        }
+        BackgroundFetchConfig config = mStore.load(taskId);
+        synchronized (mLock) {
+            if ((generation == mGeneration) && !mPending.containsKey(taskId)) {
+                remember(taskId, config);
+            }
+        }
+        return config;
+    }
+
+    @Override
+    public BackgroundFetchConfig tryLoad(String taskId) throws TimeoutException {
+        long generation;
+        synchronized (mLock) {
+            Map<String, Object> fields = mPending.get(taskId);
+            if (fields != null) {
+                return toConfig(taskId, fields);
+            }
+            generation = mGeneration;
+        }
+        BackgroundFetchConfig config = mStore.tryLoad(taskId);
+        synchronized (mLock) {
+            if ((generation == mGeneration) && !mPending.containsKey(taskId)) {
+                remember(taskId, config);
+            }
+        }
+        return config;
+    }
+
+    @Override
+    public void save(BackgroundFetchConfig config) {
+        String taskId = config.getTaskId();
+        Map<String, Object> fields = config.toFields();
+        synchronized (mFlushLock) {
+            boolean known;
+            Map<String, Object> persisted;
+            synchronized (mLock) {
+                if (mPending.remove(taskId) != null) {
+                    // Supersedes a write which never happened.
+                    mAvoidedCount.incrementAndGet();
+                }
+                known = mPersisted.containsKey(taskId);
+                persisted = mPersisted.get(taskId);
+            }
+            // First save of the task in this process (eg: configure() on every launch):  compare with what an
+            // earlier one stored.
+            if (known ? fields.equals(persisted) : isStored(taskId, fields)) {
+                mAvoidedCount.incrementAndGet();
+                synchronized (mLock) {
+                    mPersisted.put(taskId, fields);
+                }
+                return;
+            }
+            mStore.save(config);
+            mWriteCount.incrementAndGet();
+            synchronized (mLock) {
+                mGeneration++;
+                mPersisted.put(taskId, fields);
+            }
+        }
+    }
+
+    @Override
+    public void remove(String taskId) {
+        synchronized (mFlushLock) {
+            synchronized (mLock) {
+                if (mPending.remove(taskId) != null) {
+                    mAvoidedCount.incrementAndGet();
+                }
+                if (mPersisted.containsKey(taskId) && (mPersisted.get(taskId) == null)) {
+                    // Known not to be in the backing store.
+                    mAvoidedCount.incrementAndGet();
+                    return;
+                }
+            }
+            mStore.remove(taskId);
+            mWriteCount.incrementAndGet();
+            synchronized (mLock) {
+                mGeneration++;
+                mPersisted.put(taskId, null);
+            }
+        }
+    }
+
+    /**
+     * Like remove(), but the backing store receives all of the removals as a single removeAll().
+     */
+    @Override
+    public void removeAll(Collection<String> taskIds) {
+        synchronized (mFlushLock) {
+            List<String> removals = new ArrayList<>();
+            synchronized (mLock) {
+                for (String taskId : taskIds) {
+                    if (mPending.remove(taskId) != null) {
+                        mAvoidedCount.incrementAndGet();
+                    }
+                    if (mPersisted.containsKey(taskId) && (mPersisted.get(taskId) == null)) continue;
+                    removals.add(taskId);
+                }
+            }
+            if (removals.isEmpty()) {
+                return;
+            }
+            mStore.removeAll(removals);
+            mWriteCount.incrementAndGet();
+            synchronized (mLock) {
+                mGeneration++;
+                for (String taskId : removals) {
+                    mPersisted.put(taskId, null);
+                }
+            }
+        }
+    }
+
+    /**
+     * Save config once the coalescing window elapses, rather than now.  A later save / remove of the task
+     * supersedes it.
+     */
+    public void saveDeferred(BackgroundFetchConfig config) {
+        String taskId = config.getTaskId();
+        Map<String, Object> fields = config.toFields();
+        synchronized (mLock) {
+            boolean pending = mPending.containsKey(taskId);
+            Map<String, Object> current = pending ? mPending.get(taskId) : mPersisted.get(taskId);
+            if (fields.equals(current)) {
+                // Identical to what's pending or already persisted.
+                mAvoidedCount.incrementAndGet();
+                return;
+            }
+            if (pending) {
+                mAvoidedCount.incrementAndGet();
+            }
+            mPending.put(taskId, fields);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Changes by other processes invalidate what we know to be persisted for those tasks.  Pending writes for them
+     * are dropped:  they were computed from the config the other process just replaced, and mustn't overwrite it.
+     */
+    @Override
+    public void setChangeListener(final ChangeListener listener) {
+        if (listener == null) {
+            mStore.setChangeListener(null);
+            return;
+        }
+        mStore.setChangeListener(new ChangeListener() {
+            @Override public void onChanged(Collection<String> taskIds) {
+                synchronized (mLock) {
+                    mGeneration++;
+                    for (String taskId : taskIds) {
+                        mPersisted.remove(taskId);
+                        if (mPending.remove(taskId) != null) {
+                            mAvoidedCount.incrementAndGet();
+                        }
+                    }
+                }
+                listener.onChanged(taskIds);
+            }
+        });
+    }
+
+    /**
+     * Synchronously write all pending changes to the backing store.
+     */
+    public void flush() {
+        synchronized (mFlushLock) {
+            Map<String, Map<String, Object>> batch;
+            synchronized (mLock) {
+                if (mScheduledFlush != null) {
+                    mScheduledFlush.cancel();
+                    mScheduledFlush = null;
+                }
+                if (mPending.isEmpty()) {
+                    return;
+                }
+                batch = new LinkedHashMap<>(mPending);
+            }
+            for (Map.Entry<String, Map<String, Object>> entry : batch.entrySet()) {
+                String taskId = entry.getKey();
+                Map<String, Object> fields = entry.getValue();
+                boolean known;
+                Map<String, Object> persisted;
+                synchronized (mLock) {
+                    known = mPersisted.containsKey(taskId);
+                    persisted = mPersisted.get(taskId);
+                }
+                if (known ? fields.equals(persisted) : isStored(taskId, fields)) {
+                    // The pending change turned out to be a no-op.
+                    mAvoidedCount.incrementAndGet();
+                } else {
+                    mStore.save(toConfig(taskId, fields));
+                    mWriteCount.incrementAndGet();
+                }
+                synchronized (mLock) {
+                    mGeneration++;
+                    mPersisted.put(taskId, fields);
+                    // Only drop the pending entry if no newer change arrived meanwhile.
+                    if (mPending.containsKey(taskId) && (mPending.get(taskId) == fields)) {
+                        mPending.remove(taskId);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true if there are changes not yet written to the backing store.
+     */
+    public boolean hasPendingWrites() {
+        synchronized (mLock) {
+            return !mPending.isEmpty();
+        }
+    }
+
+    /**
+     * @return saves / removes which never reached the backing store, because they were unchanged or superseded.
+     */
+    public long getAvoidedWriteCount() {
+        return mAvoidedCount.get();
+    }
+
+    /**
+     * @return writes made to the backing store.
+     */
+    public long getWriteCount() {
+        return mWriteCount.get();
+    }
+
+    ConfigStore getStore() {
+        return mStore;
+    }
+
+    // Guarded by mLock.
+    private void scheduleFlush() {
+        if (mScheduledFlush != null) {
+            return;
+        }
+        // The timer thread mustn't block:  hand the I/O to the background executor.
+        mScheduledFlush = BackgroundFetch.getTimer().schedule(new Runnable() {
+            @Override public void run() {
+                synchronized (mLock) {
+                    mScheduledFlush = null;
+                }
+                BackgroundFetch.getExecutor().execute(new Runnable() {
+                    @Override public void run() {
+                        flush();
+                    }
+                });
+            }
+        }, mWindow);
+    }
+
+    /**
+     * @return true if the backing store holds fields for taskId.  If it can't say promptly, assume not:  the write
+     *         goes ahead.
+     */
+    private boolean isStored(String taskId, Map<String, Object> fields) {
+        BackgroundFetchConfig stored;
+        try {
+            stored = mStore.tryLoad(taskId);
+        } catch (TimeoutException e) {
+            return false;
+        }
+        return (stored != null) && fields.equals(stored.toFields());
+    }
+
+    // Guarded by mLock.
+    private void remember(String taskId, BackgroundFetchConfig config) {
+        mPersisted.put(taskId, (config != null) ? config.toFields() : null);
+    }
+
+    private BackgroundFetchConfig toConfig(String taskId, Map<String, Object> fields) {
+        return new BackgroundFetchConfig.Builder().setTaskId(taskId).setFields(fields).build();
+    }
+
+    @Override
+    public String toString() {
+        return "[WriteBehindConfigStore " + mStore.getClass().getSimpleName() + " writes=" + getWriteCount()
+                + ", avoided=" + getAvoidedWriteCount() + ", pending=" + hasPendingWrites() + "]";
+    }
+}
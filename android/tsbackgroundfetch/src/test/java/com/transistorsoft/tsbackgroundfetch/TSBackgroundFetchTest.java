@@ -1,8 +1,22 @@
 package com.transistorsoft.tsbackgroundfetch;
 
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.SharedPreferences;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Looper;
+import android.os.PersistableBundle;
+import android.os.SystemClock;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import org.robolectric.Robolectric;
 import org.robolectric.RuntimeEnvironment;
 
 import org.junit.After;
@@ -12,10 +26,38 @@ import org.junit.runner.RunWith;
 import org.robolectric.RobolectricTestRunner;
 import org.robolectric.annotation.Config;
 
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.reflect.Field;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+import static org.robolectric.Shadows.shadowOf;
 
 @RunWith(RobolectricTestRunner.class)
 @Config(sdk = 33)
@@ -27,15 +69,23 @@ public class TSBackgroundFetchTest {
     public void setUp() throws Exception {
         mContext = RuntimeEnvironment.getApplication();
         BGTask.clear();
+        TaskMetrics.clear();
         // Reset singletons — static fields persist within a Robolectric test class.
         resetSingleton(BackgroundFetch.class, "mInstance");
+        resetSingleton(BackgroundFetch.class, "sConfigStore");
+        resetSingleton(BackgroundFetch.class, "sJournal");
+        resetSingleton(BackgroundFetch.class, "sExecutor");
         resetSingleton(LifecycleManager.class, "sInstance");
     }
 
     @After
     public void tearDown() throws Exception {
         BGTask.clear();
+        TaskMetrics.clear();
         resetSingleton(BackgroundFetch.class, "mInstance");
+        resetSingleton(BackgroundFetch.class, "sConfigStore");
+        resetSingleton(BackgroundFetch.class, "sJournal");
+        resetSingleton(BackgroundFetch.class, "sExecutor");
         resetSingleton(LifecycleManager.class, "sInstance");
     }
 
@@ -125,6 +175,75 @@ public class TSBackgroundFetchTest {
         assertEquals("CompletionHandler should fire exactly once", 1, finishCount.get());
     }
 
+    @Test
+    public void testFinishCancelsTimeout() {
+        HashedWheelTimer timer = BackgroundFetch.getTimer();
+        BGTask task = new BGTask(mContext, "timer.cancel", () -> {}, 103);
+        long cancelled = timer.getCancelledCount();
+
+        task.finish();
+        assertEquals("finish() should cancel the pending timeout", cancelled + 1, timer.getCancelledCount());
+    }
+
+    @Test
+    public void testPerTaskTimeout() throws Exception {
+        BGTask task = new BGTask(mContext, "timeout.short", () -> {}, 104, 150, 0);
+        assertEquals(150, task.getTimeout());
+        long remaining = task.getRemainingTime();
+        assertTrue("Remaining " + remaining, remaining > 0 && remaining <= 150);
+
+        awaitTimer(150);
+        assertTrue("A 150ms budget should have timed-out", task.getTimedOut());
+        assertEquals(0, task.getRemainingTime());
+        task.finish();
+    }
+
+    @Test
+    public void testSoftDeadlineWarning() throws Exception {
+        BGTask task = new BGTask(mContext, "timeout.warn", () -> {}, 105, 1000, 0.2f);
+        awaitTimer(200);
+        // Robolectric's SystemClock only moves when told to.
+        shadowOf(Looper.getMainLooper()).idleFor(400, TimeUnit.MILLISECONDS);
+        assertFalse(task.getTimedOut());
+
+        // Already past the soft deadline:  a late listener hears about it immediately.
+        final AtomicLong warned = new AtomicLong(-1);
+        task.setDeadlineListener((t, remainingTime) -> warned.set(remainingTime));
+        assertTrue("Expected a warning with time to spare, got " + warned.get(), warned.get() > 0 && warned.get() < 800);
+        task.finish();
+    }
+
+    /**
+     * Wait for the shared timer to run everything due within delay ms.  It runs timeouts in the order they fall due,
+     * so one scheduled now, after them, runs last.
+     */
+    private static void awaitTimer(long delay) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(1);
+        BackgroundFetch.getTimer().schedule(done::countDown, delay);
+        assertTrue("Timer never got there", done.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testTimeoutConfigReachesJobExtras() {
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("timeout.config")
+                .setDelay(60000)
+                .setTimeout(20000)
+                .setSoftDeadlineFraction(0.75f)
+                .build();
+        config.save(mContext);
+        BackgroundFetchConfig loaded = BackgroundFetch.getConfigStore(mContext).load("timeout.config");
+        assertEquals(20000, loaded.getTimeout());
+        assertEquals(0.75f, loaded.getSoftDeadlineFraction(), 0.0001f);
+        assertEquals("Unset timeout falls back to the default", BGTask.MAX_TIME,
+                new BackgroundFetchConfig.Builder().setTaskId("timeout.default").build().getTimeout());
+
+        BGTask.schedule(mContext, loaded);
+        PersistableBundle extras = getJobScheduler().getPendingJob(config.getJobId()).getExtras();
+        assertEquals(20000, extras.getLong(BGTask.EXTRA_TIMEOUT, 0));
+        assertEquals(0.75, extras.getDouble(BGTask.EXTRA_SOFT_DEADLINE_FRACTION, 0), 0.0001);
+    }
+
     // =========================================================================
     //  BGTask — multiple completion handlers
     // =========================================================================
@@ -161,6 +280,29 @@ public class TSBackgroundFetchTest {
         assertEquals(1, count2.get());
     }
 
+    @Test
+    public void testJoinCompletionHandlersIsAtomicWithFinish() {
+        AtomicInteger count = new AtomicInteger(0);
+        AtomicInteger joined = new AtomicInteger(0);
+        List<FetchJobService.CompletionHandler> handlers = new ArrayList<>();
+
+        BGTask task = new BGTask(mContext, "join.handler", count::incrementAndGet, 200);
+        assertTrue(task.joinCompletionHandlers(joined::incrementAndGet, handlers));
+        assertEquals(1, handlers.size());
+        task.finish();
+        assertEquals("finish() calls the join, not the handler it took", 1, joined.get());
+        assertEquals(0, count.get());
+
+        // Once finished, there's nothing to join:  the caller must not defer the handlers.
+        handlers.clear();
+        BGTask finished = new BGTask(mContext, "join.finished", count::incrementAndGet, 200);
+        finished.finish();
+        assertFalse(finished.joinCompletionHandlers(joined::incrementAndGet, handlers));
+        assertTrue(handlers.isEmpty());
+        assertEquals(1, count.get());
+        assertEquals(1, joined.get());
+    }
+
     // =========================================================================
     //  BGTask — static task list management
     // =========================================================================
@@ -229,6 +371,61 @@ public class TSBackgroundFetchTest {
         assertNotNull(BGTask.getTask("COM.TRANSISTORSOFT.FETCH"));
     }
 
+    @Test
+    public void testFinishOfStaleTaskKeepsReplacement() {
+        FetchJobService.CompletionHandler noop = () -> {};
+        BGTask stale = new BGTask(mContext, "replace.test", noop, 501);
+        BGTask.addTask(stale);
+        BGTask current = new BGTask(mContext, "REPLACE.test", noop, 502);
+        BGTask.addTask(current);
+
+        stale.finish();
+        assertSame("finish() of a replaced task must not evict its replacement", current, BGTask.getTask("replace.test"));
+    }
+
+    @Test
+    public void testRegistryNormalizationMatchesEqualsIgnoreCase() {
+        String[] ids = { "com.example.Task", "COM.EXAMPLE.TASK", "straße", "STRASSE", "\u0130stanbul", "i\u0307stanbul", "\u03a3\u03c3\u03c2", "" };
+        for (String a : ids) {
+            for (String b : ids) {
+                assertEquals(a + " vs " + b, a.equalsIgnoreCase(b), TaskRegistry.normalize(a).equals(TaskRegistry.normalize(b)));
+            }
+        }
+        String folded = "already.lowercase";
+        assertSame("Folded ids should not be copied", folded, TaskRegistry.normalize(folded));
+    }
+
+    @Test
+    public void testRegistryRejectsNullTaskId() {
+        TaskRegistry<String> registry = new TaskRegistry<>();
+        registry.put("", "empty");
+        assertNull("null doesn't alias the empty taskId", registry.get(null));
+        assertFalse(registry.contains(null));
+        assertNull(registry.remove(null));
+        try {
+            registry.put(null, "null");
+            fail("null taskId registered");
+        } catch (NullPointerException e) {
+            // Expected.
+        }
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void testJobWithoutTaskIdIsFinished() {
+        FetchJobService service = Robolectric.buildService(FetchJobService.class).create().get();
+        JobParameters params = mock(JobParameters.class);
+        when(params.getJobId()).thenReturn(999);
+        when(params.getExtras()).thenReturn(new PersistableBundle());
+
+        assertFalse("Nothing to run without a taskId", service.onStartJob(params));
+        assertTrue(shadowOf(service).getIsJobFinished());
+        assertFalse(FetchJobService.isRunning(999));
+
+        assertTrue(service.onStopJob(params));
+        assertFalse("A null taskId is never a duplicate", FetchJobService.getDuplicateJobFilter().isDuplicate(null));
+    }
+
     // =========================================================================
     //  BackgroundFetchConfig — Builder
     // =========================================================================
@@ -355,7 +552,7 @@ public class TSBackgroundFetchTest {
     }
 
     // =========================================================================
-    //  BackgroundFetchConfig — SharedPreferences persistence
+    //  BackgroundFetchConfig — persistence
     // =========================================================================
 
     @Test
@@ -375,7 +572,7 @@ public class TSBackgroundFetchTest {
 
         original.save(mContext);
 
-        // Load from SharedPreferences into a fresh Builder.
+        // Load from the ConfigStore into a fresh Builder.
         BackgroundFetchConfig loaded = new BackgroundFetchConfig.Builder().load(mContext, "persist.test");
 
         assertEquals(original.getTaskId(), loaded.getTaskId());
@@ -391,7 +588,7 @@ public class TSBackgroundFetchTest {
     }
 
     @Test
-    public void testConfigDestroyRemovesTaskFromSet() {
+    public void testConfigDestroyRemovesTaskFromStore() {
         BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
                 .setTaskId("destroy.test")
                 .setIsFetchTask(false)
@@ -399,16 +596,16 @@ public class TSBackgroundFetchTest {
 
         config.save(mContext);
 
-        SharedPreferences prefs = mContext.getSharedPreferences(BackgroundFetch.TAG, 0);
-        assertTrue(prefs.getStringSet("tasks", null).contains("destroy.test"));
+        ConfigStore store = BackgroundFetch.getConfigStore(mContext);
+        assertNotNull(store.load("destroy.test"));
 
         config.destroy(mContext);
 
-        assertFalse(prefs.getStringSet("tasks", null).contains("destroy.test"));
+        assertNull(store.load("destroy.test"));
     }
 
     @Test
-    public void testConfigDestroyClearsPrefsForFetchTasks() {
+    public void testConfigDestroyClearsFetchTasks() {
         // This was Bug 4 — fetch task prefs were leaked on destroy.
         BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
                 .setTaskId("fetch.destroy.test")
@@ -417,19 +614,16 @@ public class TSBackgroundFetchTest {
                 .build();
 
         config.save(mContext);
-
-        SharedPreferences taskPrefs = mContext.getSharedPreferences(
-                BackgroundFetch.TAG + ":fetch.destroy.test", 0);
-        assertTrue(taskPrefs.contains(BackgroundFetchConfig.FIELD_TASK_ID));
-
         config.destroy(mContext);
 
-        assertFalse("Fetch task prefs should be cleared on destroy",
-                taskPrefs.contains(BackgroundFetchConfig.FIELD_TASK_ID));
+        assertNull("Fetch task config should be cleared on destroy",
+                BackgroundFetch.getConfigStore(mContext).load("fetch.destroy.test"));
+        // Re-read the file from disk.
+        assertNull(new LogConfigStore(mContext).load("fetch.destroy.test"));
     }
 
     @Test
-    public void testConfigDestroyClearsPrefsForScheduledTasks() {
+    public void testConfigDestroyClearsScheduledTasks() {
         BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
                 .setTaskId("scheduled.destroy.test")
                 .setIsFetchTask(false)
@@ -438,15 +632,252 @@ public class TSBackgroundFetchTest {
                 .build();
 
         config.save(mContext);
+        config.destroy(mContext);
 
-        SharedPreferences taskPrefs = mContext.getSharedPreferences(
-                BackgroundFetch.TAG + ":scheduled.destroy.test", 0);
-        assertTrue(taskPrefs.contains(BackgroundFetchConfig.FIELD_TASK_ID));
+        assertNull("Scheduled task config should be cleared on destroy",
+                BackgroundFetch.getConfigStore(mContext).load("scheduled.destroy.test"));
+        assertNull(new LogConfigStore(mContext).load("scheduled.destroy.test"));
+    }
 
-        config.destroy(mContext);
+    // =========================================================================
+    //  LogConfigStore
+    // =========================================================================
+
+    @Test
+    public void testLogConfigStoreSurvivesReopen() {
+        LogConfigStore store = new LogConfigStore(mContext);
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("reopen.a").setDelay(1000).build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("reopen.b").setDelay(2000).build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("reopen.a").setDelay(3000).setJobService("com.example.HeadlessTask").build());
+        store.remove("reopen.b");
+
+        LogConfigStore reopened = new LogConfigStore(mContext);
+        assertEquals(1, reopened.loadAll().size());
+        BackgroundFetchConfig a = reopened.load("reopen.a");
+        assertEquals(3000, a.getDelay());
+        assertEquals("com.example.HeadlessTask", a.getJobService());
+        assertNull(reopened.load("reopen.b"));
+    }
+
+    @Test
+    public void testLogConfigStoreCompaction() {
+        // Automatic compaction is handed to the executor:  run it inline.
+        BackgroundFetch.setExecutor(new Executor() {
+            @Override public void execute(Runnable command) { command.run(); }
+        });
+        LogConfigStore store = new LogConfigStore(mContext);
+        for (int i = 0; i < 200; i++) {
+            store.save(new BackgroundFetchConfig.Builder().setTaskId("compact.test").setDelay(i).build());
+        }
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("compact.other").build());
+        long beforeCompact = store.getFile().length();
+        store.compact();
+        long afterCompact = store.getFile().length();
+        // 201 appends, 2 live records:  automatic compaction keeps the dead-record count bounded.
+        assertTrue("Automatic compaction should bound file growth", beforeCompact < 20 * afterCompact);
+
+        LogConfigStore reopened = new LogConfigStore(mContext);
+        assertEquals(2, reopened.loadAll().size());
+        assertEquals(199, reopened.load("compact.test").getDelay());
+    }
+
+    @Test
+    public void testLogConfigStoreDropsTornTail() throws Exception {
+        LogConfigStore store = new LogConfigStore(mContext);
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("torn.a").build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("torn.b").build());
+
+        // Simulate a process killed mid-append.
+        RandomAccessFile file = new RandomAccessFile(store.getFile(), "rw");
+        file.setLength(file.length() - 3);
+        file.close();
+
+        LogConfigStore reopened = new LogConfigStore(mContext);
+        assertNotNull(reopened.load("torn.a"));
+        assertNull(reopened.load("torn.b"));
+        // The next save lands after a clean record boundary.
+        reopened.save(new BackgroundFetchConfig.Builder().setTaskId("torn.c").build());
+        assertNotNull(new LogConfigStore(mContext).load("torn.c"));
+    }
+
+    @Test
+    public void testLogConfigStoreSetsAsideUnrecognizedFile() throws Exception {
+        LogConfigStore store = new LogConfigStore(mContext);
+        byte[] foreign = new byte[] { 'N', 'O', 'P', 'E', 0, 0, 0, 9, 1, 2, 3, 4 };
+        FileOutputStream out = new FileOutputStream(store.getFile());
+        out.write(foreign);
+        out.close();
+
+        assertTrue(store.loadAll().isEmpty());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("aside.a").build());
+        assertNotNull(new LogConfigStore(mContext).load("aside.a"));
+
+        // The unreadable file is preserved, untouched.
+        File[] aside = store.getFile().getParentFile().listFiles(new FilenameFilter() {
+            @Override public boolean accept(File dir, String name) {
+                return name.startsWith(LogConfigStore.FILE_NAME + ".unrecognized");
+            }
+        });
+        assertEquals(1, aside.length);
+        assertArrayEquals(foreign, Files.readAllBytes(aside[0].toPath()));
+    }
+
+    @Test
+    public void testLogConfigStoreSingleTaskLoadBeforeOpen() {
+        LogConfigStore store = new LogConfigStore(mContext);
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("find.a").setDelay(1000).build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("find.b").setDelay(2000).build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("find.a").setDelay(3000).build());
+        store.remove("find.b");
+
+        // Fresh instances resolve a single task (reading every record, for later loads to reuse).
+        assertEquals(3000, new LogConfigStore(mContext).load("find.a").getDelay());
+        assertNull(new LogConfigStore(mContext).load("find.b"));
+        assertNull(new LogConfigStore(mContext).load("find.unknown"));
+    }
+
+    @Test
+    public void testLogConfigStoreRemoveAll() {
+        LogConfigStore store = new LogConfigStore(mContext);
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("remove.a").setDelay(1000).build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("remove.b").setDelay(2000).build());
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("remove.c").setDelay(3000).build());
+
+        store.removeAll(Arrays.asList("remove.a", "remove.c", "remove.unknown"));
+
+        List<BackgroundFetchConfig> reloaded = new LogConfigStore(mContext).loadAll();
+        assertEquals(1, reloaded.size());
+        assertEquals("remove.b", reloaded.get(0).getTaskId());
+    }
+
+    @Test
+    public void testLogConfigStoreMigratesSharedPreferences() {
+        SharedPreferencesConfigStore legacy = new SharedPreferencesConfigStore(mContext);
+        legacy.save(new BackgroundFetchConfig.Builder()
+                .setTaskId("legacy.fetch")
+                .setIsFetchTask(true)
+                .setMinimumFetchInterval(30)
+                .build());
+        legacy.save(new BackgroundFetchConfig.Builder()
+                .setTaskId("legacy.task")
+                .setDelay(5000)
+                .setStopOnTerminate(false)
+                .setJobService("com.example.HeadlessTask")
+                .build());
+
+        LogConfigStore store = new LogConfigStore(mContext);
+        assertEquals(2, store.loadAll().size());
+        assertEquals(30, store.load("legacy.fetch").getMinimumFetchInterval());
+        assertTrue(store.load("legacy.fetch").isFetchTask());
+        assertEquals(5000, store.load("legacy.task").getDelay());
+        assertFalse(store.load("legacy.task").getStopOnTerminate());
+
+        // Legacy layout is cleared once migrated.
+        assertTrue(legacy.getTaskIds().isEmpty());
+        SharedPreferences taskPrefs = mContext.getSharedPreferences(BackgroundFetch.TAG + ":legacy.task", 0);
+        assertFalse(taskPrefs.contains(BackgroundFetchConfig.FIELD_TASK_ID));
+    }
+
+    // =========================================================================
+    //  WriteBehindConfigStore
+    // =========================================================================
+
+    private static class CountingConfigStore implements ConfigStore {
+        final ConfigStore store;
+        int saves = 0;
+        int removes = 0;
+
+        CountingConfigStore(ConfigStore store) { this.store = store; }
+
+        @Override public List<BackgroundFetchConfig> loadAll() { return store.loadAll(); }
+        @Override public BackgroundFetchConfig load(String taskId) { return store.load(taskId); }
+        @Override public void save(BackgroundFetchConfig config) { saves++; store.save(config); }
+        @Override public void remove(String taskId) { removes++; store.remove(taskId); }
+    }
+
+    @Test
+    public void testWriteBehindCoalescesAndSkipsUnchangedWrites() {
+        CountingConfigStore backing = new CountingConfigStore(new LogConfigStore(mContext));
+        WriteBehindConfigStore store = new WriteBehindConfigStore(backing, 60000);
+
+        BackgroundFetchConfig.Builder builder = new BackgroundFetchConfig.Builder().setTaskId("wb.test").setDelay(1000);
+        store.saveDeferred(builder.build());
+        store.saveDeferred(builder.build());
+        store.saveDeferred(builder.setDelay(2000).build());
+        // Reads see the pending write.
+        assertEquals(2000, store.load("wb.test").getDelay());
+        assertEquals(0, backing.saves);
+
+        store.flush();
+        assertEquals("Three saves coalesce into one write", 1, backing.saves);
+        assertEquals(2000, new LogConfigStore(mContext).load("wb.test").getDelay());
+
+        // Unchanged:  never even marked dirty.
+        store.saveDeferred(builder.build());
+        assertFalse(store.hasPendingWrites());
+        store.flush();
+        assertEquals(1, backing.saves);
+        assertEquals(3, store.getAvoidedWriteCount());
+    }
 
-        assertFalse("Scheduled task prefs should be cleared on destroy",
-                taskPrefs.contains(BackgroundFetchConfig.FIELD_TASK_ID));
+    @Test
+    public void testWriteBehindSaveAndRemoveWriteThrough() {
+        CountingConfigStore backing = new CountingConfigStore(new LogConfigStore(mContext));
+        WriteBehindConfigStore store = new WriteBehindConfigStore(backing, 60000);
+        BackgroundFetchConfig.Builder builder = new BackgroundFetchConfig.Builder().setTaskId("wb.through").setDelay(1000);
+
+        // A config change supersedes pending bookkeeping and is persisted at once.
+        store.saveDeferred(builder.build());
+        store.save(builder.setDelay(2000).build());
+        assertFalse(store.hasPendingWrites());
+        assertEquals(1, backing.saves);
+        assertEquals(2000, new LogConfigStore(mContext).load("wb.through").getDelay());
+        // Unchanged.
+        store.save(builder.build());
+        assertEquals(1, backing.saves);
+
+        store.saveDeferred(builder.setDelay(3000).build());
+        store.remove("wb.through");
+        assertFalse(store.hasPendingWrites());
+        assertNull(new LogConfigStore(mContext).load("wb.through"));
+        assertNull(store.load("wb.through"));
+        assertTrue(store.loadAll().isEmpty());
+        assertEquals(1, backing.removes);
+
+        // Known absent:  nothing to write.
+        store.remove("wb.through");
+        assertEquals(1, backing.removes);
+    }
+
+    @Test
+    public void testWriteBehindSkipsUnchangedFirstSaveAfterLaunch() {
+        BackgroundFetchConfig.Builder builder = new BackgroundFetchConfig.Builder().setTaskId("wb.launch").setDelay(1000);
+        new LogConfigStore(mContext).save(builder.build());
+
+        // The next launch:  fresh stores over the existing file.
+        CountingConfigStore backing = new CountingConfigStore(new LogConfigStore(mContext));
+        WriteBehindConfigStore store = new WriteBehindConfigStore(backing, 60000);
+        store.save(builder.build());
+        assertEquals("Identical to what's stored", 0, backing.saves);
+        assertEquals(1, store.getAvoidedWriteCount());
+
+        store.save(builder.setDelay(2000).build());
+        assertEquals(1, backing.saves);
+        assertEquals(2000, new LogConfigStore(mContext).load("wb.launch").getDelay());
+    }
+
+    @Test
+    public void testWriteBehindFlushesAfterWindow() throws Exception {
+        CountingConfigStore backing = new CountingConfigStore(new LogConfigStore(mContext));
+        WriteBehindConfigStore store = new WriteBehindConfigStore(backing, 50);
+        store.saveDeferred(new BackgroundFetchConfig.Builder().setTaskId("wb.timer").setDelay(1000).build());
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (store.hasPendingWrites() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertFalse(store.hasPendingWrites());
+        assertEquals(1, backing.saves);
     }
 
     // =========================================================================
@@ -520,6 +951,35 @@ public class TSBackgroundFetchTest {
         assertSame("stop(taskId) should NOT clear the fetch callback", callback, adapter.getFetchCallback());
     }
 
+    @Test
+    public void testAsyncApiRunsInCallOrder() throws Exception {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        BackgroundFetch.Callback callback = new BackgroundFetch.Callback() {
+            @Override public void onFetch(String taskId) {}
+            @Override public void onTimeout(String taskId) {}
+        };
+
+        Future<Void> configured = adapter.configureAsync(
+            new BackgroundFetchConfig.Builder()
+                .setTaskId("async.test")
+                .setIsFetchTask(true)
+                .setMinimumFetchInterval(15)
+                .build(),
+            callback, null);
+        assertSame("The callback is installed immediately", callback, adapter.getFetchCallback());
+
+        adapter.scheduleTaskAsync(new BackgroundFetchConfig.Builder().setTaskId("async.scheduled").setDelay(60000).build(), null);
+        Future<Void> stopped = adapter.stopAsync("async.scheduled", null);
+
+        configured.get(5, TimeUnit.SECONDS);
+        stopped.get(5, TimeUnit.SECONDS);
+
+        assertNotNull(adapter.getConfig("async.test"));
+        assertNotNull(BackgroundFetch.getConfigStore(mContext).load("async.test"));
+        assertNull("stopAsync ran after scheduleTaskAsync", adapter.getConfig("async.scheduled"));
+        assertNull(BackgroundFetch.getConfigStore(mContext).load("async.scheduled"));
+    }
+
     @Test
     public void testReconfigurePersistsNewConfig() {
         // Bug 5 — re-configure path didn't call config.save().
@@ -549,7 +1009,7 @@ public class TSBackgroundFetchTest {
             callback
         );
 
-        // Load from SharedPreferences — should reflect the updated value.
+        // Load from the ConfigStore — should reflect the updated value.
         BackgroundFetchConfig loaded = new BackgroundFetchConfig.Builder().load(mContext, "reconfig.test");
         assertEquals("Re-configured interval should be persisted", 30, loaded.getMinimumFetchInterval());
     }
@@ -606,6 +1066,1600 @@ public class TSBackgroundFetchTest {
         assertEquals(BackgroundFetch.STATUS_AVAILABLE, adapter.status());
     }
 
+    // =========================================================================
+    //  Adaptive fetch interval
+    // =========================================================================
+
+    private static BackgroundFetchConfig adaptiveFetchConfig() {
+        return new BackgroundFetchConfig.Builder()
+                .setTaskId("adaptive.fetch")
+                .setIsFetchTask(true)
+                .setMinimumFetchInterval(15)
+                .setMaximumFetchInterval(60)
+                .setAdaptiveFetchInterval(true)
+                .build();
+    }
+
+    @Test
+    public void testAdaptiveIntervalStretchesAndTightens() {
+        BackgroundFetchConfig config = adaptiveFetchConfig();
+        assertEquals(15, config.getEffectiveFetchInterval());
+
+        int noData = BackgroundFetch.FETCH_RESULT_NO_DATA;
+        for (int i = 1; i < BackgroundFetchConfig.ADAPTIVE_NO_DATA_THRESHOLD; i++) {
+            assertFalse(config.onFetchResult(noData));
+        }
+        assertTrue(config.onFetchResult(noData));
+        assertEquals(30, config.getEffectiveFetchInterval());
+        assertFalse("FAILED leaves the interval alone", config.onFetchResult(BackgroundFetch.FETCH_RESULT_FAILED));
+        for (int i = 0; i < 2 * BackgroundFetchConfig.ADAPTIVE_NO_DATA_THRESHOLD; i++) {
+            config.onFetchResult(noData);
+        }
+        assertEquals("Capped at maximumFetchInterval", 60, config.getEffectiveFetchInterval());
+
+        assertTrue(config.onFetchResult(BackgroundFetch.FETCH_RESULT_NEW_DATA));
+        assertEquals(30, config.getEffectiveFetchInterval());
+        config.onFetchResult(BackgroundFetch.FETCH_RESULT_NEW_DATA);
+        assertFalse(config.onFetchResult(BackgroundFetch.FETCH_RESULT_NEW_DATA));
+        assertEquals("Floored at minimumFetchInterval", 15, config.getEffectiveFetchInterval());
+    }
+
+    @Test
+    public void testFinishWithResultPersistsAndReschedulesInterval() throws Exception {
+        // configure() restores adaptive state (and schedules) on the executor when called on the main thread.
+        BackgroundFetch.setExecutor(Runnable::run);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        BackgroundFetch.Callback callback = new BackgroundFetch.Callback() {
+            @Override public void onFetch(String taskId) {}
+            @Override public void onTimeout(String taskId) {}
+        };
+        adapter.configure(adaptiveFetchConfig(), callback);
+        int jobId = BackgroundFetchConfig.FETCH_JOB_ID;
+        assertEquals(TimeUnit.MINUTES.toMillis(15), getJobScheduler().getPendingJob(jobId).getIntervalMillis());
+
+        for (int i = 0; i < BackgroundFetchConfig.ADAPTIVE_NO_DATA_THRESHOLD; i++) {
+            adapter.finish("adaptive.fetch", BackgroundFetch.FETCH_RESULT_NO_DATA);
+        }
+        assertEquals(30, BackgroundFetch.getConfigStore(mContext).load("adaptive.fetch").getEffectiveFetchInterval());
+        long expected = TimeUnit.MINUTES.toMillis(30);
+        long deadline = System.currentTimeMillis() + 2000;
+        while (getJobScheduler().getPendingJob(jobId).getIntervalMillis() != expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, getJobScheduler().getPendingJob(jobId).getIntervalMillis());
+
+        // The app configures again on its next launch:  the adapted interval survives.
+        resetSingleton(BackgroundFetch.class, "mInstance");
+        BackgroundFetch.getInstance(mContext).configure(adaptiveFetchConfig(), callback);
+        assertEquals(30, BackgroundFetch.getInstance(mContext).getConfig("adaptive.fetch").getEffectiveFetchInterval());
+    }
+
+    @Test
+    public void testConfigureRestoresAdaptiveStateOffMainThread() {
+        BackgroundFetchConfig previous = adaptiveFetchConfig();
+        for (int i = 0; i < BackgroundFetchConfig.ADAPTIVE_NO_DATA_THRESHOLD; i++) {
+            previous.onFetchResult(BackgroundFetch.FETCH_RESULT_NO_DATA);
+        }
+        BackgroundFetch.getConfigStore(mContext).save(previous);
+
+        List<Runnable> queued = new ArrayList<>();
+        BackgroundFetch.setExecutor(queued::add);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.configure(adaptiveFetchConfig(), new BackgroundFetch.Callback() {
+            @Override public void onFetch(String taskId) {}
+            @Override public void onTimeout(String taskId) {}
+        });
+        assertEquals("Not restored on the main thread", 15, adapter.getConfig("adaptive.fetch").getEffectiveFetchInterval());
+        assertNull(getJobScheduler().getPendingJob(BackgroundFetchConfig.FETCH_JOB_ID));
+
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).run();
+        }
+        assertEquals(30, adapter.getConfig("adaptive.fetch").getEffectiveFetchInterval());
+        assertEquals(TimeUnit.MINUTES.toMillis(30),
+                getJobScheduler().getPendingJob(BackgroundFetchConfig.FETCH_JOB_ID).getIntervalMillis());
+    }
+
+    @Test
+    public void testConfigsBuiltFromOneBuilderDontShareRunState() {
+        BackgroundFetchConfig.Builder builder = new BackgroundFetchConfig.Builder()
+                .setTaskId("retry.shared")
+                .setMaxRetries(3);
+        BackgroundFetchConfig first = builder.build();
+        BackgroundFetchConfig second = builder.build();
+        assertTrue(first.onFailure());
+        assertEquals(1, first.getRetryCount());
+        assertEquals(0, second.getRetryCount());
+    }
+
+    // =========================================================================
+    //  Retry
+    // =========================================================================
+
+    @Test
+    public void testRetryDelayPolicies() {
+        BackgroundFetchConfig linear = new BackgroundFetchConfig.Builder().setTaskId("retry.linear")
+                .setRetryPolicy(BackgroundFetchConfig.RETRY_POLICY_LINEAR).setRetryDelay(20000).build();
+        assertEquals(20000, linear.getRetryDelay(1));
+        assertEquals(60000, linear.getRetryDelay(3));
+
+        BackgroundFetchConfig exponential = new BackgroundFetchConfig.Builder().setTaskId("retry.exp")
+                .setRetryDelay(1000).build();
+        assertEquals("Clamped to JobScheduler's minimum", 10000, exponential.getRetryDelay());
+        assertEquals(10000, exponential.getRetryDelay(1));
+        assertEquals(40000, exponential.getRetryDelay(3));
+        assertEquals("Capped at 5h", 5 * 60 * 60 * 1000L, exponential.getRetryDelay(40));
+    }
+
+    @Test
+    public void testFailedJobRetriesThroughJobScheduler() {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("retry.job")
+                .setDelay(60000)
+                .setMaxRetries(2)
+                .setRetryDelay(15000)
+                .build();
+        adapter.scheduleTask(config);
+        assertEquals(15000, getJobScheduler().getPendingJob(config.getJobId()).getInitialBackoffMillis());
+
+        final AtomicInteger retries = new AtomicInteger();
+        final AtomicInteger finishes = new AtomicInteger();
+        for (int attempt = 1; attempt <= 3; attempt++) {
+            BGTask task = new BGTask(mContext, "retry.job", new FetchJobService.CompletionHandler() {
+                @Override public void finish() { finishes.incrementAndGet(); }
+                @Override public boolean finishAndRetry() { retries.incrementAndGet(); return true; }
+            }, config.getJobId());
+            BGTask.addTask(task);
+            task.setAttempt(adapter.getConfig("retry.job").getRetryCount() + 1);
+            assertEquals(attempt, adapter.getAttempt("retry.job"));
+            adapter.finish("retry.job", BackgroundFetch.FETCH_RESULT_FAILED);
+        }
+        assertEquals("Two retries, then give up", 2, retries.get());
+        assertEquals(1, finishes.get());
+        assertNull("An exhausted one-shot task is destroyed", adapter.getConfig("retry.job"));
+    }
+
+    @Test
+    public void testFailedTaskWithoutJobRetriesOnItsOwnSchedule() throws Exception {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("retry.manual")
+                .setDelay(60000)
+                .setPeriodic(true)
+                .setMaxRetries(1)
+                .setRetryDelay(20000)
+                .build();
+        adapter.scheduleTask(config);
+        int jobId = config.getJobId();
+
+        // No running BGTask (eg: batched, or finished late):  the plugin schedules the retry itself.
+        adapter.finish("retry.manual", BackgroundFetch.FETCH_RESULT_FAILED);
+        long deadline = System.currentTimeMillis() + 2000;
+        while ((getJobScheduler().getPendingJob(jobId).getMinLatencyMillis() != 20000) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(20000, getJobScheduler().getPendingJob(jobId).getMinLatencyMillis());
+        assertEquals(1, adapter.getConfig("retry.manual").getRetryCount());
+
+        // The retry succeeds:  the periodic schedule is restored.
+        adapter.finish("retry.manual", BackgroundFetch.FETCH_RESULT_NEW_DATA);
+        deadline = System.currentTimeMillis() + 2000;
+        while ((getJobScheduler().getPendingJob(jobId).getIntervalMillis() != 60000) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(60000, getJobScheduler().getPendingJob(jobId).getIntervalMillis());
+        assertEquals(0, adapter.getConfig("retry.manual").getRetryCount());
+    }
+
+    @Test
+    public void testResumedScheduleWaitsForJobFinished() {
+        // Inline, so that a reschedule posted too early would show up at once.
+        BackgroundFetch.setExecutor(Runnable::run);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("retry.resume")
+                .setDelay(60000)
+                .setPeriodic(true)
+                .setMaxRetries(1)
+                .build();
+        adapter.scheduleTask(config);
+        int jobId = config.getJobId();
+
+        final AtomicReference<Runnable> afterJobFinished = new AtomicReference<>();
+        FetchJobService.CompletionHandler handler = new FetchJobService.CompletionHandler() {
+            @Override public void finish() {}
+            @Override public boolean finishAndRetry() { return true; }
+            @Override public boolean finish(boolean retry, Runnable next) {
+                // jobFinished is still pending (eg: behind a config flush).
+                afterJobFinished.set(next);
+                return retry;
+            }
+        };
+        BGTask.addTask(new BGTask(mContext, "retry.resume", handler, jobId));
+        adapter.finish("retry.resume", BackgroundFetch.FETCH_RESULT_FAILED);
+
+        // The retry succeeds:  its periodic schedule is restored, but only once the job is reported finished.
+        BGTask.addTask(new BGTask(mContext, "retry.resume", handler, jobId));
+        JobInfo running = getJobScheduler().getPendingJob(jobId);
+        adapter.finish("retry.resume", BackgroundFetch.FETCH_RESULT_NEW_DATA);
+        assertSame("Not replaced while the job is still running", running, getJobScheduler().getPendingJob(jobId));
+        assertNotNull(afterJobFinished.get());
+
+        afterJobFinished.get().run();
+        assertNotSame(running, getJobScheduler().getPendingJob(jobId));
+        assertEquals(60000, getJobScheduler().getPendingJob(jobId).getIntervalMillis());
+    }
+
+    // =========================================================================
+    //  Worker
+    // =========================================================================
+
+    @Test
+    public void testWorkerRunsOffThreadAndFinishesTask() throws Exception {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        // Headless-capable, so that the worker also runs in a headless launch (as in this test).
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("worker.task")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        FastPathHeadlessTask.sFetched.clear();
+
+        final Thread caller = Thread.currentThread();
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        adapter.registerWorker("worker.task", task -> {
+            ranOn.set(Thread.currentThread());
+            return BackgroundFetch.FETCH_RESULT_NEW_DATA;
+        }, executor);
+
+        final CountDownLatch finished = new CountDownLatch(1);
+        adapter.onFetch(new BGTask(mContext, "worker.task", finished::countDown, "worker.task".hashCode()));
+
+        assertTrue("Worker result should finish the task", finished.await(2, TimeUnit.SECONDS));
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(2, TimeUnit.SECONDS));
+        assertNotSame(caller, ranOn.get());
+        assertNull("A finished one-shot task is destroyed", adapter.getConfig("worker.task"));
+        assertTrue("The worker replaces the headless jobService", FastPathHeadlessTask.sFetched.isEmpty());
+    }
+
+    @Test
+    public void testWorkerExceptionFinishesWithFailure() {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("worker.fail")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .setMaxRetries(1)
+                .build());
+        adapter.registerWorker("worker.fail", task -> {
+            throw new IOException("offline");
+        }, Runnable::run);
+
+        final AtomicInteger retried = new AtomicInteger();
+        adapter.onFetch(new BGTask(mContext, "worker.fail", new FetchJobService.CompletionHandler() {
+            @Override public void finish() {}
+            @Override public boolean finishAndRetry() { retried.incrementAndGet(); return true; }
+        }, "worker.fail".hashCode()));
+
+        assertEquals("The exception is a FAILED result, which retries", 1, retried.get());
+        assertEquals(1, adapter.getConfig("worker.fail").getRetryCount());
+    }
+
+    @Test
+    public void testWorkerTimeoutOnlyCancelsItsToken() throws Exception {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("worker.timeout")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        FastPathHeadlessTask.sFetched.clear();
+
+        final CountDownLatch started = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        adapter.registerWorker("worker.timeout", task -> {
+            started.countDown();
+            while (!task.getCancellationToken().isCancelled()) {
+                Thread.sleep(5);
+            }
+            return BackgroundFetch.FETCH_RESULT_NO_DATA;
+        }, executor);
+
+        BGTask task = new BGTask(mContext, "worker.timeout", () -> {}, 805);
+        adapter.onFetch(task);
+        assertTrue(started.await(2, TimeUnit.SECONDS));
+        task.onTimeout(mContext);
+        executor.shutdown();
+        assertTrue("The token stops the worker", executor.awaitTermination(2, TimeUnit.SECONDS));
+        assertTrue("No headless timeout event for a worker task", FastPathHeadlessTask.sFetched.isEmpty());
+    }
+
+    // =========================================================================
+    //  CancellationToken
+    // =========================================================================
+
+    @Test
+    public void testTimeoutCancelsToken() {
+        BGTask task = new BGTask(mContext, "cancel.timeout", () -> {}, 300);
+        CancellationToken token = task.getCancellationToken();
+        final AtomicInteger notified = new AtomicInteger();
+        token.addListener(t -> notified.incrementAndGet());
+        assertFalse(token.isCancelled());
+
+        task.onTimeout(mContext);
+        task.onTimeout(mContext);
+
+        assertTrue(token.isCancelled());
+        assertEquals(CancellationToken.REASON_TIMEOUT, token.getReason());
+        assertEquals("Listeners fire once", 1, notified.get());
+        // Registered late:  invoked immediately.
+        token.addListener(t -> notified.incrementAndGet());
+        assertEquals(2, notified.get());
+        try {
+            token.throwIfCancelled();
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+            // expected
+        }
+
+        task.finish();
+        assertEquals("Cancel-to-finish latency recorded", 1,
+                TaskMetrics.get("cancel.timeout").getCancellationLatency().getCount());
+    }
+
+    @Test
+    public void testStopCancelsRunningTask() {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder().setTaskId("cancel.stop").setDelay(60000).build());
+        BGTask task = new BGTask(mContext, "cancel.stop", () -> {}, "cancel.stop".hashCode());
+        BGTask.addTask(task);
+
+        adapter.stop("cancel.stop");
+
+        assertEquals(CancellationToken.REASON_STOPPED, task.getCancellationToken().getReason());
+        // A job stop arriving afterwards doesn't overwrite the first reason.
+        assertFalse(task.getCancellationToken().cancel(CancellationToken.REASON_JOB_STOPPED, 1));
+        assertEquals(CancellationToken.REASON_STOPPED, task.getCancellationToken().getReason());
+    }
+
+    // =========================================================================
+    //  Concurrency limits
+    // =========================================================================
+
+    @Test
+    public void testGroupConcurrencyQueuesExcessTasks() {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        FastPathHeadlessTask.sFetched.clear();
+        List<BGTask> tasks = new ArrayList<>();
+        for (String taskId : new String[] {"group.a", "group.b", "group.c"}) {
+            adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                    .setTaskId(taskId)
+                    .setDelay(60000)
+                    .setStopOnTerminate(false)
+                    .setJobService(FastPathHeadlessTask.class.getName())
+                    .setGroup("sync", 2)
+                    .build());
+            BGTask task = new BGTask(mContext, taskId, () -> {}, taskId.hashCode());
+            tasks.add(task);
+            adapter.onFetch(task);
+        }
+        assertEquals("Third task waits for a slot", Arrays.asList("group.a", "group.b"), FastPathHeadlessTask.sFetched);
+
+        adapter.finish("group.a");
+        assertEquals(Arrays.asList("group.a", "group.b", "group.c"), FastPathHeadlessTask.sFetched);
+        assertEquals(1, TaskMetrics.get("group.c").getQueueWait().getCount());
+        tasks.get(1).finish();
+        tasks.get(2).finish();
+    }
+
+    @Test
+    public void testTaskCancelledWhileQueuedIsNeverDispatched() {
+        TaskLimiter limiter = new TaskLimiter(Runnable::run);
+        limiter.setMaxConcurrent(1);
+        final List<String> dispatched = new ArrayList<>();
+        BGTask running = new BGTask(mContext, "limit.running", () -> {}, 400);
+        final AtomicInteger queuedFinished = new AtomicInteger();
+        BGTask queued = new BGTask(mContext, "limit.queued", queuedFinished::incrementAndGet, 401);
+        running.setOnFinished(() -> limiter.release(running));
+        queued.setOnFinished(() -> limiter.release(queued));
+
+        limiter.submit(running, null, 0, BackgroundFetchConfig.PRIORITY_DEFAULT, () -> dispatched.add("limit.running"));
+        limiter.submit(queued, null, 0, BackgroundFetchConfig.PRIORITY_DEFAULT, () -> dispatched.add("limit.queued"));
+        assertEquals(1, limiter.getQueuedCount());
+
+        // Its budget ran out while it waited.
+        queued.onTimeout(mContext);
+        assertEquals("Finished on cancellation", 1, queuedFinished.get());
+        assertEquals(0, limiter.getQueuedCount());
+
+        running.finish();
+        assertEquals(Collections.singletonList("limit.running"), dispatched);
+        assertEquals(0, limiter.getRunningCount());
+    }
+
+    // =========================================================================
+    //  Priority
+    // =========================================================================
+
+    @Test
+    public void testExpeditedPriorityOnlyExpeditesImmediateOneShots() {
+        BackgroundFetchConfig immediate = new BackgroundFetchConfig.Builder()
+                .setTaskId("priority.expedited")
+                .setDelay(0)
+                .setPriority(BackgroundFetchConfig.PRIORITY_EXPEDITED)
+                .build();
+        BGTask.schedule(mContext, immediate);
+        JobInfo job = getJobScheduler().getPendingJob(immediate.getJobId());
+        assertTrue(job.isExpedited());
+        assertEquals(0, job.getMinLatencyMillis());
+
+        // A delayed one-shot can't be expedited:  degrades to high priority.
+        BackgroundFetchConfig delayed = new BackgroundFetchConfig.Builder()
+                .setTaskId("priority.delayed")
+                .setDelay(60000)
+                .setPriority(BackgroundFetchConfig.PRIORITY_EXPEDITED)
+                .build();
+        BGTask.schedule(mContext, delayed);
+        job = getJobScheduler().getPendingJob(delayed.getJobId());
+        assertFalse(job.isExpedited());
+        assertEquals(JobInfo.PRIORITY_HIGH, job.getPriority());
+
+        // Periodic and prefetch jobs can't be high priority either:  they keep the default.
+        BackgroundFetchConfig periodic = new BackgroundFetchConfig.Builder()
+                .setTaskId("priority.periodic")
+                .setDelay(60000)
+                .setPeriodic(true)
+                .setPriority(BackgroundFetchConfig.PRIORITY_EXPEDITED)
+                .build();
+        BGTask.schedule(mContext, periodic);
+        job = getJobScheduler().getPendingJob(periodic.getJobId());
+        assertFalse(job.isExpedited());
+        assertEquals(JobInfo.PRIORITY_DEFAULT, job.getPriority());
+
+        BackgroundFetchConfig prefetch = new BackgroundFetchConfig.Builder()
+                .setTaskId("priority.prefetch")
+                .setDelay(60000)
+                .setPrefetch(true)
+                .setPriority(BackgroundFetchConfig.PRIORITY_HIGH)
+                .build();
+        BGTask.schedule(mContext, prefetch);
+        assertEquals(JobInfo.PRIORITY_DEFAULT, getJobScheduler().getPendingJob(prefetch.getJobId()).getPriority());
+
+        BackgroundFetchConfig low = new BackgroundFetchConfig.Builder()
+                .setTaskId("priority.low")
+                .setDelay(60000)
+                .setPriority(BackgroundFetchConfig.PRIORITY_LOW)
+                .build();
+        low.save(mContext);
+        BackgroundFetchConfig loaded = BackgroundFetch.getConfigStore(mContext).load("priority.low");
+        assertEquals(BackgroundFetchConfig.PRIORITY_LOW, loaded.getPriority());
+        BGTask.schedule(mContext, loaded);
+        assertEquals(JobInfo.PRIORITY_LOW, getJobScheduler().getPendingJob(low.getJobId()).getPriority());
+    }
+
+    @Test
+    public void testExpeditedJobStartIsNotDroppedAsInitialFire() {
+        FastPathHeadlessTask.sFetched.clear();
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("expedited.start")
+                .setDelay(0)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .setPriority(BackgroundFetchConfig.PRIORITY_EXPEDITED)
+                .build();
+        adapter.scheduleTask(config);
+        JobInfo job = getJobScheduler().getPendingJob(config.getJobId());
+        assertTrue(job.isExpedited());
+
+        // The expedited job starts straight away, well within the initial-fire threshold.
+        FetchJobService service = Robolectric.buildService(FetchJobService.class).create().get();
+        JobParameters params = mock(JobParameters.class);
+        when(params.getJobId()).thenReturn(config.getJobId());
+        when(params.getExtras()).thenReturn(job.getExtras());
+        long initialFires = FetchJobService.getDuplicateJobFilter().getInitialFireCount();
+
+        assertTrue(service.onStartJob(params));
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(Collections.singletonList("expedited.start"), FastPathHeadlessTask.sFetched);
+        assertEquals(initialFires, FetchJobService.getDuplicateJobFilter().getInitialFireCount());
+        adapter.finish("expedited.start");
+    }
+
+    @Test
+    public void testLimiterDispatchesHigherPriorityFirst() {
+        TaskLimiter limiter = new TaskLimiter(Runnable::run);
+        limiter.setMaxConcurrent(1);
+        final List<String> dispatched = new ArrayList<>();
+        BGTask running = new BGTask(mContext, "priority.running", () -> {}, 410);
+        BGTask low = new BGTask(mContext, "priority.low", () -> {}, 411);
+        BGTask low2 = new BGTask(mContext, "priority.low2", () -> {}, 412);
+        BGTask high = new BGTask(mContext, "priority.high", () -> {}, 413);
+        for (BGTask task : new BGTask[] { running, low, low2, high }) {
+            task.setOnFinished(() -> limiter.release(task));
+        }
+
+        limiter.submit(running, null, 0, BackgroundFetchConfig.PRIORITY_DEFAULT, () -> dispatched.add("running"));
+        limiter.submit(low, null, 0, BackgroundFetchConfig.PRIORITY_LOW, () -> dispatched.add("low"));
+        limiter.submit(low2, null, 0, BackgroundFetchConfig.PRIORITY_LOW, () -> dispatched.add("low2"));
+        limiter.submit(high, null, 0, BackgroundFetchConfig.PRIORITY_HIGH, () -> dispatched.add("high"));
+        assertEquals(3, limiter.getQueuedCount());
+
+        running.finish();
+        high.finish();
+        low.finish();
+        // Priority first, then arrival.
+        assertEquals(Arrays.asList("running", "high", "low", "low2"), dispatched);
+    }
+
+    // =========================================================================
+    //  Network cost
+    // =========================================================================
+
+    @Test
+    public void testNetworkCostReachesJob() {
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("network.sync")
+                .setDelay(60000)
+                .setEstimatedNetworkBytes(5 * 1024 * 1024, 1024)
+                .setPrefetch(true)
+                .setRequiredNetwork(true, true)
+                .build();
+        config.save(mContext);
+        BackgroundFetchConfig loaded = BackgroundFetch.getConfigStore(mContext).load("network.sync");
+        assertEquals(5 * 1024 * 1024, loaded.getEstimatedDownloadBytes());
+        assertEquals(1024, loaded.getEstimatedUploadBytes());
+        assertTrue(loaded.getPrefetch());
+        assertTrue(loaded.getRequiresUnmetered());
+        assertTrue(loaded.getRequiresNotCongested());
+        // What's enforced where NetworkRequest isn't available.
+        assertEquals(JobInfo.NETWORK_TYPE_UNMETERED, loaded.getEffectiveNetworkType());
+
+        BGTask.schedule(mContext, loaded);
+        JobInfo job = getJobScheduler().getPendingJob(config.getJobId());
+        assertEquals(5 * 1024 * 1024, job.getEstimatedNetworkDownloadBytes());
+        assertEquals(1024, job.getEstimatedNetworkUploadBytes());
+        assertTrue(job.isPrefetch());
+        NetworkRequest network = job.getRequiredNetwork();
+        assertNotNull(network);
+        // As for JobInfo's own network types.
+        assertTrue(network.hasCapability(NetworkCapabilities.NET_CAPABILITY_VALIDATED));
+        assertFalse(network.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_RESTRICTED));
+        assertTrue(network.hasCapability(NetworkCapabilities.NET_CAPABILITY_NOT_CONGESTED));
+    }
+
+    @Test
+    public void testNetworkEstimatesIgnoredWithoutNetwork() {
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("network.none")
+                .setDelay(60000)
+                .setEstimatedNetworkBytes(1024, 1024)
+                .build();
+        assertEquals(JobInfo.NETWORK_TYPE_NONE, config.getEffectiveNetworkType());
+        BGTask.schedule(mContext, config);
+        JobInfo job = getJobScheduler().getPendingJob(config.getJobId());
+        assertEquals(JobInfo.NETWORK_BYTES_UNKNOWN, job.getEstimatedNetworkDownloadBytes());
+        assertNull(job.getRequiredNetwork());
+    }
+
+    @Test
+    public void testBatchingRespectsNetworkRequirements() {
+        BackgroundFetchConfig notCongested = new BackgroundFetchConfig.Builder()
+                .setTaskId("network.notCongested").setRequiredNetwork(false, true).build();
+        BackgroundFetchConfig any = new BackgroundFetchConfig.Builder()
+                .setTaskId("network.any").setRequiredNetwork(false, false).build();
+        BackgroundFetchConfig unmetered = new BackgroundFetchConfig.Builder()
+                .setTaskId("network.unmetered").setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED).build();
+        BackgroundFetchConfig wantsUnmetered = new BackgroundFetchConfig.Builder()
+                .setTaskId("network.wantsUnmetered").setRequiredNetwork(true, false).build();
+
+        assertTrue(JobBatcher.isCompatible(notCongested, any));
+        assertFalse(JobBatcher.isCompatible(any, notCongested));
+        assertTrue(JobBatcher.isCompatible(unmetered, wantsUnmetered));
+        assertFalse(JobBatcher.isCompatible(notCongested, wantsUnmetered));
+    }
+
+    // =========================================================================
+    //  Logger
+    // =========================================================================
+
+    @Test
+    public void testLoggerSkipsFormattingBelowLevel() {
+        final AtomicInteger rendered = new AtomicInteger();
+        Object expensive = new Object() {
+            @Override public String toString() {
+                rendered.incrementAndGet();
+                return "expensive";
+            }
+        };
+        int level = Logger.getLevel();
+        Logger.clear();
+        try {
+            Logger.setLevel(Logger.INFO);
+            Logger.d("- debug {}", expensive);
+            assertEquals("Disabled level never renders its arguments", 0, rendered.get());
+            assertTrue(Logger.getEntries().isEmpty());
+
+            Logger.i("- info {} / {}", expensive, 42);
+            assertEquals(1, rendered.get());
+            assertEquals("- info expensive / 42", Logger.getEntries().get(0).message);
+        } finally {
+            Logger.setLevel(level);
+            Logger.clear();
+        }
+    }
+
+    @Test
+    public void testLoggerRingBufferAndSink() {
+        final List<String> sunk = new ArrayList<>();
+        int level = Logger.getLevel();
+        try {
+            Logger.setLevel(Logger.DEBUG);
+            Logger.setBufferSize(3);
+            Logger.setSink((lvl, message, error) -> sunk.add(Logger.levelName(lvl) + " " + message));
+            for (int i = 1; i <= 5; i++) {
+                Logger.d("- entry {}", i);
+            }
+            Exception error = new IllegalStateException("boom");
+            Logger.e("- failed: {}", "task", error);
+
+            List<Logger.Entry> entries = Logger.getEntries();
+            assertEquals("Bounded to the buffer size", 3, entries.size());
+            assertEquals("- entry 4", entries.get(0).message);
+            assertEquals("- failed: task", entries.get(2).message);
+            assertSame("Trailing Throwable is attached", error, entries.get(2).error);
+            assertTrue(Logger.dump().contains("- entry 5"));
+            assertFalse(Logger.dump().contains("- entry 3"));
+            assertEquals(6, sunk.size());
+            assertEquals("E - failed: task", sunk.get(5));
+        } finally {
+            Logger.setLevel(level);
+            Logger.setSink(null);
+            Logger.setBufferSize(Logger.DEFAULT_BUFFER_SIZE);
+        }
+    }
+
+    // =========================================================================
+    //  Tracer
+    // =========================================================================
+
+    @Test
+    public void testTracerRecordsFetchLifecycle() throws Exception {
+        BackgroundFetch.getConfigStore(mContext).save(new BackgroundFetchConfig.Builder()
+                .setTaskId("trace.task")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        Tracer.enable();
+        try {
+            BGTask task = new BGTask(mContext, "trace.task", () -> {}, "trace.task".hashCode());
+            adapter.onFetch(task);
+            task.finish();
+        } finally {
+            Tracer.disable();
+        }
+
+        JSONArray events = new JSONObject(Tracer.toJson()).getJSONArray("traceEvents");
+        List<String> recorded = new ArrayList<>();
+        for (int i = 0; i < events.length(); i++) {
+            JSONObject event = events.getJSONObject(i);
+            if (!"M".equals(event.getString("ph"))) {
+                recorded.add(event.getString("ph") + " " + event.getString("name"));
+                assertTrue(event.has("ts"));
+                assertTrue(event.has("tid"));
+            }
+        }
+        assertEquals("b BGTask", recorded.get(0));
+        assertEquals("B BackgroundFetch.onFetch", recorded.get(1));
+        assertTrue(recorded.contains("B ConfigStore.load"));
+        assertTrue(recorded.contains("i headless"));
+        assertTrue(recorded.contains("B BGTask.fireHeadlessEvent"));
+        assertTrue(recorded.indexOf("E BackgroundFetch.onFetch") < recorded.indexOf("B BGTask.finish"));
+        assertEquals("e BGTask", recorded.get(recorded.size() - 1));
+    }
+
+    @Test
+    public void testTracerDisabledRecordsNothingAndBufferIsBounded() {
+        Tracer.enable(4);
+        Tracer.disable();
+        Tracer.begin("trace.disabled");
+        Tracer.instant("trace.disabled", null);
+        assertEquals(0, Tracer.getEventCount());
+
+        Tracer.enable(4);
+        try {
+            for (int i = 0; i < 10; i++) {
+                Tracer.instant("trace.event", i);
+            }
+        } finally {
+            Tracer.disable();
+        }
+        assertEquals("Keeps the newest events", 4, Tracer.getEventCount());
+        assertTrue(Tracer.toJson().contains("\"arg\":\"9\""));
+        assertFalse(Tracer.toJson().contains("\"arg\":\"5\""));
+    }
+
+    @Test
+    public void testTracerEndsOnlySpansItBegan() {
+        Tracer.enable(16);
+        Tracer.begin("trace.outer");
+        Tracer.disable();
+        Tracer.begin("trace.inner");
+        Tracer.end("trace.inner");
+        assertEquals("Span begun while disabled isn't ended", 1, Tracer.getEventCount());
+        Tracer.end("trace.outer");
+        assertEquals("Span begun while enabled is ended after disable", 2, Tracer.getEventCount());
+
+        Tracer.enable(16);
+        try {
+            Tracer.end("trace.outer");
+            assertEquals(0, Tracer.getEventCount());
+        } finally {
+            Tracer.disable();
+        }
+    }
+
+    // =========================================================================
+    //  Multi-process
+    // =========================================================================
+
+    @Test
+    public void testTaskLeasedElsewhereIsNotDispatched() throws Exception {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        FastPathHeadlessTask.sFetched.clear();
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("lease.test")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+
+        // Stands in for another process's lease.
+        File file = TaskLease.getFile(mContext, "lease.test");
+        file.getParentFile().mkdirs();
+        try (RandomAccessFile other = new RandomAccessFile(file, "rw")) {
+            FileLock lock = other.getChannel().lock();
+            assertNull(TaskLease.acquire(mContext, "lease.test"));
+
+            BGTask task = new BGTask(mContext, "lease.test", () -> {}, 801);
+            adapter.onFetch(task);
+            assertTrue(FastPathHeadlessTask.sFetched.isEmpty());
+            assertTrue("Finished, so the job is reported done", task.isFinished());
+            lock.release();
+        }
+
+        BGTask task = new BGTask(mContext, "lease.test", () -> {}, 802);
+        adapter.onFetch(task);
+        assertEquals(Collections.singletonList("lease.test"), FastPathHeadlessTask.sFetched);
+        assertTrue("Held while the task runs", heldElsewhere("lease.test"));
+        task.finish();
+        assertFalse(heldElsewhere("lease.test"));
+    }
+
+    @Test
+    public void testLeaseFileDeletedWithItsTask() {
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        FastPathHeadlessTask.sFetched.clear();
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("lease.oneshot")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        adapter.onFetch(new BGTask(mContext, "lease.oneshot", () -> {}, 803));
+        File oneShot = TaskLease.getFile(mContext, "lease.oneshot");
+        assertTrue(oneShot.exists());
+        adapter.finish("lease.oneshot");
+        assertFalse("Deleted once the one-shot task is done", oneShot.exists());
+
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("lease.periodic")
+                .setDelay(60000)
+                .setPeriodic(true)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        adapter.onFetch(new BGTask(mContext, "lease.periodic", () -> {}, 804));
+        adapter.finish("lease.periodic");
+        File periodic = TaskLease.getFile(mContext, "lease.periodic");
+        assertTrue("Kept for the next run", periodic.exists());
+        adapter.stop("lease.periodic");
+        assertFalse(periodic.exists());
+    }
+
+    @Test
+    public void testMainThreadLeasesInBackgroundWhenDirectoryBusy() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        BackgroundFetch.setExecutor(queued::add);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        FastPathHeadlessTask.sFetched.clear();
+        adapter.scheduleTask(new BackgroundFetchConfig.Builder()
+                .setTaskId("lease.busy")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+
+        File dirLock = new File(mContext.getFilesDir(), BackgroundFetch.TAG + ".leases.lock");
+        try (RandomAccessFile other = new RandomAccessFile(dirLock, "rw")) {
+            // Another process is creating or deleting a lease.
+            FileLock lock = other.getChannel().lock();
+            // Main gives up on the lock rather than waiting for it.
+            adapter.onFetch(new BGTask(mContext, "lease.busy", () -> {}, 805));
+            assertTrue(FastPathHeadlessTask.sFetched.isEmpty());
+            lock.release();
+        }
+
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).run();
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(Collections.singletonList("lease.busy"), FastPathHeadlessTask.sFetched);
+        assertTrue("Held while the task runs", heldElsewhere("lease.busy"));
+        adapter.finish("lease.busy");
+    }
+
+    @Test
+    public void testColdStartLoadsInBackgroundWhenStoreBusy() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        BackgroundFetch.setExecutor(queued::add);
+        FastPathHeadlessTask.sFetched.clear();
+        // Persisted by a previous launch;  nothing read by this process yet.
+        new LogConfigStore(mContext).save(new BackgroundFetchConfig.Builder()
+                .setTaskId("cold.busy")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+
+        File storeLock = new File(mContext.getFilesDir(), LogConfigStore.FILE_NAME + ".lock");
+        try (RandomAccessFile other = new RandomAccessFile(storeLock, "rw")) {
+            // Another process is using the store.
+            FileLock lock = other.getChannel().lock();
+            // Main gives up on the lock rather than waiting for it.
+            adapter.onFetch(new BGTask(mContext, "cold.busy", () -> {}, 806));
+            assertTrue(FastPathHeadlessTask.sFetched.isEmpty());
+            lock.release();
+        }
+
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).run();
+        }
+        shadowOf(Looper.getMainLooper()).idle();
+        assertEquals(Collections.singletonList("cold.busy"), FastPathHeadlessTask.sFetched);
+        adapter.finish("cold.busy");
+    }
+
+    @Test
+    public void testProcessLockTryLockGivesUp() throws Exception {
+        File file = new File(mContext.getFilesDir(), "trylock.test.lock");
+        ProcessLock processLock = ProcessLock.forFile(file);
+        try (RandomAccessFile other = new RandomAccessFile(file, "rw")) {
+            // Stands in for another process holding it.
+            FileLock lock = other.getChannel().lock();
+            assertFalse(processLock.tryLock(50));
+            lock.release();
+        }
+        assertTrue(processLock.tryLock(50));
+        processLock.unlock();
+    }
+
+    // Whether a lock on taskId's lease file is held by some channel other than the one we'd open.
+    private boolean heldElsewhere(String taskId) throws IOException {
+        try (RandomAccessFile file = new RandomAccessFile(TaskLease.getFile(mContext, taskId), "rw")) {
+            FileLock lock = file.getChannel().tryLock();
+            if (lock != null) {
+                lock.release();
+            }
+            return lock == null;
+        } catch (OverlappingFileLockException e) {
+            return true;
+        }
+    }
+
+    @Test
+    public void testLogConfigStoreQueuedWritesKeepCallOrder() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        BackgroundFetch.setExecutor(queued::add);
+        LogConfigStore store = new LogConfigStore(mContext);
+
+        try (RandomAccessFile other = new RandomAccessFile(new File(store.getFile().getPath() + ".lock"), "rw")) {
+            // Another process is using the store:  the save is queued.
+            FileLock lock = other.getChannel().lock();
+            store.save(new BackgroundFetchConfig.Builder().setTaskId("order.a").setDelay(1000).build());
+            lock.release();
+        }
+        // The lock is free now, but the remove mustn't overtake the queued save.
+        store.remove("order.a");
+        assertEquals(1, queued.size());
+
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).run();
+        }
+        assertNull(store.load("order.a"));
+        assertNull(new LogConfigStore(mContext).load("order.a"));
+    }
+
+    @Test
+    public void testLogConfigStoreSnapshotOnlyRebuiltOnChange() throws Exception {
+        LogConfigStore store = new LogConfigStore(mContext);
+        Field snapshot = LogConfigStore.class.getDeclaredField("mSnapshot");
+        snapshot.setAccessible(true);
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("snapshot.a").setDelay(1000).build());
+        Object saved = snapshot.get(store);
+        assertNotNull(saved);
+
+        store.load("snapshot.a");
+        store.loadAll();
+        assertSame("Reads don't copy the records", saved, snapshot.get(store));
+
+        store.save(new BackgroundFetchConfig.Builder().setTaskId("snapshot.b").setDelay(2000).build());
+        assertTrue(((Map<?, ?>) snapshot.get(store)).containsKey("snapshot.b"));
+    }
+
+    @Test
+    public void testLogConfigStoreSeesOtherProcessWrites() {
+        LogConfigStore ours = new LogConfigStore(mContext);
+        LogConfigStore theirs = new LogConfigStore(mContext);
+        ours.save(new BackgroundFetchConfig.Builder().setTaskId("shared.a").setDelay(1000).build());
+        assertEquals(1000, theirs.load("shared.a").getDelay());
+
+        // Appended:  only the new bytes are read.
+        theirs.save(new BackgroundFetchConfig.Builder().setTaskId("shared.a").setDelay(2000).build());
+        theirs.save(new BackgroundFetchConfig.Builder().setTaskId("shared.b").setDelay(3000).build());
+        assertEquals(Arrays.asList("shared.a", "shared.b"), new ArrayList<>(ours.refresh()));
+        assertEquals(2000, ours.load("shared.a").getDelay());
+        assertTrue(ours.refresh().isEmpty());
+
+        // Compacted:  the epoch forces a full re-read.
+        theirs.remove("shared.b");
+        theirs.compact();
+        assertEquals(Collections.singletonList("shared.b"), new ArrayList<>(ours.refresh()));
+        assertNull(ours.load("shared.b"));
+        ours.save(new BackgroundFetchConfig.Builder().setTaskId("shared.c").setDelay(4000).build());
+        assertEquals(2, theirs.loadAll().size());
+    }
+
+    // =========================================================================
+    //  DuplicateJobFilter
+    // =========================================================================
+
+    @Test
+    public void testDuplicateFilterTracksEveryTask() {
+        DuplicateJobFilter filter = new DuplicateJobFilter();
+        // More than the old 5-entry queue could hold.
+        for (int i = 0; i < 10; i++) {
+            assertFalse(filter.isDuplicate("task." + i));
+        }
+        assertTrue(filter.isDuplicate("task.0"));
+        assertTrue("taskIds compare case-insensitively", filter.isDuplicate("TASK.9"));
+        assertEquals(2, filter.getSuppressedCount());
+    }
+
+    @Test
+    public void testDuplicateFilterWindowAndBound() {
+        DuplicateJobFilter filter = new DuplicateJobFilter(4);
+        filter.setWindow(0);
+        assertFalse(filter.isDuplicate("a"));
+        assertFalse("A zero window disables suppression", filter.isDuplicate("a"));
+
+        filter.setWindow(60000);
+        for (int i = 0; i < 10; i++) {
+            filter.isDuplicate("bound." + i);
+        }
+        assertEquals(4, filter.size());
+        // The oldest fires were evicted.
+        assertFalse(filter.isDuplicate("bound.0"));
+        assertTrue(filter.isDuplicate("bound.9"));
+    }
+
+    @Test
+    public void testDuplicateFilterInitialFireUsesElapsedRealtime() {
+        DuplicateJobFilter filter = new DuplicateJobFilter();
+        long now = SystemClock.elapsedRealtime();
+
+        PersistableBundle fresh = new PersistableBundle();
+        fresh.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, now);
+        // A wall clock that has jumped backwards no longer matters.
+        fresh.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT, System.currentTimeMillis() + 3600000);
+        assertTrue(filter.isInitialFire(fresh));
+
+        PersistableBundle old = new PersistableBundle();
+        old.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, now - 60000);
+        old.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT, System.currentTimeMillis());
+        assertFalse(filter.isInitialFire(old));
+
+        // Scheduled before a reboot:  elapsedRealtime has since restarted from zero.
+        PersistableBundle beforeReboot = new PersistableBundle();
+        beforeReboot.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, now + 60000);
+        assertFalse(filter.isInitialFire(beforeReboot));
+
+        // Jobs scheduled by an older version carry only the wall-clock extra.
+        PersistableBundle legacy = new PersistableBundle();
+        legacy.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT, System.currentTimeMillis());
+        assertTrue(filter.isInitialFire(legacy));
+
+        // Only periodic jobs get an initial fire.
+        PersistableBundle oneShot = new PersistableBundle();
+        oneShot.putLong(DuplicateJobFilter.EXTRA_SCHEDULED_AT_ELAPSED, now);
+        oneShot.putInt(BGTask.EXTRA_PERIODIC, 0);
+        assertFalse(filter.isInitialFire(oneShot));
+
+        assertEquals(2, filter.getInitialFireCount());
+    }
+
+    // =========================================================================
+    //  Metrics
+    // =========================================================================
+
+    @Test
+    public void testHistogramPercentiles() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.getP50());
+        for (int i = 1; i <= 100; i++) {
+            histogram.record(i * 10);   // 10ms .. 1000ms
+        }
+        assertEquals(100, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(505, histogram.getMean());
+        // Percentiles resolve to the containing bucket's upper bound.
+        assertEquals(500, histogram.getP50());
+        assertEquals(1000, histogram.getP95());
+        assertEquals(1000, histogram.getP99());
+
+        histogram.record(-5);
+        assertEquals("Negative values clamp to 0", 101, histogram.getCount());
+    }
+
+    @Test
+    public void testMetricsRecordDurationAndTimeouts() {
+        LifecycleManager.getInstance().setHeadless(false);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.configure(new BackgroundFetchConfig.Builder().setTaskId("metrics.test").setDelay(60000).build(),
+                new BackgroundFetch.Callback() {
+                    @Override public void onFetch(String taskId) {}
+                    @Override public void onTimeout(String taskId) {}
+                });
+        assertNull(adapter.getMetrics("metrics.test"));
+
+        BGTask task = new BGTask(mContext, "metrics.test", () -> {}, "metrics.test".hashCode());
+        adapter.onFetch(task);
+        task.onTimeout(mContext);
+        task.onTimeout(mContext);
+        adapter.finish("metrics.test");
+
+        TaskMetrics metrics = adapter.getMetrics("metrics.test");
+        assertNotNull(metrics);
+        assertEquals(1, metrics.getDuration().getCount());
+        assertEquals("A task times out at most once", 1, metrics.getTimeoutCount());
+        assertSame("Lookup is case-insensitive", metrics, adapter.getMetrics("METRICS.TEST"));
+    }
+
+    @Test
+    public void testJobStopIsNotCountedAsTimeout() {
+        LifecycleManager.getInstance().setHeadless(false);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.configure(new BackgroundFetchConfig.Builder().setTaskId("metrics.stop").setDelay(60000).build(),
+                new BackgroundFetch.Callback() {
+                    @Override public void onFetch(String taskId) {}
+                    @Override public void onTimeout(String taskId) {}
+                });
+        BGTask task = new BGTask(mContext, "metrics.stop", () -> {}, 43);
+        adapter.onFetch(task);
+
+        FetchJobService service = Robolectric.buildService(FetchJobService.class).create().get();
+        JobParameters params = mock(JobParameters.class);
+        PersistableBundle extras = new PersistableBundle();
+        extras.putString(BackgroundFetchConfig.FIELD_TASK_ID, "metrics.stop");
+        when(params.getJobId()).thenReturn(43);
+        when(params.getExtras()).thenReturn(extras);
+        service.onStopJob(params);
+        assertEquals(CancellationToken.REASON_JOB_STOPPED, task.getCancellationToken().getReason());
+        adapter.finish("metrics.stop");
+
+        TaskMetrics metrics = adapter.getMetrics("metrics.stop");
+        assertEquals(1, metrics.getStopCount());
+        assertEquals(0, metrics.getTimeoutCount());
+        ExecutionJournal.Summary summary = BackgroundFetch.getJournal(mContext).aggregate("metrics.stop");
+        assertEquals(1, summary.getCount(ExecutionJournal.EVENT_STOPPED));
+        assertEquals(0, summary.getCount(ExecutionJournal.EVENT_TIMEOUT));
+    }
+
+    @Test
+    public void testMetricsSchedulingDelay() {
+        TaskMetrics metrics = TaskMetrics.forTask("delay.test");
+        long now = SystemClock.elapsedRealtime();
+
+        // One-shot due 1000ms ago.
+        metrics.onStart(now - 6000, 0, 5000, false);
+        // Early start (within the flex window) counts as on time.
+        metrics.onStart(now, 0, 5000, false);
+        // Unknown interval (older extras):  counted as a start only.
+        metrics.onStart(now - 6000, 0, -1, false);
+
+        assertEquals(3, metrics.getStartCount());
+        assertEquals(2, metrics.getSchedulingDelay().getCount());
+        long max = metrics.getSchedulingDelay().getMax();
+        assertTrue("max delay " + max, max >= 1000 && max < 2000);
+    }
+
+    // =========================================================================
+    //  ExecutionJournal
+    // =========================================================================
+
+    @Test
+    public void testJournalWrapsAndSurvivesReopen() {
+        File file = new File(mContext.getFilesDir(), "journal.test");
+        ExecutionJournal journal = new ExecutionJournal(file, 0);
+        int capacity = journal.getCapacity();
+        journal.open();
+        for (int i = 0; i < capacity + 5; i++) {
+            journal.record(ExecutionJournal.EVENT_FINISHED, "task." + i, i, i);
+        }
+        assertEquals(capacity * ExecutionJournal.RECORD_SIZE + 64, file.length());
+
+        List<ExecutionJournal.Record> records = new ExecutionJournal(file, 0).getRecords();
+        assertEquals(capacity, records.size());
+        // Oldest records were overwritten;  order is preserved.
+        assertEquals("task.5", records.get(0).getTaskId());
+        assertEquals(capacity + 4, records.get(capacity - 1).getJobId());
+        assertEquals(ExecutionJournal.EVENT_FINISHED, records.get(0).getEvent());
+    }
+
+    @Test
+    public void testJournalSharedByProcessesKeepsEveryRecord() {
+        File file = new File(mContext.getFilesDir(), "journal.test");
+        // The main process's journal, and another process's alongside it.
+        ExecutionJournal ours = new ExecutionJournal(file, 4096);
+        ExecutionJournal theirs = new ExecutionJournal(file, new File(file.getPath() + "-sync"), null, 4096);
+        ours.open();
+        theirs.open();
+        ours.record(ExecutionJournal.EVENT_CREATED, "ours", 1, -1);
+        theirs.record(ExecutionJournal.EVENT_CREATED, "theirs", 2, -1);
+        ours.record(ExecutionJournal.EVENT_FINISHED, "ours", 1, 10);
+
+        // Either process reads both journals.
+        for (ExecutionJournal journal : new ExecutionJournal[] { ours, theirs }) {
+            List<ExecutionJournal.Record> records = journal.getRecords();
+            assertEquals(3, records.size());
+            List<ExecutionJournal.Record> own = new ArrayList<>();
+            for (ExecutionJournal.Record record : records) {
+                if (record.getTaskId().equals("ours")) {
+                    own.add(record);
+                }
+            }
+            assertEquals(2, own.size());
+            assertEquals(ExecutionJournal.EVENT_CREATED, own.get(0).getEvent());
+            assertEquals(ExecutionJournal.EVENT_FINISHED, own.get(1).getEvent());
+            assertEquals(1, own.get(1).getSequence());
+        }
+
+        theirs.clear();
+        assertTrue(ours.getRecords().isEmpty());
+    }
+
+    @Test
+    public void testJournalStagesRecordsUntilOpenAndTruncatesTaskId() {
+        File file = new File(mContext.getFilesDir(), "journal.test");
+        ExecutionJournal journal = new ExecutionJournal(file, 4096);
+        String longTaskId = "com.example.a.very.long.task.identifier";
+        journal.record(ExecutionJournal.EVENT_CREATED, longTaskId, 7, -1);
+        journal.record(ExecutionJournal.EVENT_DISPATCHED, longTaskId, 7, -1);
+
+        List<ExecutionJournal.Record> records = journal.getRecords();
+        assertEquals(2, records.size());
+        assertEquals(longTaskId.substring(longTaskId.length() - ExecutionJournal.TASK_ID_CHARS), records.get(0).getTaskId());
+        assertEquals(ExecutionJournal.EVENT_DISPATCHED, records.get(1).getEvent());
+        assertEquals(0, journal.getDroppedCount());
+    }
+
+    @Test
+    public void testJournalKeepsTruncatedTaskIdsApart() {
+        File file = new File(mContext.getFilesDir(), "journal.test");
+        ExecutionJournal journal = new ExecutionJournal(file, 4096);
+        String a = "com.example.alpha.shared.task.suffix";
+        String b = "com.example.bravo.shared.task.suffix";
+        journal.record(ExecutionJournal.EVENT_FINISHED, a, 1, 10);
+        journal.record(ExecutionJournal.EVENT_FINISHED, b, 2, 20);
+        journal.record(ExecutionJournal.EVENT_FINISHED, b, 2, 30);
+
+        assertEquals(2, journal.aggregate().size());
+        assertEquals(1, journal.aggregate(a).getCount(ExecutionJournal.EVENT_FINISHED));
+        assertEquals(2, journal.aggregate(b).getCount(ExecutionJournal.EVENT_FINISHED));
+        assertEquals(50, journal.aggregate(b).getTotalDuration());
+        assertNull(journal.aggregate("shared.task.suffix"));
+    }
+
+    @Test
+    public void testJournalAggregateAndLifecycle() {
+        LifecycleManager.getInstance().setHeadless(false);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.configure(new BackgroundFetchConfig.Builder().setTaskId("journal.task").setDelay(60000).build(),
+                new BackgroundFetch.Callback() {
+                    @Override public void onFetch(String taskId) {}
+                    @Override public void onTimeout(String taskId) {}
+                });
+        BGTask task = new BGTask(mContext, "journal.task", () -> {}, 42);
+        adapter.onFetch(task);
+        task.onTimeout(mContext);
+        adapter.finish("journal.task");
+
+        ExecutionJournal.Summary summary = BackgroundFetch.getJournal(mContext).aggregate().get("journal.task");
+        assertNotNull(summary);
+        assertEquals(1, summary.getCount(ExecutionJournal.EVENT_DISPATCHED));
+        assertEquals(1, summary.getCount(ExecutionJournal.EVENT_TIMEOUT));
+        assertEquals(1, summary.getCount(ExecutionJournal.EVENT_FINISHED));
+        assertEquals(0, summary.getCount(ExecutionJournal.EVENT_STOPPED));
+    }
+
+    // =========================================================================
+    //  Cold-start fast path
+    // =========================================================================
+
+    public static class FastPathHeadlessTask {
+        static final List<String> sFetched = new ArrayList<>();
+
+        public FastPathHeadlessTask(Context context, BGTask task) {
+            sFetched.add(task.getTaskId());
+        }
+    }
+
+    @Test
+    public void testColdStartDispatchesFromStorageImmediately() {
+        FastPathHeadlessTask.sFetched.clear();
+        // Persisted by a previous launch;  nothing loaded into this process yet.
+        BackgroundFetch.getConfigStore(mContext).save(new BackgroundFetchConfig.Builder()
+                .setTaskId("cold.task")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+        BackgroundFetch.getConfigStore(mContext).save(new BackgroundFetchConfig.Builder()
+                .setTaskId("cold.other")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setJobService(FastPathHeadlessTask.class.getName())
+                .build());
+
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.onFetch(new BGTask(mContext, "cold.task", () -> {}, "cold.task".hashCode()));
+
+        // Dispatched synchronously, without waiting on the full load.
+        assertEquals(Collections.singletonList("cold.task"), FastPathHeadlessTask.sFetched);
+        assertNotNull(adapter.getConfig("cold.task"));
+    }
+
+    // =========================================================================
+    //  JobReconciler
+    // =========================================================================
+
+    private JobScheduler getJobScheduler() {
+        return (JobScheduler) mContext.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+    }
+
+    private boolean hasPendingJob(int jobId) {
+        for (JobInfo job : getJobScheduler().getAllPendingJobs()) {
+            if (job.getId() == jobId) return true;
+        }
+        return false;
+    }
+
+    @Test
+    public void testReconcileCancelsOrphanedJobs() {
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("orphan.test")
+                .setDelay(60000)
+                .build();
+        // Job scheduled, but its config was never persisted (or has since been lost).
+        BGTask.schedule(mContext, config);
+        assertTrue(hasPendingJob(config.getJobId()));
+
+        JobReconciler.Result result = JobReconciler.reconcile(mContext, new ArrayList<BackgroundFetchConfig>());
+
+        assertEquals(Collections.singletonList("orphan.test"), result.getCancelled());
+        assertFalse(hasPendingJob(config.getJobId()));
+    }
+
+    @Test
+    public void testReconcileReschedulesMissingJobs() {
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("missing.test")
+                .setDelay(60000)
+                .build();
+        config.save(mContext);
+        assertFalse(hasPendingJob(config.getJobId()));
+
+        JobReconciler.Result result = JobReconciler.reconcile(mContext, BackgroundFetch.getConfigStore(mContext).loadAll());
+
+        assertEquals(Collections.singletonList("missing.test"), result.getRescheduled());
+        assertTrue(hasPendingJob(config.getJobId()));
+    }
+
+    @Test
+    public void testReconcileLeavesMatchingJobsAndForeignJobs() {
+        BackgroundFetchConfig config = new BackgroundFetchConfig.Builder()
+                .setTaskId("matching.test")
+                .setDelay(60000)
+                .build();
+        config.save(mContext);
+        BGTask.schedule(mContext, config);
+        // A job belonging to some other JobService in the host app.
+        getJobScheduler().schedule(new JobInfo.Builder(4242,
+                new ComponentName(mContext, ForeignJobService.class))
+                .setMinimumLatency(60000)
+                .build());
+
+        JobReconciler.Result result = JobReconciler.reconcile(mContext, BackgroundFetch.getConfigStore(mContext).loadAll());
+
+        assertFalse(result.hasChanges());
+        assertEquals(1, result.getUnchanged());
+        assertTrue(hasPendingJob(config.getJobId()));
+        assertTrue("Foreign jobs must never be cancelled", hasPendingJob(4242));
+    }
+
+    @Test
+    public void testBootRestoreKeepsBootTasksAndDestroysTheRest() {
+        BackgroundFetchConfig survivor = new BackgroundFetchConfig.Builder()
+                .setTaskId("boot.keep")
+                .setDelay(60000)
+                .setStopOnTerminate(false)
+                .setStartOnBoot(true)
+                .setJobService("com.example.HeadlessTask")
+                .build();
+        survivor.save(mContext);
+        new BackgroundFetchConfig.Builder().setTaskId("boot.noboot").setDelay(60000)
+                .setStopOnTerminate(false).setJobService("com.example.HeadlessTask").build().save(mContext);
+        new BackgroundFetchConfig.Builder().setTaskId("boot.terminate").setDelay(60000)
+                .setStartOnBoot(true).setJobService("com.example.HeadlessTask").build().save(mContext);
+
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.onBoot();
+
+        ConfigStore store = BackgroundFetch.getConfigStore(mContext);
+        assertNotNull(store.load("boot.keep"));
+        assertNull(store.load("boot.noboot"));
+        assertNull(store.load("boot.terminate"));
+        assertNotNull(adapter.getConfig("boot.keep"));
+        // The surviving job was missing after reboot:  reconcile re-created it before onBoot returned.
+        assertTrue(hasPendingJob(survivor.getJobId()));
+        assertNotNull(adapter.getLastReconcileResult());
+        assertTrue(adapter.getLastBootRestoreDuration() >= 0);
+    }
+
+    @Test
+    public void testBootRestoreSkipsTheLaunchReconcile() {
+        new BackgroundFetchConfig.Builder().setTaskId("boot.terminate").setDelay(60000)
+                .setStartOnBoot(true).setJobService("com.example.HeadlessTask").build().save(mContext);
+        List<Runnable> queued = new ArrayList<>();
+        BackgroundFetch.setExecutor(queued::add);
+
+        // BootReceiver cold-starts the plugin:  the constructor queues its reconcile, then onBoot() runs.
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.onBoot();
+        JobReconciler.Result booted = adapter.getLastReconcileResult();
+        assertNotNull(booted);
+        for (int i = 0; i < queued.size(); i++) {
+            queued.get(i).run();
+        }
+        assertSame("Only onBoot() reconciles", booted, adapter.getLastReconcileResult());
+        assertNull(BackgroundFetch.getConfigStore(mContext).load("boot.terminate"));
+    }
+
+    public static class ForeignJobService extends JobService {
+        @Override public boolean onStartJob(JobParameters params) { return false; }
+        @Override public boolean onStopJob(JobParameters params) { return false; }
+    }
+
+    // =========================================================================
+    //  Batching
+    // =========================================================================
+
+    private BackgroundFetch configureBatchTasks(final List<String> fetched, BackgroundFetchConfig... configs) {
+        LifecycleManager.getInstance().setHeadless(false);
+        BackgroundFetch adapter = BackgroundFetch.getInstance(mContext);
+        adapter.configure(configs[0], new BackgroundFetch.Callback() {
+            @Override public void onFetch(String taskId) { fetched.add(taskId); }
+            @Override public void onTimeout(String taskId) {}
+        });
+        for (int i = 1; i < configs.length; i++) {
+            adapter.scheduleTask(configs[i]);
+        }
+        return adapter;
+    }
+
+    @Test
+    public void testBatchDispatchesCoDueTasksInOneJob() {
+        final List<String> fetched = new ArrayList<>();
+        BackgroundFetch adapter = configureBatchTasks(fetched,
+                new BackgroundFetchConfig.Builder().setTaskId("batch.host").setDelay(60000).setPeriodic(true).build(),
+                new BackgroundFetchConfig.Builder().setTaskId("batch.member").setDelay(60000).setPeriodic(true).setBatchWindow(120000).build(),
+                new BackgroundFetchConfig.Builder().setTaskId("batch.optout").setDelay(60000).setPeriodic(true).build());
+
+        final AtomicInteger jobFinished = new AtomicInteger(0);
+        BGTask host = new BGTask(mContext, "batch.host", () -> jobFinished.incrementAndGet(), "batch.host".hashCode());
+        adapter.onFetch(host);
+
+        assertEquals(Arrays.asList("batch.host", "batch.member"), fetched);
+        assertNotNull(BGTask.getTask("batch.member"));
+
+        // The job stays open until every member of the batch has finished.
+        adapter.finish("batch.host");
+        assertEquals(0, jobFinished.get());
+        adapter.finish("batch.member");
+        assertEquals(1, jobFinished.get());
+    }
+
+    @Test
+    public void testBatchSkipsIncompatibleConstraints() {
+        final List<String> fetched = new ArrayList<>();
+        BackgroundFetch adapter = configureBatchTasks(fetched,
+                new BackgroundFetchConfig.Builder().setTaskId("batch.host").setDelay(60000).setPeriodic(true).build(),
+                new BackgroundFetchConfig.Builder().setTaskId("batch.charging").setDelay(60000).setPeriodic(true)
+                        .setBatchWindow(120000).setRequiresCharging(true).build(),
+                new BackgroundFetchConfig.Builder().setTaskId("batch.later").setDelay(600000).setPeriodic(true)
+                        .setBatchWindow(120000).build());
+
+        final AtomicInteger jobFinished = new AtomicInteger(0);
+        adapter.onFetch(new BGTask(mContext, "batch.host", () -> jobFinished.incrementAndGet(), "batch.host".hashCode()));
+
+        assertEquals(Collections.singletonList("batch.host"), fetched);
+        adapter.finish("batch.host");
+        assertEquals(1, jobFinished.get());
+    }
+
+    @Test
+    public void testBatchConstraintCompatibility() {
+        BackgroundFetchConfig unmetered = new BackgroundFetchConfig.Builder().setTaskId("a")
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_UNMETERED).build();
+        BackgroundFetchConfig anyNetwork = new BackgroundFetchConfig.Builder().setTaskId("b")
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY).build();
+        BackgroundFetchConfig none = new BackgroundFetchConfig.Builder().setTaskId("c").build();
+
+        assertTrue(JobBatcher.isCompatible(unmetered, anyNetwork));
+        assertTrue(JobBatcher.isCompatible(unmetered, none));
+        assertFalse(JobBatcher.isCompatible(anyNetwork, unmetered));
+        assertFalse(JobBatcher.isCompatible(none, anyNetwork));
+    }
+
+    // =========================================================================
+    //  BackgroundFetchExecutor
+    // =========================================================================
+
+    @Test
+    public void testExecutorIsBoundedAndNamed() throws Exception {
+        BackgroundFetchExecutor executor = new BackgroundFetchExecutor.Builder()
+                .setName("bounded.test")
+                .setCorePoolSize(1)
+                .setMaximumPoolSize(2)
+                .setQueueCapacity(2)
+                .setRejectionPolicy(new ThreadPoolExecutor.DiscardPolicy())
+                .build();
+        final CountDownLatch release = new CountDownLatch(1);
+        final Set<String> threadNames = Collections.synchronizedSet(new HashSet<String>());
+        Runnable blocker = () -> {
+            threadNames.add(Thread.currentThread().getName());
+            try { release.await(); } catch (InterruptedException ignored) {}
+        };
+        // 2 threads + 2 queued; the 5th is rejected.
+        for (int i = 0; i < 5; i++) {
+            executor.execute(blocker);
+        }
+        assertEquals(2, executor.getPoolSize());
+        assertEquals(2, executor.getQueueDepth());
+        assertEquals(1, executor.getRejectedCount());
+
+        release.countDown();
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertEquals(4, executor.getRunCount());
+        assertTrue(executor.getMaxRunTime() >= 0);
+        for (String name : threadNames) {
+            assertTrue(name, name.startsWith("bounded.test-"));
+        }
+    }
+
+    @Test
+    public void testExecutorRecordsWaitTime() throws Exception {
+        BackgroundFetchExecutor executor = new BackgroundFetchExecutor.Builder()
+                .setCorePoolSize(1)
+                .setMaximumPoolSize(1)
+                .build();
+        executor.execute(() -> {
+            try { Thread.sleep(50); } catch (InterruptedException ignored) {}
+        });
+        executor.execute(() -> {});
+        executor.shutdown();
+        assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+        assertTrue("Second task should have queued behind the first", executor.getMaxWaitTime() >= 40);
+        assertTrue(executor.getTotalRunTime() >= 40);
+    }
+
+    @Test
+    public void testHostCanInjectExecutor() {
+        final AtomicInteger count = new AtomicInteger(0);
+        Executor injected = command -> {
+            count.incrementAndGet();
+            command.run();
+        };
+        BackgroundFetch.setExecutor(injected);
+        assertSame(injected, BackgroundFetch.getExecutor());
+        // Not an ExecutorService:  getThreadPool() still returns the default pool.
+        assertTrue(BackgroundFetch.getThreadPool() instanceof BackgroundFetchExecutor);
+
+        BackgroundFetch.getExecutor().execute(() -> {});
+        assertEquals(1, count.get());
+
+        BackgroundFetch.setExecutor(null);
+        assertSame(BackgroundFetch.getThreadPool(), BackgroundFetch.getExecutor());
+    }
+
+    // =========================================================================
+    //  HashedWheelTimer
+    // =========================================================================
+
+    @Test
+    public void testTimerFiresOnItsOwnThread() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("timer.test", 10, 8);
+        final CountDownLatch fired = new CountDownLatch(1);
+        final String[] threadName = new String[1];
+        long start = System.nanoTime();
+        // 200ms spans several rotations of an 8 x 10ms wheel.
+        timer.schedule(() -> {
+            threadName[0] = Thread.currentThread().getName();
+            fired.countDown();
+        }, 200);
+
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("Timeout fired early: " + elapsed + "ms", elapsed >= 200);
+        assertEquals("timer.test", threadName[0]);
+        assertEquals(1, timer.getExpiredCount());
+        assertEquals(0, timer.getPendingCount());
+        assertTrue(timer.getMaxLateness() < 1000);
+    }
+
+    @Test
+    public void testTimerCancel() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("timer.cancel.test", 10, 8);
+        final AtomicInteger count = new AtomicInteger(0);
+        HashedWheelTimer.Timeout cancelled = timer.schedule(count::incrementAndGet, 50);
+        final CountDownLatch fired = new CountDownLatch(1);
+        timer.schedule(fired::countDown, 100);
+
+        assertTrue(cancelled.cancel());
+        assertFalse("Second cancel is a no-op", cancelled.cancel());
+        assertTrue(fired.await(2, TimeUnit.SECONDS));
+
+        assertEquals("Cancelled timeout must not fire", 0, count.get());
+        assertTrue(cancelled.isCancelled());
+        assertEquals(1, timer.getCancelledCount());
+        assertEquals(1, timer.getExpiredCount());
+    }
+
+    @Test
+    public void testTimerResumesAfterIdle() throws Exception {
+        HashedWheelTimer timer = new HashedWheelTimer("timer.idle.test", 10, 8);
+        final CountDownLatch first = new CountDownLatch(1);
+        timer.schedule(first::countDown, 10);
+        assertTrue(first.await(2, TimeUnit.SECONDS));
+
+        // Worker parks while empty; a new schedule must wake it.
+        Thread.sleep(100);
+        final CountDownLatch second = new CountDownLatch(1);
+        timer.schedule(second::countDown, 10);
+        assertTrue(second.await(2, TimeUnit.SECONDS));
+        assertEquals(2, timer.getExpiredCount());
+    }
+
     // =========================================================================
     //  BGTask — toMap / toJson
     // =========================================================================